@@ -3,22 +3,32 @@ package robot;
 import java.awt.BasicStroke;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import searchs.ADStar;
 import searchs.AStar;
 import searchs.DLite;
+import searchs.HeuristicType;
+import searchs.LandmarkTable;
 import searchs.Node;
 import searchs.SearchType;
 import searchs.AbstractSearch;
+import searchs.SearchCheckpoint;
 import searchs.SearchFactory;
+import searchs.SearchWorkspace;
+import searchs.StateStoreType;
+import space.CellLayout;
+import space.ChangeJournal;
+import space.CostLattice;
+import space.PrecomputeStore;
 import ui.EventHandler;
 import ui.UIScheme;
-import util.Calc;
 import util.Point;
 /**
  * Search robot, which owns the search algorithm and communicates with the 
@@ -40,11 +50,21 @@ public class SearchBot {
 	private int[] goal = null;
 	/** Current position of the robot. */
 	private int[] position = null;
-	/** Current map of the robot as a greyscale image's raster. Darker shade 
-	 *  means more time spent on traveling to the pixel. */
-	private Raster map;
+	/** Travel costs of the robot's current map as greyscale lattice. Darker 
+	 *  shade means more time spent on traveling to the pixel. Lattice is 
+	 *  updated in place when the map changes, and the searches read its
+	 *  snapshots. */
+	private CostLattice lattice;
 	/** Current heuristic search type. */
 	private SearchType searchType = SearchType.ASTAR;
+	/** State store type of the robot's searches. OFF_HEAP keeps also the
+	 * lattice outside the heap. */
+	private StateStoreType stateStoreType = StateStoreType.AUTO;
+	/** Heuristic of the robot's searches. */
+	private HeuristicType heuristicType = HeuristicType.MANHATTAN;
+	/** Landmark tables of the lattice, computed when a search first needs 
+	 * them and repaired when the map changes. */
+	private LandmarkTable landmarks = null;
 	/** Current heuristic search algorithm instance for the robot. */
 	private AbstractSearch search = null;
 	/** Currenly searched nodes. Maintained here for thread safe UI updating. */
@@ -71,11 +91,20 @@ public class SearchBot {
 	public Object searchedLock = new Object();
 	
 	public SearchBot(BufferedImage map, SearchType searchType) {
-		this.map = map.getData();	
+		this.lattice = new CostLattice(map.getRaster());
 		this.searchType = searchType;
+		SearchWorkspace.retain(this.lattice.layout);
 		//EventHandler.printInfo(this.map.getMinX() + " " + this.map.getMinY());
 	}
 	
+	/** Constructor for robot with ready cost lattice, e.g. memory mapped
+	 * from a cost map file. */
+	public SearchBot(CostLattice lattice, SearchType searchType) {
+		this.lattice = lattice;
+		this.searchType = searchType;
+		SearchWorkspace.retain(this.lattice.layout);
+	}
+	
 	/**
 	 * Constructor for starting robot with root and goal set.
 	 * @param root starting position of the robot; x,y -pair
@@ -87,8 +116,9 @@ public class SearchBot {
 		this.root = root;
 		this.goal = goal;
 		this.position = root;
-		this.map = map.getData();	
+		this.lattice = new CostLattice(map.getRaster());
 		this.searchType = searchType;
+		SearchWorkspace.retain(this.lattice.layout);
 		this.search = SearchFactory.createSearch(searchType, this, root, goal);
 	}
 	
@@ -98,7 +128,78 @@ public class SearchBot {
 	public int[] getPosition() { return this.position; }
 	public ArrayList<int[]> getTraveledPath() { return this.traveledPath; }
 	public ArrayList<Node> getPlannedPath() { return this.plannedPath; }
-	public Raster getMap() { return this.map; }
+	public CostLattice getLattice() { return this.lattice; }
+	public StateStoreType getStateStoreType() { return this.stateStoreType; }
+	public HeuristicType getHeuristicType() { return this.heuristicType; }
+	
+	/** Change heuristic of the robot's searches. Takes effect on the next
+	 * search, or on the current one if it has not been started yet. */
+	public void setHeuristicType(HeuristicType type) {
+		this.heuristicType = type;
+		if (this.search != null && !this.isSearchStarted) this.search.setHeuristicType(type);
+	}
+	
+	/**
+	 * Landmark tables of the robot's lattice. Tables are computed in parallel
+	 * on the first call, which may take a while on large maps.
+	 * @return landmark tables of the current version of the lattice.
+	 */
+	public synchronized LandmarkTable getLandmarks() {
+		if (this.landmarks == null) {
+			long t0 = System.currentTimeMillis();
+			this.landmarks = LandmarkTable.build(this.lattice, LandmarkTable.DEFAULT_LANDMARKS, 
+					Runtime.getRuntime().availableProcessors());
+			System.out.println(String.format("Robot: Computed %d landmarks (%d ms)",
+					this.landmarks.size(), System.currentTimeMillis() - t0));
+		}
+		return this.landmarks;
+	}
+	
+	/**
+	 * Store of the precomputed artifacts of the robot's lattice. Lattice of
+	 * a map which was not loaded from a file gets a store in memory.
+	 * @return precompute store of the lattice.
+	 */
+	public synchronized PrecomputeStore getPrecomputeStore() {
+		if (this.lattice.getStore() == null) {
+			this.lattice.setStore(new PrecomputeStore(null, this.lattice));
+		}
+		return this.lattice.getStore();
+	}
+	
+	/** Repair the landmark tables, if they have been computed, for the 
+	 * changed cells of the lattice. */
+	private synchronized void updateLandmarks(ChangeJournal changes) {
+		if (this.landmarks == null || changes.isEmpty()) return;
+		this.landmarks = this.landmarks.update(changes, this.lattice, 
+				Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Change state store type of the robot's searches and clear the search.
+	 * Switching to or from OFF_HEAP moves the cost lattice accordingly.
+	 * @param type state store type for the new searches
+	 */
+	public void setStateStoreType(StateStoreType type) {
+		this.stateStoreType = type;
+		boolean offHeap = type == StateStoreType.OFF_HEAP;
+		if (offHeap != this.lattice.isOffHeap()) {
+			if (this.search != null) this.search.dispose();
+			CostLattice old = this.lattice;
+			this.lattice = new CostLattice(old, offHeap);
+			// Tables and artifacts refer to the disposed lattice.
+			synchronized (this) { 
+				this.landmarks = null;
+				PrecomputeStore store = old.getStore();
+				if (store != null) {
+					this.lattice.setStore(new PrecomputeStore(store.getDirectory(), this.lattice));
+					store.close();
+				}
+			}
+			old.dispose();
+		}
+		this.clearSearch();
+	}
 	
 	public void setRoot(int[] root) { 
 		this.root = root; 
@@ -117,22 +218,48 @@ public class SearchBot {
  		}
  	}
 	
-	/** 
-	 * Set updated map of the robot's surroundings and replan the route from 
-	 * current travel position to the goal. 
-	 * 
-	 * @params map Updated map.
-	 * @param drawn possible 4-length int array consisting of drawn line's end
-	 * points.
-	 * */
-	public void setMap(BufferedImage map, int[] drawn) {
-		double[][] changed = null;
-		Raster newMap = map.getData();
- 		if (drawn != null) {
- 			changed = this.observeChanges(newMap, drawn);
+	/**
+	 * Write the state of the robot's D* Lite or AD* search to a checkpoint
+	 * file, so that it can be restored with restoreSearch() e.g. after a
+	 * restart.
+	 * @param file checkpoint file to write
+	 * @throws IOException if the file can not be written.
+	 */
+	public void saveSearch(File file) throws IOException {
+		if (this.search == null || !SearchCheckpoint.isSupported(this.search)) {
+			throw new IOException("Robot has no incremental search to save.");
 		}
-		this.map = newMap;
-		if (this.isSearchStarted) this.replan(changed);
+		SearchCheckpoint.write(this.search, file);
+	}
+	
+	/**
+	 * Replace the robot's search with the search restored from a checkpoint
+	 * file, written on the same map. Root, goal and position of the robot
+	 * are set from the checkpoint, and starting the search continues from
+	 * the restored state.
+	 * @param file checkpoint file
+	 * @throws IOException if the checkpoint can not be restored.
+	 */
+	public void restoreSearch(File file) throws IOException {
+		AbstractSearch restored = SearchCheckpoint.read(file, this);
+		this.clearSearch();
+		this.searchType = restored instanceof ADStar ? SearchType.ADSTAR : SearchType.D_LITE;
+		this.root = restored.getRoot();
+		this.goal = restored.getGoal();
+		synchronized (this.positionLock) { this.position = restored.getPosition(); }
+		this.search = restored;
+	}
+	
+	/**
+	 * Apply changes of the map, e.g. a drawn line, to the lattice and replan
+	 * the route from current travel position to the goal with only the
+	 * changed cells.
+	 * @param changes journal of the changed cells
+	 */
+	public void applyChanges(ChangeJournal changes) {
+		this.lattice.apply(changes);
+		this.updateLandmarks(changes);
+		if (this.isSearchStarted) this.replan(changes);
 	}
 	
  	/** Callback for searches to set new planned path, either in the middle 
@@ -140,6 +267,7 @@ public class SearchBot {
  	public void setPlannedPath(ArrayList<Node> path) {
  		if (path != null && path.size() > 0) {
  			this.plannedPath = path;
+ 			for (Node n: path) { this.lattice.prefetch(n.xy[0], n.xy[1]); }
  			/*
  			try {
  			this.storedPath = new ArrayList<Node>();
@@ -167,6 +295,9 @@ public class SearchBot {
  			String msg = String.format(this.search.getName() + 
  					" found path, searched: " + this.searched.size());
  			EventHandler.printInfo(msg);
+ 			if (this.lattice.getCache() != null) {
+ 				EventHandler.printInfo(this.lattice.getCache().toString());
+ 			}
  			//msg = String.format("Path length %d, cost %.5f", 
  			//		path.size(), this.getPathCost());
  			//EventHandler.updateRobot(this, msg);
@@ -181,20 +312,28 @@ public class SearchBot {
  	public double getPathCost() {
  		double c = 0.0;
  		for (Node n: this.plannedPath) {
- 			c += this.search.getCost(this.search.getMap(), n.xy);
+ 			c += this.lattice.cost(n.xy[0], n.xy[1]);
  		}
  		return c;
  	}
 	
 	/**
 	 * Update currently searched nodes.
-	 * @param chunks chunks of Node objects send by process()-method of current
-	 * search.
+	 * @param chunks chunks of Node objects or Integer cell indices in the
+	 * lattice's layout send by process()-method of current search.
 	 */
 	public void updateSearched(List<Object> chunks) {
+		CellLayout layout = this.lattice.layout;
 		synchronized (this.searchedLock) {
 			for (Object o: chunks) {
-				int[] xy = ((Node)o).xy;
+				int[] xy;
+				if (o instanceof Node) {
+					xy = ((Node)o).xy;
+				}
+				else {
+					int c = (Integer)o;
+					xy = new int[] {layout.x(c), layout.y(c)};
+				}
 				this.searched.add(xy);
 				this.undrawn.add(xy);
 			}
@@ -210,7 +349,7 @@ public class SearchBot {
 	}
 	
 	/** Start searching for path plan. Replanning is done automatically when
-	 * setMap is called. */
+	 * changes are applied to the map with applyChanges. */
 	public void startSearch() {	
 		if (this.search != null) {
 			this.isSearchStarted = true;
@@ -223,20 +362,12 @@ public class SearchBot {
 		}
 	}
 	
-	/** Clear robot's search, and create new search algorithm instance. */
+	/** Clear robot's search, and create new search algorithm instance. Old
+	 * search is stopped and its state released before this returns. */
 	public void clearSearch() {
 		System.out.println("Robot: Clearing search.");
 		if (this.search != null) {
-			if (!this.search.isDone()) 
-				this.search.cancel(true);
-			while (!this.search.isDone()) { 
-				try {
-					Thread.sleep(10); 
-				}
-				catch (Exception e) {
-					// TODO: do something with this.
-				}
-			}
+			this.search.dispose();
  			this.search = SearchFactory.createSearch(this.searchType, this, this.root, this.goal);
 		}
 		this.traveledPath.clear();
@@ -295,13 +426,13 @@ public class SearchBot {
 	 * Replan the planned path from current position to goal. Called when the 
 	 * new map is set.
 	 */ 
-	private void replan(double[][] changed) {
+	private void replan(ChangeJournal changes) {
 		this.travelTimer.cancel();
 		this.travelTimer.purge();
 		synchronized (this.searchedLock) { this.searched.clear(); }
 		this.plannedPath.clear();
 		
-		this.search = this.search.replan(changed);
+		this.search = this.search.replan(changes);
 		synchronized(this.search) { 
 			System.out.println("Robot: Notifying search.");
 			this.search.notify();
@@ -311,35 +442,6 @@ public class SearchBot {
 			this.search.execute();
 	}
 	
-	/**
-	 * Observe which pixels (nodes) were changed during the drawing.
-	 * @param newMap map to check changes against current map.
-	 * @param drawn 4-length array {x1, y1, x2, y2} of the drawn line's end 
-	 * ponts.
-	 * 
-	 * @return All changed pixel's coordinates and value changes int[3][n] array.
-	 */
-	private double[][] observeChanges(Raster newMap, int[] drawn) {
-		int[] r = Calc.getRectangle(drawn);
-		int x = r[0] - 5 < 0 ? 0 : r[0] - 5; 
-		int y = r[1] - 5 < 0 ? 0 : r[1] - 5;
-		int w = x + r[2] + 5 > newMap.getWidth() ? newMap.getWidth() - x : r[2] + 5; 
-		int h = y + r[3] + 5 > newMap.getHeight() ? newMap.getHeight() - y : r[3] + 5;
-		int[] xy = new int[2];
-		ArrayList<double[]> changes = new ArrayList<double[]>();
-		for (int i = x; i < x + w; i++) {
-			for (int j = y; j < y + h; j++) {
-				if (this.map.getSample(i, j, 0) != newMap.getSample(i, j, 0)) {
-					xy[0] = i; xy[1] = j;
-					double c1 = this.search.getCost(this.map, xy);
-					double c2 = this.search.getCost(newMap, xy);
-					changes.add(new double[] {i, j, c2 - c1});
-				}
-			}
-		}
-		return changes.toArray(new double[3][changes.size()]);
-	}
-	
 	/**
 	 * Draw searched node set to raster by coloring pixels one by one.
 	 * @param r Raster to draw closed set.
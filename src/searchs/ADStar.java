@@ -1,56 +1,81 @@
 package searchs;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import robot.SearchBot;
+import space.ChangeJournal;
 import ui.EventHandler;
 
 /**
  * AD* search which uses current knowledge of the nodes in re-planning phase,
  * when new edge costs are observed and speeds up the search by first inflating
  * the heuristic with epsilon (>0) value.
+ *
+ * Heuristic is the distance to the start and it is not stored in the keys.
+ * When the start moves, the distance moved is added to the key modifier km,
+ * as in D* Lite, and a cell whose key is out of date is put back to the open
+ * list with its current key when it comes to the top.
  * 
  * @see http://www.cs.cmu.edu/~maxim/files/ad_icaps05.pdf
  * @author slinkola
  *
  */
 public class ADStar extends AbstractSearch {
-	/** Current open list. */
-	protected PriorityQueue<ADNode> open = new PriorityQueue<ADNode>();
-	/** All the nodes generated in the current search. */
-	private HashMap<Integer, ADNode> created = new HashMap<Integer, ADNode>();
-	/** Current goal node. */
-	protected ADNode goalNode;
-	/** Current root node, changed to the position of the travel when edge
+	/** Current open list. Keys are [min(g, rhs) + e * h, min(g, rhs)] -pairs. */
+	protected CellHeap open = null;
+	/** Search state of all the cells generated in the current search. */
+	protected GridState state = null;
+	/** Reused buffer for the successors of the expanded cell. */
+	private final int[] succ = new int[4];
+	/** Reused buffer for the neighbors of the cell whose rhs is computed. */
+	private final int[] pred = new int[4];
+	/** Current goal cell. */
+	protected int goalCell;
+	/** Current root cell, changed to the position of the travel when edge
 	 * changes are detected. */
-	protected ADNode rootNode;
+	protected int rootCell;
+	/** Position of the root cell, from which the heuristic is computed. */
+	protected int[] start = null;
+	/** Key modifier, i.e. sum of the heuristic distances the start has moved. */
+	protected double km = 0;
+	/** Inconsistent cells, i.e. closed cells which have become inconsistent
+	 * in the current iteration. May have cells which are no longer 
+	 * inconsistent. */
+	protected final CellList incons = new CellList();
+	/** Cells closed in the current iteration. */
+	protected final CellList closed = new CellList();
 	
 	/** Current epsilon value. */
 	protected double e = 4;
 	
 	public ADStar(SearchBot r) {
 		super(r);
-		this.rootNode = new ADNode(
-				this.root, Double.MAX_VALUE / 2, 0, Double.MAX_VALUE / 2, this.e);
-		this.goalNode = new ADNode(
-				this.goal, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root), 0, this.e);
 		this.name = "AD*";
 	}
 	
 	public ADStar(SearchBot r, int[] root, int[] goal) {
 		super(r, root, goal);
-		this.rootNode = new ADNode(
-				this.root, Double.MAX_VALUE / 2, 0, Double.MAX_VALUE / 2, this.e);
-		this.goalNode = new ADNode(
-				this.goal, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root), 0, this.e);
 		this.name = "AD*";
 		
 	}
 	
+	/** Create state with root and goal cells. */
+	private void initState() {
+		this.state = this.createState(true);
+		this.open = this.createHeap(this.state);
+		this.rootCell = this.state.index(this.root);
+		this.goalCell = this.state.index(this.goal);
+		this.start = this.root;
+		this.km = 0;
+		this.incons.clear();
+		this.closed.clear();
+		this.state.visit(this.rootCell, Double.MAX_VALUE / 2, 0);
+		this.state.visit(this.goalCell, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root));
+		this.state.setRhs(this.goalCell, 0);
+	}
+	
 	@Override
 	/** SwingWorker's overrided method, called when publish is called for 
 	 * interim results. Adds chunks to robot's searched node list. */
@@ -83,73 +108,91 @@ public class ADStar extends AbstractSearch {
 	}
 	
 	
-	/** Update state/set membership of the node. */
-	protected void updateState(ADNode dn) {
-		int dnKey = dn.getHashKey();
-
-		if (dn.getG() != dn.getRhs()) {
-			if (!dn.isClosed()) {
-				if (dn.isOpen()) {
-					this.open.remove(dn);
-					this.open.add(dn);	
-				}
-				else {
-					dn.setMembership(Node.OPEN);
-					this.open.add(dn);					
-				}
+	/** First key component of the cell. */
+	protected double key1(int c) {
+		double g = this.state.getG(c);
+		double rhs = this.state.getRhs(c);
+		return (g > rhs ? rhs : g) + this.e * (this.calcH(c, this.start) + this.km);
+	}
+	
+	/** Second key component of the cell. */
+	protected double key2(int c) {
+		return Math.min(this.state.getG(c), this.state.getRhs(c));
+	}
+	
+	/** Update state/set membership of the cell. */
+	protected void updateState(int c) {
+		if (this.state.getG(c) != this.state.getRhs(c)) {
+			if (this.state.isClosed(c)) {
+				this.state.setMembership(c, Node.INCONSISTENT);
+				this.incons.add(c);
 			}
-			else if (!dn.isInconsistent()) {
-				if (dn.isOpen()) this.open.remove(dn);
-				dn.setMembership(Node.INCONSISTENT);
+			else if (!this.state.isInconsistent(c)) {
+				if (!this.state.isOpen(c)) this.state.setMembership(c, Node.OPEN);
+				this.open.update(c, this.key1(c), this.key2(c));
 			}
 		}
 		else {
-			if (dn.isOpen()) {
-				this.open.remove(dnKey);
-				dn.setMembership(Node.CLOSED);
+			if (this.state.isOpen(c)) {
+				this.open.remove(c);
+				this.state.setMembership(c, Node.VISITED);
 			}
-			else if (dn.isInconsistent()) {
-				dn.setMembership(Node.CLOSED);
+			else if (this.state.isInconsistent(c)) {
+				// Cell is still in the closed list of the iteration.
+				this.state.setMembership(c, Node.CLOSED);
 			}
 		}
 	}
 
+	/** Restore state, open list, epsilon, start and key modifier of the
+	 * search, e.g. from a checkpoint, so that the search continues from them
+	 * when started. */
+	void restore(GridState state, CellHeap open, double e, int[] start, double km) {
+		this.state = state;
+		this.open = open;
+		this.e = e;
+		this.start = start;
+		this.km = km;
+		this.rootCell = state.index(start);
+		this.goalCell = state.index(this.goal);
+		this.incons.clear();
+		this.closed.clear();
+		for (int i = 0; i < state.visitedCount(); i++) {
+			int c = state.visitedCell(i);
+			if (state.isClosed(c)) this.closed.add(c);
+			else if (state.isInconsistent(c)) this.incons.add(c);
+		}
+	}
+
 	@Override
 	protected void search() {
-		this.created.put(this.goalNode.getHashKey(), this.goalNode);
-		this.created.put(this.rootNode.getHashKey(), this.rootNode);
-		this.open.add(this.goalNode);
-		this.goalNode.setMembership(Node.OPEN);
+		if (this.state == null) {
+			this.initState();
+			this.open.add(this.goalCell, this.key1(this.goalCell), this.key2(this.goalCell));
+			this.state.setMembership(this.goalCell, Node.OPEN);
+		}
+		else {
+			// Restored keys may be from another heuristic.
+			this.reopen();
+		}
 			
 		while (!this.inGoal()) {
-			try {
-				Thread.sleep(150);
-			}
-			catch (Exception e) { }
+			this.pause(150);
 			
 			if (this.isCancelled()) break;
-			this.robot.clearSearched();
+			this.clearSearched();
 			print("Epsilon = " + this.e);
 			
-			/*
-			synchronized (this) {
-				int key = Node.getHashKeyFor(this.position);
-				if (this.created.containsKey(key)) {
-					this.rootNode = this.created.get(key);
-					this.rootNode.setH(0.0);
-					print("Root: " + this.rootNode.xy[0] +" " + this.rootNode.xy[1]);
-				}
-			}
-			*/
 			print("Starting to compute shortest path");
 			this.computeShortestPath();
 			print("Shortest path computed");
 			
 			if (!this.isCancelled()) {
 				this.constructPath();
-				this.publish(this.path);
+				this.publishPath();
 			
 				if (this.e == 1) {
+					if (this.batch) break;
 					// Wait until changes are observed.
 					try {
 						print("Waiting for changes in search space.");
@@ -167,77 +210,88 @@ public class ADStar extends AbstractSearch {
 				}
 				else if (this.e > 1) {
 					this.e -= 0.5;			
-					// Ugh. This is quite stupid, but has to be done so that the
-					// priorities get updated
-					PriorityQueue<ADNode> newPQ = new PriorityQueue<ADNode>();
-					for (ADNode n: this.open) { 
-						n.setH(this.calcH(n.xy, this.rootNode.xy));
-						n.setE(this.e);
-						newPQ.add(n); 
-					}
-					this.open = newPQ;
-
-					for (int key: this.created.keySet()) {
-						ADNode an = this.created.get(key);
-						an.setH(this.calcH(an.xy, this.rootNode.xy));
-						an.setE(this.e);
-						if (an.isInconsistent()) { 
-							an.setMembership(Node.OPEN);
-							this.open.add(an);
-						}
-						else if (an.isClosed()){
-							an.setMembership(Node.VISITED);
-						}
-					}
 				}
+				this.reopen();
 			}
 		}
 	}
 	
+	/** 
+	 * Move the inconsistent cells to the open list, recompute the keys of 
+	 * the open cells and empty the closed set before the next iteration, 
+	 * both when epsilon has decreased and when changes have been observed.
+	 * Open list is rebuilt with one O(n) heapify, and of the visited cells
+	 * only the open, inconsistent and last iteration's closed cells are
+	 * touched.
+	 */
+	protected synchronized void reopen() {
+		for (int i = 0; i < this.closed.size(); i++) {
+			int c = this.closed.get(i);
+			if (this.state.isClosed(c)) this.state.setMembership(c, Node.VISITED);
+		}
+		this.closed.clear();
+		int[] cells = new int[this.open.size() + this.incons.size()];
+		int n = this.open.toArray(cells);
+		for (int i = 0; i < this.incons.size(); i++) {
+			int c = this.incons.get(i);
+			if (this.state.isInconsistent(c)) {
+				this.state.setMembership(c, Node.OPEN);
+				cells[n++] = c;
+			}
+		}
+		this.incons.clear();
+		this.open.clear();
+		for (int i = 0; i < n; i++) {
+			this.open.append(cells[i], this.key1(cells[i]), this.key2(cells[i]));
+		}
+		this.open.heapify();
+	}
+	
 	/**
 	 * Compute shortest path between current root and goal.
 	 */
 	protected void computeShortestPath() {
 		if (this.open.isEmpty()) return;
-		int i = 0;
-		Node[] publishArray = new Node[2000];
+		int r = this.rootCell;
 		
-		print(this.open.peek().getRhs() + " " + this.rootNode.getRhs());
-		while ((this.open.peek().compareTo(this.rootNode) < 0 || this.rootNode.getRhs() != this.rootNode.getG())) {
+		print(this.state.getRhs(this.open.peek()) + " " + this.state.getRhs(r));
+		while (!this.open.isEmpty() && (this.topBefore(r) || this.state.getRhs(r) != this.state.getG(r))) {
 			if (this.isCancelled()) break;
-			ADNode dn = this.open.remove();
-			this.publish(dn);
-			//print(this.open.size() + " " + dn.xy[0] + " " + dn.xy[1]);
-			//print(dn.getKey()[0] + " " + dn.getKey()[1] + " " + r.getKey()[0] + " " + r.getKey()[1]);
+			int c = this.open.peek();
+			double k1 = this.key1(c), k2 = this.key2(c);
+			if (this.open.peekKey() < k1 || (this.open.peekKey() == k1 && this.open.peekKey2() < k2)) {
+				// Key is from before the start moved.
+				this.open.update(c, k1, k2);
+				continue;
+			}
+			this.open.poll();
+			this.publishExpanded(c);
 			
-			if (dn.getG() > dn.getRhs()) {
-				dn.setG(dn.getRhs());
-				dn.setMembership(Node.CLOSED);
-				for (ADNode n: this.neighbors(dn)) { 
-					if (n.getRhs() > dn.getRhs() + this.getCost(this.map, n.xy)) {
-						n.prev = dn;
-						n.setRhs(dn.getRhs() + this.getCost(this.map, n.xy));
-						this.updateState(n);
+			double rhs = this.state.getRhs(c);
+			if (this.state.getG(c) > rhs) {
+				this.state.setG(c, rhs);
+				this.state.setMembership(c, Node.CLOSED);
+				this.closed.add(c);
+				int count = this.neighbors(c, this.succ);
+				for (int i = 0; i < count; i++) { 
+					int n = this.succ[i];
+					double g = rhs + this.costs.cost(n);
+					if (this.state.getRhs(n) > g) {
+						this.state.setParent(n, c);
+						this.state.setRhs(n, g);
 					}
 					this.updateState(n);
 				}
 			}
 			else {
-				dn.setG(Double.MAX_VALUE / 2);
-				this.updateState(dn);
+				this.state.setG(c, Double.MAX_VALUE / 2);
+				this.updateState(c);
 				
-				for (ADNode n: this.neighbors(dn)) {  
-					if (n.prev == dn) {
-						double minG = Double.MAX_VALUE / 2;
-						Node newPrev = null;
-						for (ADNode d: this.neighbors(n)) {
-							if (d.getG() < minG) {
-								minG = d.getG();
-								newPrev = d;
-							}
-						}
-						n.prev = newPrev;
-						n.setRhs(minG + this.getCost(this.map, n.xy));
+				int count = this.neighbors(c, this.succ);
+				for (int i = 0; i < count; i++) {  
+					int n = this.succ[i];
+					if (this.state.getParent(n) == c) {
+						this.updateRhs(n);
 						this.updateState(n);
 					}
 				}		
@@ -245,55 +299,70 @@ public class ADStar extends AbstractSearch {
 		}
 	}
 	
-	/** Create and/or retrieve all neighbors of the node. */
-	protected ArrayList<ADNode> neighbors(ADNode dn) {
-		ArrayList<int[]> xys = this.getXYs(dn.xy);
-		ArrayList<ADNode> neighbors = new ArrayList<ADNode>();
-		
-		for (int[] xy: xys) {
-			ADNode n;
-			if (this.created.containsKey(Node.getHashKeyFor(xy))) {
-				n = this.created.get(Node.getHashKeyFor(xy));
- 			}
-			else {
-				n = new ADNode(xy, Double.MAX_VALUE / 2, this.calcH(xy, this.root), Double.MAX_VALUE / 2, this.e);
-				this.created.put(n.getHashKey(), n);
+	/** Move the start to the current position, if it has been visited, and
+	 * add the heuristic distance moved to the key modifier. */
+	protected void moveStart() {
+		synchronized (this.robot.positionLock) {
+			int c = this.state.index(this.position);
+			if (c == this.rootCell || !this.state.isVisited(c)) return;
+			this.km += this.calcH(this.position, this.start);
+			this.start = this.position;
+			this.rootCell = c;
+		}
+	}
+	
+	/** Is the key of the top cell in open list smaller than key of cell r. */
+	private boolean topBefore(int r) {
+		double k1 = this.key1(r);
+		return this.open.peekKey() < k1 || 
+				(this.open.peekKey() == k1 && this.open.peekKey2() < this.key2(r));
+	}
+	
+	/** Set rhs of the cell from its best neighbor, which becomes its parent. */
+	private void updateRhs(int c) {
+		double minG = Double.MAX_VALUE / 2;
+		int newPrev = -1;
+		int count = this.neighbors(c, this.pred);
+		for (int i = 0; i < count; i++) {
+			int d = this.pred[i];
+			if (this.state.getG(d) < minG) {
+				minG = this.state.getG(d);
+				newPrev = d;
+			}
+		}
+		this.state.setParent(c, newPrev);
+		this.state.setRhs(c, minG + this.costs.cost(c));
+	}
+	
+	/**
+	 * Generate all neighbors of the cell, i.e. visit the ones which have not 
+	 * been visited yet.
+	 * @param c cell whose neighbors are retrieved
+	 * @param out array of length 4 or more, where neighbors are written
+	 * @return amount of neighbors written.
+	 */
+	protected int neighbors(int c, int[] out) {
+		int count = this.adj.get(c, out);
+		for (int i = 0; i < count; i++) {
+			int n = out[i];
+			if (!this.state.isVisited(n)) {
+				this.state.visit(n, Double.MAX_VALUE / 2, this.calcH(n, this.root));
 			}
-			neighbors.add(n);
 		}
-		return neighbors;
+		return count;
 	} 
 	
 	
-	/** Construct shortest path for root node to goal node. */
+	/** Construct shortest path for root cell to goal cell. */
 	protected void constructPath() {
 		print("Constructing path");
-		try {
-			int key = Node.getHashKeyFor(this.position);
-			Node gn = this.created.get(key);
-			//Node gn = this.rootNode;
-			
-			if (gn != null) {
-				this.path = new ArrayList<Node>();
-				this.path.add(gn);
-				//print(gn.getHashKey() + "");
-				while (gn.prev != null) {
-					if (gn == gn.prev.prev) {
-						print("argh");
-						break;
-					}
-					this.path.add(gn.prev);
-					gn = gn.prev;	
-					//print(gn.getHashKey() +"");
-				}
-				print("Path with length " + this.path.size() + " found.");
-			}
-			else {
-				this.path = null;	
-			}
+		int c = this.state.index(this.position);
+		if (this.state.isVisited(c)) {
+			this.path = this.state.toPath(c);
+			print("Path with length " + this.path.size() + " found.");
 		}
-		catch (Exception e){
-			e.printStackTrace();
+		else {
+			this.path = null;	
 		}
 	}
 	
@@ -305,39 +374,23 @@ public class ADStar extends AbstractSearch {
 	}
 	
 	/** Replan the current route with the information of the changed pixels. */
-	public synchronized ADStar replan(double[][] changed) {
+	public synchronized ADStar replan(ChangeJournal changes) {
 		print("Starting to replan.");
-		this.map = this.robot.getMap();
-		/*
-		while (!this.open.isEmpty()) {
-			DNode d = this.open.remove();
-			d.setMembership(Node.CLOSED);
-		};
-		*/ 
-		for (int i: this.created.keySet()) {
-			ADNode dn = this.created.get(i);
-			dn.setH(this.calcH(dn.xy, this.position));
-		}
+		// Search has not started yet or has already ended.
+		if (this.workspace == null) return this;
+		// Changed pixels are in the latest version of the map.
+		this.costs = this.robot.getLattice().snapshot();
+		// Keys of new landmark tables are set when the open list is rebuilt
+		// before the next iteration.
+		this.updateLandmarks();
+		this.moveStart();
 		
-		if (changed != null) {
-			for (double[] xyv: changed) {
-				int[] xy = new int[] { (int)xyv[0], (int)xyv[1] };
-				int hashKey = Node.getHashKeyFor(xy);
-				if (this.created.containsKey(hashKey)) {
-					ADNode dn = this.created.get(hashKey);
-					if (dn != this.goalNode && dn.isVisited()) {
-						double minG = Double.MAX_VALUE / 2;
-						Node newPrev = null;
-						for (ADNode d: this.neighbors(dn)) {
-							if (d.getG() < minG) {
-								minG = d.getG();
-								newPrev = d;
-							}
-						}
-						dn.prev = newPrev;
-						dn.setRhs(minG + this.getCost(this.map, dn.xy));
-						this.updateState(dn);
-					}
+		if (changes != null) {
+			for (int i = 0; i < changes.size(); i++) {
+				int c = changes.cell(i);
+				if (c != this.goalCell && this.state.isVisited(c)) {
+					this.updateRhs(c);
+					this.updateState(c);
 				}
 			}
 			print("New open size " + this.open.size());
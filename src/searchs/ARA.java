@@ -1,14 +1,11 @@
 package searchs;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import robot.SearchBot;
+import space.ChangeJournal;
 import ui.EventHandler;
 
 /**
@@ -21,31 +18,54 @@ import ui.EventHandler;
  *
  */
 public class ARA extends AbstractSearch {
-	/** Current open list, which uses private comparator class. */
-	PriorityQueue<EpsNode> open = new PriorityQueue<EpsNode>();
-	/** All extended states. */
-	private HashMap<Integer, EpsNode> created = new HashMap<Integer, EpsNode>();
-	/** Current goal node. */
-	protected EpsNode goalNode;
-	/** Current root node. */
-	protected EpsNode rootNode;
+	/** Current open list of cell indices ordered by g + e * h. */
+	OpenList open = null;
+	/** Reused buffer for the successors of the expanded cell. */
+	private final int[] succ = new int[4];
+	/** Search state of all the extended cells. */
+	protected GridState state = null;
+	/** Current goal cell. */
+	protected int goalCell;
+	/** Current root cell. */
+	protected int rootCell;
+	/** Position of the root cell, from which the heuristic is computed. */
+	protected int[] rxy;
+	/** Inconsistent cells, i.e. closed cells whose g has decreased in the
+	 * current iteration. May have cells which are no longer inconsistent. */
+	protected final CellList incons = new CellList();
+	/** Cells closed in the current iteration. */
+	protected final CellList closed = new CellList();
 	/** Current epsilon. */
 	protected double e = 4;
 
 	public ARA(SearchBot r) {
 		super(r);
-		this.rootNode = new EpsNode(this.root, Double.MAX_VALUE / 2, 0, this.e);
-		this.goalNode = new EpsNode(this.goal, 0, this.calcH(this.root, this.goal), this.e);
 		this.name = "ARA*";
 	}
 	
 	public ARA(SearchBot r, int[] root, int[] goal) {
 		super(r, root, goal);
-		this.rootNode = new EpsNode(this.root, Double.MAX_VALUE / 2, 0, this.e);
-		this.goalNode = new EpsNode(this.goal, 0, this.calcH(this.root, this.goal), this.e);
 		this.name = "ARA*";
 	}
 	
+	/** Create search state with root and goal cells. */
+	private void initState() {
+		this.state = this.createState(false);
+		this.rootCell = this.state.index(this.root);
+		this.goalCell = this.state.index(this.goal);
+		this.rxy = this.root;
+		this.incons.clear();
+		this.closed.clear();
+		this.state.visit(this.rootCell, Double.MAX_VALUE / 2, 0);
+		this.state.visit(this.goalCell, 0, this.calcH(this.root, this.goal));
+	}
+	
+	/** Key of the cell, g + e * h, where h is the distance to the current
+	 * root. */
+	protected double key(int c) {
+		return this.state.getG(c) + this.e * this.calcH(c, this.rxy);
+	}
+
 	@Override
 	/** SwingWorker's overrided method, called when publish is called for 
 	 * interim results. Adds chunks to robot's searched node list. */
@@ -81,10 +101,10 @@ public class ARA extends AbstractSearch {
 	@Override
 	/**
 	 * Replan the route
-	 * @params changed omitted, since A* does not remember anything and thus
+	 * @params changes omitted, since A* does not remember anything and thus
 	 * cannot copy with changed information.
 	 */
-	public synchronized ARA replan(double[][] changed) {
+	public synchronized ARA replan(ChangeJournal changes) {
 		if (!this.isDone()) 
 			this.cancel(true);
 		while (!this.isDone()) { 
@@ -103,156 +123,104 @@ public class ARA extends AbstractSearch {
 	 * improvements as intermediate results. 
 	 */
 	protected void search() {
-		this.open = new PriorityQueue<EpsNode>();
-		this.open.add(this.goalNode);
+		this.initState();
+		this.open = this.createOpenList(this.state);
+		this.state.setMembership(this.goalCell, Node.OPEN);
+		this.open.add(this.goalCell, this.key(this.goalCell));
 		this.improvePath();
 		this.constructPath();
-		this.publish(this.path);
+		this.publishPath();
 
 		while (this.e > 1.0) {
-			try {
-				Thread.sleep(150);	
-			}
-			catch (Exception e) { }
+			if (this.isCancelled()) break;
+			this.pause(150);
 			
-			this.robot.clearSearched();
+			this.clearSearched();
 			this.e = this.e - 0.5;
 			print("Epsilon = " + this.e);
 			
-			int hashKey = Node.getHashKeyFor(this.getPosition());
-			if (this.created.containsKey(hashKey)) {
-				this.rootNode = this.created.get(hashKey);
-				this.rootNode.setH(0.0);
-				print("Root: " + this.rootNode.xy[0] +" " + this.rootNode.xy[1]);
+			int posCell = this.state.index(this.getPosition());
+			if (this.state.isVisited(posCell)) {
+				this.rootCell = posCell;
+				this.rxy = this.state.xy(posCell);
+				print("Root: " + this.rxy[0] +" " + this.rxy[1]);
 			}
 			
-			// Ugh. This is quite stupid, but has to be done so that the
-			// priorities get updated
-			PriorityQueue<EpsNode> newPQ = new PriorityQueue<EpsNode>();
-			for (EpsNode n: this.open) { 
-				n.setH(this.calcH(n.xy, this.rootNode.xy));
-				n.setE(this.e);
-				newPQ.add(n); 
-			}
-			this.open = newPQ;
-
-			for (int key: this.created.keySet()) {
-				EpsNode an = this.created.get(key);
-				an.setH(this.calcH(an.xy, this.rootNode.xy));
-				an.setE(this.e);
-				if (an.isInconsistent()) { 
-					an.setMembership(Node.OPEN);
-					this.open.add(an);
-				}
-				else if (an.isClosed()) {
-					an.setMembership(Node.VISITED);
-				}
-			}
+			this.reopen();
 			this.improvePath();
 			this.constructPath();
-			this.publish(this.path);
+			this.publishPath();
 		}
 		
-		EventHandler.printInfo("ARA* stopped search.");
+		if (!this.batch) EventHandler.printInfo("ARA* stopped search.");
 	}
 	
-	protected void improvePath() {
-		if (this.open.isEmpty()) return;
-		int i = 0;
-		Node[] publishArray = new Node[2000];
-
-		while (this.open.peek().compareTo(this.rootNode) < 0) {
-			//ARANode r = this.rootNode;
-			//System.out.println(r.xy[0] + " " + r.xy[1] + " " + r.getG() + " " + e*r.getH());
-			EpsNode node = this.open.remove();
-			//System.out.println(node.xy[0] + " " + node.xy[1] + " " + node.getG() + " " + e*node.getH());
-			node.setMembership(Node.CLOSED);
-			// Publish only in batches.
-			this.publish(node);
-			/*
-			publishArray[i] = node;
-			if (i == publishArray.length - 1) {
-				this.publish((Object[])publishArray);
-				i = 0;
-			}
-			else {
-				i++;
+	/** 
+	 * Move the inconsistent cells to the open list, recompute the keys of 
+	 * the open cells for the current epsilon and root and empty the closed
+	 * set. Open list is rebuilt with one O(n) heapify, and of the visited
+	 * cells only the open, inconsistent and last iteration's closed cells
+	 * are touched.
+	 */
+	protected void reopen() {
+		for (int i = 0; i < this.closed.size(); i++) {
+			int c = this.closed.get(i);
+			if (this.state.isClosed(c)) this.state.setMembership(c, Node.VISITED);
+		}
+		this.closed.clear();
+		int[] cells = new int[this.open.size() + this.incons.size()];
+		int n = this.open.toArray(cells);
+		for (int i = 0; i < this.incons.size(); i++) {
+			int c = this.incons.get(i);
+			if (this.state.isInconsistent(c)) {
+				this.state.setMembership(c, Node.OPEN);
+				cells[n++] = c;
 			}
-			*/
-			for (EpsNode n: this.neighbors(node)) {
-				if (n.g > this.getCost(this.map, n.xy) + node.g) {
-					n.g = this.getCost(this.map, n.xy) + node.g;
-					n.prev = node;
-					if (!n.isClosed()) {
-						if (n.isOpen()) {
-							this.open.remove(n);
-						}
-						n.setMembership(Node.OPEN);
-						n.setE(this.e);
-						this.open.add(n);
+		}
+		this.incons.clear();
+		this.open.clear();
+		for (int i = 0; i < n; i++) this.open.append(cells[i], this.key(cells[i]));
+		this.open.heapify();
+	}
+	
+	protected void improvePath() {
+		int[] rxy = this.rxy;
+		while (!this.open.isEmpty() && this.open.peekKey() < this.key(this.rootCell) &&
+				!this.isCancelled()) {
+			int node = this.open.poll();
+			this.state.setMembership(node, Node.CLOSED);
+			this.closed.add(node);
+			this.publishExpanded(node);
+			double ng = this.state.getG(node);
+			int count = this.adj.get(node, this.succ);
+			for (int i = 0; i < count; i++) {
+				int n = this.succ[i];
+				if (!this.state.isVisited(n)) {
+					this.state.visit(n, Double.MAX_VALUE / 2, 
+							this.calcH(n, rxy));
+				}
+				double g = this.costs.cost(n) + ng;
+				if (this.state.getG(n) > g) {
+					this.state.setG(n, g);
+					this.state.setParent(n, node);
+					if (this.state.isClosed(n)) {
+						this.state.setMembership(n, Node.INCONSISTENT);
+						this.incons.add(n);
+					}
+					else if (!this.state.isInconsistent(n)) {
+						this.state.setMembership(n, Node.OPEN);
+						this.open.update(n, this.key(n));
 					}
-					else {
-						n.setMembership(Node.INCONSISTENT);
-					}	
 				}
 			}
 		}
-		/*
-		if (i != 0 && i < publishArray.length - 1) {
-			Node[] a = new Node[i];
-			for (int j = 0; j < i; j++) a[j] = publishArray[j];
-			this.publish((Object[])a);
-		}
-		*/
-		
 	}
 	
-	
-	/** Construct shortest path for root node to goal node. */
+	/** Construct shortest path for root cell to goal cell. */
 	protected void constructPath() {
-		Node gn = this.rootNode;
-		if (gn != null) {
-			this.path = new ArrayList<Node>();
-			this.path.add(gn);
-			while (gn.prev != null) {
-				this.path.add(gn.prev);
-				gn = gn.prev;	
-			}
-		}
-		else {
-			this.path = null;	
-		}	
+		this.path = this.state.toPath(this.rootCell);
 	}
 	
-	/** Create and/or retrieve all neighbors of the node. */
-	protected ArrayList<EpsNode> neighbors(EpsNode an) {
-		ArrayList<int[]> xys = this.getXYs(an.xy);
-		ArrayList<EpsNode> neighbors = new ArrayList<EpsNode>();
-		
-		for (int[] xy: xys) {
-			EpsNode n;
-			if (xy[0] == this.rootNode.xy[0] && xy[1] == this.rootNode.xy[1]) {
-				n = this.rootNode;
-				/*
-				if (an.getG() + this.getCost(this.map, n.xy) < n.getG()) {
-					n.setG(an.getG() + this.getCost(this.map, n.xy));
-					n.prev = an;
-				}
-				*/
-			}
-			else if (this.created.containsKey(Node.getHashKeyFor(xy))) {
-				n = this.created.get(Node.getHashKeyFor(xy));
- 			} 
-			else {
-				n = new EpsNode(xy, Double.MAX_VALUE / 2, this.calcH(xy, this.root), this.e);
-				this.created.put(n.getHashKey(), n);
-				n.prev = an;
-			}
-			neighbors.add(n);
-		}
-		return neighbors;
-	} 
-	
 	@Override
 	protected boolean isGoal(Node n) {
 		if (n.xy[0] == this.position[0] && n.xy[1] == this.position[1]) return true;
@@ -1,12 +1,9 @@
 package searchs;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.PriorityQueue;
 
 import robot.SearchBot;
+import space.ChangeJournal;
 
 /**
  * Basic A* search.
@@ -16,10 +13,12 @@ import robot.SearchBot;
  *
  */
 public class AStar extends AbstractSearch {
-	/** Current open list. */
-	PriorityQueue<Node> open = new PriorityQueue<Node>();
-	/** All created nodes. */
-	HashMap<Integer, Node> created = new HashMap<Integer, Node>();
+	/** Current open list of cell indices ordered by their f-values. */
+	OpenList open = null;
+	/** Reused buffer for the successors of the expanded cell. */
+	private final int[] succ = new int[4];
+	/** Search state of all the cells. */
+	GridState state = null;
 	
 	public double e = 1.0;
 
@@ -44,10 +43,10 @@ public class AStar extends AbstractSearch {
 	@Override
 	/**
 	 * Replan the route
-	 * @params changed omitted, since A* does not remember anything and thus
+	 * @params changes omitted, since A* does not remember anything and thus
 	 * cannot copy with changed information.
 	 */
-	public synchronized AStar replan(double[][] changed) {
+	public synchronized AStar replan(ChangeJournal changes) {
 		if (!this.isDone()) 
 			this.cancel(true);
 		while (!this.isDone()) { 
@@ -61,109 +60,73 @@ public class AStar extends AbstractSearch {
 		return new AStar(this.robot, this.position, this.root);
 	}
 	
+	/** f(n) = g(n) + h(n) of the cell. Heuristic is already inflated with e. */
+	protected double f(int c) {
+		return this.state.getG(c) + this.state.getH(c);
+	}
+	
 	@Override
 	/** Execute A* search and publish closed list additions as intermediate 
 	 * results. 
 	 */
-	protected void search() {	
-		Node r = new Node(this.root, 0, this.calcH(this.root, this.goal) * this.e);
-		open.add(r);
-		this.created.put(r.getHashKey(), r);
+	protected void search() {
+		this.state = this.createState(false);
+		this.open = this.createOpenList(this.state);
+		int r = this.state.index(this.root);
+		int goalCell = this.state.index(this.goal);
+		this.state.visit(r, 0, this.calcH(this.root, this.goal) * this.e);
+		this.state.setMembership(r, Node.OPEN);
+		this.open.add(r, this.f(r));
 		boolean found = false;
-		Node gn = null;	// goal node.
+		int gn = -1;	// goal cell.
 		double toGoal = Double.MAX_VALUE;
 		
-		while (!found && this.open.peek().getF() < toGoal && !this.open.isEmpty() && !this.isCancelled()) {
-			Node n = this.open.remove();
+		while (!found && !this.open.isEmpty() && this.open.peekKey() < toGoal && !this.isCancelled()) {
+			int n = this.open.poll();
 			
-			if (this.isGoal(n)) {
+			if (n == goalCell) {
 				found = true;
-				if (n.getF() < toGoal) {
-					toGoal = n.getF();
+				if (this.f(n) < toGoal) {
+					toGoal = this.f(n);
 					gn = n;
 				}	
 			}
-			this.publish(n);
-			n.setMembership(Node.CLOSED);
-			Node[] childs = this.neighbors(n);
-			for (Node c: childs) {
-				int key = c.getHashKey();
-				if (this.created.containsKey(key)) {
-					double cost = this.getCost(this.map, c.xy);
-					if (c.isClosed()) {
-						if (n.getG() + cost >= c.getG()) { 
-							continue;
-						}
-						else {
-							c.setG(n.getG() + cost);
-							c.prev = n;
-							c.setMembership(Node.OPEN);
-							this.open.add(c);
-						}
-					}
-					else if (c.isOpen()) {
-						if (c.getG() > n.getG() + cost) {
-							this.open.remove(c);
-							c.setG(n.getG() + cost);	
-							this.open.add(c);
-						}
-						
-					}
-					
+			this.publishExpanded(n);
+			this.state.setMembership(n, Node.CLOSED);
+			double ng = this.state.getG(n);
+			int count = this.adj.get(n, this.succ);
+			for (int i = 0; i < count; i++) {
+				int c = this.succ[i];
+				double g = ng + this.costs.cost(c);
+				if (this.state.isVisited(c)) {
+					if (g >= this.state.getG(c)) continue;
+					this.state.setG(c, g);
+					this.state.setParent(c, n);
+					this.state.setMembership(c, Node.OPEN);
+					this.open.update(c, this.f(c));
 				}
 				else {
-					c.setMembership(Node.OPEN);
-					this.open.add(c);	
-					this.created.put(key, c);
+					this.state.visit(c, g, this.calcH(c, this.goal) * this.e);
+					this.state.setParent(c, n);
+					this.state.setMembership(c, Node.OPEN);
+					this.open.add(c, this.f(c));
 				}
-			}		
-		}
-		this.constructPath(gn);
-	}
-	
-	/**
-	 * Create neighbor nodes for given node.
-	 * 
-	 * @param n Node whose neighbors are created.
-	 * @return
-	 */
-	protected Node[] neighbors(Node n) {
-		ArrayList<int[]> xys = this.getXYs(n.xy);
-		double[] costs = this.getCosts(xys);
-		double ncost = n.getG();
-		Node[] neighbors = new Node[costs.length];
-		for (int i = 0; i < costs.length; i++) {
-			int[] xy = xys.get(i);
-			if (this.created.containsKey(Node.getHashKeyFor(xy))) {
-				Node nn = this.created.get(Node.getHashKeyFor(xy));
-				neighbors[i] = nn;
-			}
-			else {
-				Node nn = new Node(xy, ncost + this.getCost(this.map, xy), this.calcH(xy, this.goal) * this.e);
-				nn.prev = n;
-				neighbors[i] = nn;
 			}
 		}
-		return neighbors;
+		this.constructPath(gn);
 	}
 	
 	/**
-	 * Construct path from root to goal. Is no goal node is given, current
+	 * Construct path from root to goal. Is no goal cell is given, current
 	 * path is set to null;
-	 * @param goalNode goal node from which the path is started to construct.
+	 * @param goalCell goal cell from which the path is started to construct.
 	 */
-	protected void constructPath(Node goalNode) {
-		if (goalNode != null) {
-			//EventHandler.printInfo(String.format("Goal node found with %d expansions", expanded));
-			this.path = new ArrayList<Node>();
-			this.path.add(goalNode);
-			while (goalNode.prev != null) {
-				this.path.add(goalNode.prev);
-				goalNode = goalNode.prev;
-			}
+	protected void constructPath(int goalCell) {
+		if (goalCell != -1) {
+			this.path = this.state.toPath(goalCell);
 		}
 		else {
 			this.path = null;	
 		}
 	}
-}
\ No newline at end of file
+}
@@ -1,6 +1,5 @@
 package searchs;
 
-import java.awt.image.Raster;
 import java.lang.Void;
 import java.util.ArrayList;
 import java.util.List;
@@ -8,6 +7,8 @@ import java.util.List;
 import javax.swing.SwingWorker;
 
 import robot.SearchBot;
+import space.ChangeJournal;
+import space.CostLattice;
 
 /**
  * Abstract super class for all the heuristic searchs to obtain coherent 
@@ -24,11 +25,11 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 	protected int[] goal = null;
 	/** Current position on the path to goal. */
 	protected int[] position = null;
-	/** Search space as the gray scaled raster image. */
-	protected Raster map;
-	/** Width of the raster. */
+	/** Search space as the lattice of travel costs. */
+	protected CostLattice costs;
+	/** Width of the search space. */
 	protected int w = 0;
-	/** Height of the raster. */
+	/** Height of the search space. */
 	protected int h = 0;
 	/** Path planned by A*. */
 	protected ArrayList<Node> path = null;
@@ -36,15 +37,44 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 	protected SearchBot robot = null;
 	/** Is this search currently running. */
 	protected boolean isRunning = false;
+	/** Successor generator for the cells of the search space. */
+	protected Neighbors adj;
+	/** Open list implementation used by the grid searches. */
+	protected OpenListType openListType = OpenListType.AUTO;
+	/** State store implementation used by the grid searches. */
+	protected StateStoreType stateStoreType = StateStoreType.AUTO;
+	/** Heuristic of the search. */
+	protected HeuristicType heuristicType = HeuristicType.MANHATTAN;
+	/** Landmark tables of the robot, taken when the search starts and 
+	 * replans, if the heuristic uses them. */
+	protected LandmarkTable landmarks = null;
+	/** Are expanded cells published for drawing. */
+	protected boolean publishExpanded = true;
+	/** Is the search run in batch, without the UI. */
+	protected boolean batch = false;
+	/** Amount of cells expanded by the search. */
+	protected long expanded = 0;
+	/** Amount of cells visited by the search, recorded when its workspace is
+	 * released. */
+	protected int visited = 0;
+	/** Pooled workspace of the search, acquired by createState(). */
+	protected SearchWorkspace workspace = null;
+	/** Thread which is running doInBackground(), null if none. */
+	private Thread worker = null;
+	/** Lock for waiting the worker thread to stop. */
+	private final Object workerLock = new Object();
 	
 	public AbstractSearch(SearchBot r) {
 		this.robot = r;
 		this.root = this.robot.getRoot();
 		this.goal = this.robot.getGoal();
 		this.position = this.root;
-		this.map = this.robot.getMap();
-		this.w = this.map.getWidth();
-		this.h = this.map.getHeight();
+		this.costs = this.robot.getLattice();
+		this.w = this.costs.w;
+		this.h = this.costs.h;
+		this.adj = Neighbors.of(this.costs.layout);
+		this.stateStoreType = this.robot.getStateStoreType();
+		this.heuristicType = this.robot.getHeuristicType();
 	}
 	
 	public AbstractSearch(SearchBot r, int[] root, int[] goal) {
@@ -52,13 +82,57 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 		this.root = root;
 		this.goal = goal;
 		this.position = root;
-		this.map = this.robot.getMap();
-		this.w = this.map.getWidth();
-		this.h = this.map.getHeight();
+		this.costs = this.robot.getLattice();
+		this.w = this.costs.w;
+		this.h = this.costs.h;
+		this.adj = Neighbors.of(this.costs.layout);
+		this.stateStoreType = this.robot.getStateStoreType();
+		this.heuristicType = this.robot.getHeuristicType();
 	}
 	
 	public String getName() { return this.name; }	
-	public Raster getMap() { return this.map; }
+	public int[] getRoot() { return this.root; }
+	public int[] getGoal() { return this.goal; }
+	public CostLattice getLattice() { return this.costs; }
+	public OpenListType getOpenListType() { return this.openListType; }
+	public StateStoreType getStateStoreType() { return this.stateStoreType; }
+	public HeuristicType getHeuristicType() { return this.heuristicType; }
+	public ArrayList<Node> getPath() { return this.path; }
+	public long getExpanded() { return this.expanded; }
+	public int getVisited() { return this.visited; }
+	
+	/** Change open list implementation used by the search. Has effect only 
+	 * before the search is started. */
+	public void setOpenListType(OpenListType type) {
+		this.openListType = type;
+	}
+	
+	/** Change state store implementation used by the search. Has effect only
+	 * before the search is started. */
+	public void setStateStoreType(StateStoreType type) {
+		this.stateStoreType = type;
+	}
+	
+	/** Change heuristic used by the search. Has effect only before the 
+	 * search is started. */
+	public void setHeuristicType(HeuristicType type) {
+		this.heuristicType = type;
+	}
+	
+	/** Change whether expanded cells are published to the robot for drawing.
+	 * Batch runs turn this off, since each publish allocates. */
+	public void setPublishExpanded(boolean publish) {
+		this.publishExpanded = publish;
+	}
+	
+	/** Run the search in batch, without the UI. Batch searches publish 
+	 * nothing, do not print their progress and do not pause between the
+	 * iterations, and searches which replan return when their path has 
+	 * converged instead of waiting for changes. */
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+		this.publishExpanded = !batch;
+	}
 	
 	public synchronized int[] getPosition() { return this.position; }
 	public synchronized void setPosition(int[] xy) {
@@ -67,15 +141,15 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 	
 	
 	
-	public void setMap(Raster map) {
-		this.map = map;
+	public void setLattice(CostLattice costs) {
+		this.costs = costs;
 	}
 	
 	/** Override in subclass for desired functionality. 
 	 * 
-	 * @params changed All the changed pixels.
+	 * @params changes journal of the changed cells.
 	 */
-	public synchronized AbstractSearch replan(double[][] changed) {
+	public synchronized AbstractSearch replan(ChangeJournal changes) {
 		return this;
 	}
 	
@@ -88,10 +162,43 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 	 * another thread. */
 	public ArrayList<Node> doInBackground() {
 		this.isRunning = true;
-		this.search();
+		synchronized (this.workerLock) { this.worker = Thread.currentThread(); }
+		// Search the version of the map at the start, edits made while the
+		// search is running are given to replan().
+		this.costs = this.costs.snapshot();
+		this.updateLandmarks();
+		try {
+			this.search();
+		}
+		finally {
+			this.releaseWorkspace();
+			synchronized (this.workerLock) {
+				this.worker = null;
+				this.workerLock.notifyAll();
+			}
+		}
 		return this.path;
 	}
 	
+	/**
+	 * Cancel the search and wait until its worker thread has stopped, so that
+	 * the workspace of the search is released, including any memory outside
+	 * the heap. Called when the robot's search is cleared.
+	 */
+	public void dispose() {
+		if (!this.isDone()) this.cancel(true);
+		synchronized (this.workerLock) {
+			while (this.worker != null) {
+				try {
+					this.workerLock.wait(100);
+				}
+				catch (InterruptedException e) {
+					// Keep waiting, state must not be freed under the worker.
+				}
+			}
+		}
+	}
+	
 	@Override
 	/** SwingWorker's overrided method. Called when the task is complete. */
 	public void done() {
@@ -107,94 +214,146 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 		this.robot.updateSearched(chunks);
 	}
 	
+	/** Publish expanded cell as interim result, if enabled. Also hints the
+	 * cost lattice to prefetch the tiles ahead of the frontier. */
+	protected void publishExpanded(int c) {
+		this.expanded++;
+		this.costs.prefetch(c);
+		if (this.publishExpanded) this.publish(c);
+	}
+	
+	/** Publish the current path as interim result, unless in batch. */
+	protected void publishPath() {
+		if (!this.batch) this.publish(this.path);
+	}
+	
+	/** Clear the robot's searched cells for a new iteration, unless in 
+	 * batch. */
+	protected void clearSearched() {
+		if (!this.batch) this.robot.clearSearched();
+	}
+	
+	/** Pause between the iterations so that the UI can show them, unless in
+	 * batch. */
+	protected void pause(long ms) {
+		if (this.batch) return;
+		try {
+			Thread.sleep(ms);
+		}
+		catch (InterruptedException e) { }
+	}
+	
 	/** Main search function, which is called by doInBackground function. 
 	 * Override in subclass! */
 	protected synchronized void search() { }
 	
 	/**
-	 * Returns all possible child pixel coordinates of the x, y pixel in the map.
-	 * Currently no diagonal pixels are allowed as childs.
-	 * 
-	 * @param xy x,y of the pixel in map to get childs from.
-	 * @return array of all possible successors.
+	 * Calculate cost for travelling to xy-pixel from adjacent pixel.
+	 * @param xy
+	 * @return Cost for travelling to xy-pixel from adjacent pixel.
 	 */
-	protected ArrayList<int[]> getXYs(int[] xy) {
-		int x = xy[0]; int y = xy[1];
-		ArrayList<int[]> childs = new ArrayList<int[]>();
-		
-		if (x > 0) {
-			childs.add(new int[] {x - 1, y});
-			/*
-			if (y > 0) {
-				childs.add(new int[] {x - 1, y - 1});
-			}
-			if (y < this.h) {
-				childs.add(new int[] {x - 1, y + 1});
-			
-			}
-			*/
-		}
-		if (y > 0) childs.add(new int[] {x, y - 1});
-		if (x < this.w - 1) {
-			childs.add(new int[] {x + 1, y}); 
-			/*
-			if (y > 0) {
-				childs.add(new int[] {x + 1, y - 1});
-			}
-			if (y < this.h - 1) {
-				childs.add(new int[] {x + 1, y + 1});
-			}
-			*/
-		}
-			
-		if (y < this.h - 1) childs.add(new int[] {x, y + 1});
-		
-		
-		return childs;	
+	public double getCost(int[] xy) {
+		return this.costs.cost(xy[0], xy[1]);
 	}
 	
 	/**
-	 * Calculate cost for travelling to xy-pixel from adjacent pixel.
-	 * @param r Raster to get cost from.
-	 * @param xy
-	 * @return Cost for travelling to xy-pixel from adjacent pixel.
+	 * Get empty state store according to the state store type of this search.
+	 * State comes from a pooled workspace, which is acquired on the first 
+	 * call and cleared on the later ones. Expected exploration is estimated
+	 * as the area within the Manhattan distance between root and goal.
+	 * @param rhs does the search need rhs -values
+	 * @return empty state.
 	 */
-	public double getCost(Raster r, int[] xy) {
-		int sample = r.getSample(xy[0], xy[1], 0);
-		double cost = Double.MAX_VALUE;
-		if (sample == 0) {
-			cost = 10000.0;		
+	protected GridState createState(boolean rhs) {
+		if (this.workspace != null) {
+			this.workspace.clear();
+			return this.workspace.state;
+		}
+		long d = Math.abs(this.root[0] - this.goal[0]) + Math.abs(this.root[1] - this.goal[1]);
+		long expected = Math.max(1024, 2 * d * d);
+		this.workspace = SearchWorkspace.acquire(this.costs.layout, this.stateStoreType, expected, rhs);
+		return this.workspace.state;
+	}
+	
+	/** Return the workspace of this search to its pool. Called when the 
+	 * search ends. */
+	protected void releaseWorkspace() {
+		if (this.workspace != null) {
+			this.visited = this.workspace.state.visitedCount();
+			this.workspace.release();
+			this.workspace = null;
 		}
-		else {
-			cost = ((double)(256 - r.getSample(xy[0], xy[1], 0)) / 48) + 1;
+	}
+	
+	/** Create heap open list for the state, reusing the workspace's heap if
+	 * the state is from the workspace. */
+	protected CellHeap createHeap(GridState state) {
+		if (this.workspace != null && this.workspace.state == state) {
+			return this.workspace.heap();
 		}
-		return cost;
+		return new CellHeap(state);
 	}
 	
 	/**
-	 * @param xys list of pixels to get travel cost to.
-	 * @return travel costs to all the pixels in the given ArrayList.
+	 * Create open list for the grid state according to the open list type of
+	 * this search. AUTO uses bucket queue when the cost model is quantized.
+	 * @param state state of the cells in the open list.
+	 * @return new empty open list.
 	 */
-	protected double[] getCosts(ArrayList<int[]> xys) {
-		double[] costs = new double[xys.size()];
-		
-		for (int i = 0; i < xys.size(); i++) {
-			costs[i] = this.getCost(this.map, xys.get(i));
+	protected OpenList createOpenList(GridState state) {
+		boolean bucket = this.openListType == OpenListType.BUCKET || 
+				(this.openListType == OpenListType.AUTO && this.costs.isQuantized());
+		if (!bucket) return this.createHeap(state);
+		if (this.workspace != null && this.workspace.state == state) {
+			return this.workspace.bucket(CostLattice.COST_SCALE);
 		}
-		return costs;
+		return new BucketQueue(state, CostLattice.COST_SCALE);
+	}
+	
+	/**
+	 * Take the robot's current landmark tables, if the heuristic of the 
+	 * search uses them. 
+	 * @return true if the tables changed, i.e. keys computed with the old 
+	 * tables are out of date.
+	 */
+	protected boolean updateLandmarks() {
+		if (this.heuristicType != HeuristicType.LANDMARKS) return false;
+		LandmarkTable t = this.robot.getLandmarks();
+		if (t == this.landmarks) return false;
+		this.landmarks = t;
+		return true;
 	}
 	
 	/**
-	 * Calculate path cost estimate between points p1 and p2.
+	 * Calculate path cost estimate between points p1 and p2. Cost of the 
+	 * path counts p2 but not p1, as the costs the searches compute.
 	 * @param p1 first point
 	 * @param p2 second point
 	 * @return heuristic function's cost estimate.
 	 */
 	protected double calcH(int[] p1, int[] p2) {
-		int dx = Math.abs(p1[0] - p2[0]);
-		int dy = Math.abs(p1[1] - p2[1]);
+		return this.calcH(this.costs.layout.index(p1[0], p1[1]), p2);
+	}
+	
+	/**
+	 * Calculate path cost estimate between cell c and point p. Cost of the
+	 * path counts p but not c, as the costs the searches compute. With
+	 * landmarks the estimate is the larger of the Manhattan distance and the
+	 * landmark bound.
+	 * @param c cell index in the layout of the cost lattice
+	 * @param p point
+	 * @return heuristic function's cost estimate.
+	 */
+	protected double calcH(int c, int[] p) {
+		int dx = Math.abs(this.costs.layout.x(c) - p[0]);
+		int dy = Math.abs(this.costs.layout.y(c) - p[1]);
 		//return Math.sqrt(dx*dx + dy*dy);
-		return dx + dy;
+		double h = dx + dy;
+		if (this.landmarks != null) {
+			double b = this.landmarks.bound(this.costs.layout.index(p[0], p[1]), c);
+			if (b > h) h = b;
+		}
+		return h;
 	}
 	
 	/**
@@ -221,6 +380,7 @@ public abstract class AbstractSearch extends SwingWorker<ArrayList<Node>, Object
 	/** For all those times when System.out.println starts to seriously piss 
 	 * you off. Also easily changed to do logging or to print into info panel.*/
 	protected void print(String s) {
+		if (this.batch) return;
 		System.out.println(this.name + ": " + s);
 	}
 }
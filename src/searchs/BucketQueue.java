@@ -0,0 +1,328 @@
+package searchs;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Bucket queue (Dial's algorithm) open list for GridState cells. Keys are
+ * converted to fixed-point integers by multiplying them with the scale and
+ * each integer key has its own bucket, so adding and changing keys is O(1)
+ * and polling is amortized O(1) for the small bounded edge costs of the
+ * quantized cost model.
+ *
+ * Buckets are kept in a circular window [base, base + capacity). Window grows
+ * when the key range in it grows and keys which do not fit even into the
+ * largest window are kept in an unordered overflow list until the window
+ * empties. Keys may also go below the current minimum, which happens with
+ * inflated (weighted A*) heuristics.
+ *
+ * Changing the key of a cell leaves a stale entry in its old bucket. Stale
+ * entries are skipped and recycled when they are met in polling.
+ * @author slinkola
+ *
+ */
+public class BucketQueue implements OpenList {
+	/** Initial amount of buckets in the window. */
+	private static final int MIN_BUCKETS = 1024;
+	/** Maximum amount of buckets in the window. */
+	private static final int MAX_BUCKETS = 1 << 22;
+	/** State which holds the entry index of each queued cell. */
+	private final GridState state;
+	/** Fixed-point scale, i.e. key k is in bucket round(k * scale). */
+	private final double scale;
+	/** Cell of each entry, -1 for stale and free entries. */
+	private int[] entCell = new int[256];
+	/** Fixed-point key of each entry. */
+	private long[] entKey = new long[256];
+	/** Next entry in the same bucket, overflow list or free list. */
+	private int[] entNext = new int[256];
+	/** Amount of allocated entries. */
+	private int entCount = 0;
+	/** Head of the free entry list. */
+	private int free = -1;
+	/** Head entries of the buckets in the window. */
+	private int[] heads;
+	/** Capacity - 1 of the window. */
+	private int mask;
+	/** Smallest key that fits into the window. */
+	private long base = 0;
+	/** All the entries in the window have key >= cursor. */
+	private long cursor = 0;
+	/** Upper bound for the keys of entries in the window. */
+	private long maxKey = 0;
+	/** Amount of entries linked in the window, including stale ones. */
+	private int windowCount = 0;
+	/** Head of the overflow list. */
+	private int overflow = -1;
+	/** Smallest key in the overflow list. */
+	private long overflowMin = Long.MAX_VALUE;
+	/** Amount of live cells in the queue. */
+	private int size = 0;
+
+	/**
+	 * @param state state which holds the queue positions of the cells
+	 * @param scale fixed-point scale of the keys. Keys of the cells should be
+	 * multiples of 1 / scale for the ordering to be exact.
+	 */
+	public BucketQueue(GridState state, double scale) {
+		this.state = state;
+		this.scale = scale;
+		this.heads = new int[MIN_BUCKETS];
+		this.mask = MIN_BUCKETS - 1;
+		Arrays.fill(this.heads, -1);
+	}
+
+	public int size() { return this.size; }
+	public boolean isEmpty() { return this.size == 0; }
+
+	public void clear() {
+		Arrays.fill(this.heads, -1);
+		this.entCount = 0;
+		this.free = -1;
+		this.windowCount = 0;
+		this.overflow = -1;
+		this.overflowMin = Long.MAX_VALUE;
+		this.size = 0;
+	}
+
+	public boolean contains(int c) {
+		int e = this.state.getHeapIndex(c);
+		return e >= 0 && e < this.entCount && this.entCell[e] == c;
+	}
+
+	public int peek() {
+		return this.entCell[this.top()];
+	}
+
+	public double peekKey() {
+		return this.entKey[this.top()] / this.scale;
+	}
+
+	public void add(int c, double key) {
+		int e = this.allocate();
+		this.entCell[e] = c;
+		this.entKey[e] = this.fixed(key);
+		this.state.setHeapIndex(c, e);
+		this.place(e);
+		this.size++;
+	}
+
+	public void update(int c, double key) {
+		if (this.contains(c)) {
+			int e = this.state.getHeapIndex(c);
+			if (this.entKey[e] == this.fixed(key)) return;
+			this.entCell[e] = -1;
+			this.size--;
+		}
+		this.add(c, key);
+	}
+
+	public int poll() {
+		int e = this.top();
+		int c = this.entCell[e];
+		this.heads[(int)(this.cursor & this.mask)] = this.entNext[e];
+		this.windowCount--;
+		this.release(e);
+		this.state.setHeapIndex(c, -1);
+		this.size--;
+		return c;
+	}
+
+	public boolean remove(int c) {
+		if (!this.contains(c)) return false;
+		this.entCell[this.state.getHeapIndex(c)] = -1;
+		this.state.setHeapIndex(c, -1);
+		this.size--;
+		return true;
+	}
+
+	/** Same as add(), buckets need no ordering. */
+	public void append(int c, double key) {
+		this.add(c, key);
+	}
+
+	public void heapify() {
+		// Cells are in their buckets already.
+	}
+
+	public int toArray(int[] out) {
+		int n = 0;
+		for (int e = 0; e < this.entCount; e++) {
+			if (this.entCell[e] != -1) out[n++] = this.entCell[e];
+		}
+		return n;
+	}
+
+	private long fixed(double key) {
+		return Math.round(key * this.scale);
+	}
+
+	/** Find the entry with the smallest key and drop stale entries met on the
+	 * way. Returned entry is the head of the bucket at cursor. */
+	private int top() {
+		if (this.size == 0)
+			throw new NoSuchElementException("Open list is empty.");
+		while (true) {
+			if (this.windowCount == 0) {
+				this.rebase(this.overflowMin);
+				continue;
+			}
+			int b = (int)(this.cursor & this.mask);
+			while (this.heads[b] == -1) {
+				this.cursor++;
+				b = (b + 1) & this.mask;
+			}
+			int e = this.heads[b];
+			if (this.entCell[e] != -1) return e;
+			this.heads[b] = this.entNext[e];
+			this.windowCount--;
+			this.release(e);
+		}
+	}
+
+	/** Put entry into the window, growing or moving the window if needed, or
+	 * into the overflow list. */
+	private void place(int e) {
+		long k = this.entKey[e];
+		if (this.windowCount == 0) {
+			if (this.overflow != -1) {
+				this.rebase(Math.min(k, this.overflowMin));
+			}
+			else {
+				this.base = k;
+				this.cursor = k;
+				this.maxKey = k;
+			}
+		}
+		while (true) {
+			long cap = this.mask + 1;
+			if (k >= this.base && k - this.base < cap) break;
+			if (k < this.base && this.maxKey - k < cap) {
+				this.base = k;
+				break;
+			}
+			long range = k < this.base ? this.maxKey - k : k - this.base;
+			if (range < MAX_BUCKETS) {
+				this.grow();
+			}
+			else if (k < this.base) {
+				this.rebase(k);
+			}
+			else {
+				this.entNext[e] = this.overflow;
+				this.overflow = e;
+				if (k < this.overflowMin) this.overflowMin = k;
+				return;
+			}
+		}
+		int b = (int)(k & this.mask);
+		this.entNext[e] = this.heads[b];
+		this.heads[b] = e;
+		this.windowCount++;
+		if (k < this.cursor) this.cursor = k;
+		if (k > this.maxKey) this.maxKey = k;
+	}
+
+	/** Double the window capacity and relink its entries. */
+	private void grow() {
+		int[] old = this.heads;
+		this.heads = new int[old.length * 2];
+		this.mask = this.heads.length - 1;
+		Arrays.fill(this.heads, -1);
+		for (int i = 0; i < old.length; i++) {
+			int e = old[i];
+			while (e != -1) {
+				int next = this.entNext[e];
+				int b = (int)(this.entKey[e] & this.mask);
+				this.entNext[e] = this.heads[b];
+				this.heads[b] = e;
+				e = next;
+			}
+		}
+	}
+
+	/** Start window from the new base and re-place all the live entries from
+	 * the window and the overflow list. Stale entries are released. */
+	private void rebase(long newBase) {
+		int all = -1;
+		for (int i = 0; i < this.heads.length; i++) {
+			int e = this.heads[i];
+			while (e != -1) {
+				int next = this.entNext[e];
+				this.entNext[e] = all;
+				all = e;
+				e = next;
+			}
+			this.heads[i] = -1;
+		}
+		int e = this.overflow;
+		while (e != -1) {
+			int next = this.entNext[e];
+			this.entNext[e] = all;
+			all = e;
+			e = next;
+		}
+		this.overflow = -1;
+		this.overflowMin = Long.MAX_VALUE;
+		this.windowCount = 0;
+		this.base = newBase;
+		this.cursor = newBase;
+		this.maxKey = newBase;
+		e = all;
+		while (e != -1) {
+			int next = this.entNext[e];
+			if (this.entCell[e] == -1) {
+				this.release(e);
+			}
+			else {
+				this.placeInWindow(e);
+			}
+			e = next;
+		}
+	}
+
+	/** Place entry relative to current base without moving the base. Keys 
+	 * at least MAX_BUCKETS above the base go to the overflow list. */
+	private void placeInWindow(int e) {
+		long k = this.entKey[e];
+		if (k - this.base >= MAX_BUCKETS) {
+			this.entNext[e] = this.overflow;
+			this.overflow = e;
+			if (k < this.overflowMin) this.overflowMin = k;
+			return;
+		}
+		while (k - this.base > this.mask) this.grow();
+		int b = (int)(k & this.mask);
+		this.entNext[e] = this.heads[b];
+		this.heads[b] = e;
+		this.windowCount++;
+		if (k > this.maxKey) this.maxKey = k;
+	}
+
+	private int allocate() {
+		if (this.free != -1) {
+			int e = this.free;
+			this.free = this.entNext[e];
+			return e;
+		}
+		if (this.entCount == this.entCell.length) {
+			int n = this.entCount * 2;
+			int[] c = new int[n];
+			long[] k = new long[n];
+			int[] next = new int[n];
+			System.arraycopy(this.entCell, 0, c, 0, this.entCount);
+			System.arraycopy(this.entKey, 0, k, 0, this.entCount);
+			System.arraycopy(this.entNext, 0, next, 0, this.entCount);
+			this.entCell = c;
+			this.entKey = k;
+			this.entNext = next;
+		}
+		return this.entCount++;
+	}
+
+	private void release(int e) {
+		this.entCell[e] = -1;
+		this.entNext[e] = this.free;
+		this.free = e;
+	}
+}
@@ -0,0 +1,198 @@
+package searchs;
+
+/**
+ * Indexed 4-ary min-heap of GridState cells. Each cell knows its own position
+ * in the heap through the state, so that key changes and removals of
+ * arbitrary cells are O(log n) and membership checks O(1).
+ * 
+ * Keys are [k1, k2] -pairs compared lexicographically, so the heap works both
+ * with scalar keys (k2 = 0) and with two-component D* Lite style keys.
+ * @author slinkola
+ *
+ */
+public class CellHeap implements OpenList {
+	/** Arity of the heap. */
+	private static final int D = 4;
+	/** State which holds the heap positions of the cells. */
+	private final GridState state;
+	/** Cells in heap order. */
+	private int[] cells = new int[64];
+	/** First key component of the cells in heap order. */
+	private double[] k1 = new double[64];
+	/** Second key component of the cells in heap order. */
+	private double[] k2 = new double[64];
+	/** Amount of cells in the heap. */
+	private int size = 0;
+	
+	public CellHeap(GridState state) {
+		this.state = state;
+	}
+	
+	public int size() { return this.size; }
+	public boolean isEmpty() { return this.size == 0; }
+	
+	/** Remove all the cells from the heap. */
+	public void clear() { this.size = 0; }
+	
+	/** Is the cell currently in the heap. */
+	public boolean contains(int c) {
+		int i = this.state.getHeapIndex(c);
+		return i >= 0 && i < this.size && this.cells[i] == c;
+	}
+	
+	/** Cell with the smallest key. Heap must not be empty. */
+	public int peek() { return this.cells[0]; }
+	/** First key component of the smallest cell. */
+	public double peekKey() { return this.k1[0]; }
+	/** Second key component of the smallest cell. */
+	public double peekKey2() { return this.k2[0]; }
+	
+	/** Get i:th cell in heap order. */
+	public int get(int i) { return this.cells[i]; }
+	/** First key component of the i:th cell in heap order. */
+	public double getKey(int i) { return this.k1[i]; }
+	/** Second key component of the i:th cell in heap order. */
+	public double getKey2(int i) { return this.k2[i]; }
+	
+	/** Add cell with scalar key. */
+	public void add(int c, double key) {
+		this.add(c, key, 0.0);
+	}
+	
+	/** Add cell with [k1, k2] -key. Cell must not be in the heap already. */
+	public void add(int c, double key1, double key2) {
+		if (this.size == this.cells.length) this.grow();
+		int i = this.size++;
+		this.set(i, c, key1, key2);
+		this.siftUp(i);
+	}
+	
+	/** Add cell with scalar key without restoring the heap order. */
+	public void append(int c, double key) {
+		this.append(c, key, 0.0);
+	}
+	
+	/** Add cell with [k1, k2] -key without restoring the heap order. Cell
+	 * must not be in the heap already and heapify() must be called before
+	 * the heap is used. */
+	public void append(int c, double key1, double key2) {
+		if (this.size == this.cells.length) this.grow();
+		this.set(this.size++, c, key1, key2);
+	}
+	
+	/** Restore the heap order after append() in O(n), sifting down each 
+	 * parent from the last one to the top (Floyd). */
+	public void heapify() {
+		if (this.size < 2) return;
+		for (int i = (this.size - 2) / D; i >= 0; i--) this.siftDown(i);
+	}
+	
+	public int toArray(int[] out) {
+		System.arraycopy(this.cells, 0, out, 0, this.size);
+		return this.size;
+	}
+	
+	/** Change key of the cell to scalar key. */
+	public void update(int c, double key) {
+		this.update(c, key, 0.0);
+	}
+	
+	/** Change the key of the cell, either decrease or increase. Cell is added
+	 * if it is not in the heap. */
+	public void update(int c, double key1, double key2) {
+		if (!this.contains(c)) {
+			this.add(c, key1, key2);
+			return;
+		}
+		int i = this.state.getHeapIndex(c);
+		boolean decrease = this.less(key1, key2, this.k1[i], this.k2[i]);
+		this.k1[i] = key1;
+		this.k2[i] = key2;
+		if (decrease) this.siftUp(i);
+		else this.siftDown(i);
+	}
+	
+	/** Remove and return the cell with smallest key. */
+	public int poll() {
+		int c = this.cells[0];
+		this.removeAt(0);
+		return c;
+	}
+	
+	/** Remove cell from the heap, if it is in the heap. */
+	public boolean remove(int c) {
+		if (!this.contains(c)) return false;
+		this.removeAt(this.state.getHeapIndex(c));
+		return true;
+	}
+	
+	private void removeAt(int i) {
+		int last = --this.size;
+		this.state.setHeapIndex(this.cells[i], -1);
+		if (i == last) return;
+		this.set(i, this.cells[last], this.k1[last], this.k2[last]);
+		int p = (i - 1) / D;
+		if (i > 0 && this.less(i, p)) this.siftUp(i);
+		else this.siftDown(i);
+	}
+	
+	private void siftUp(int i) {
+		int c = this.cells[i];
+		double a = this.k1[i];
+		double b = this.k2[i];
+		while (i > 0) {
+			int p = (i - 1) / D;
+			if (!this.less(a, b, this.k1[p], this.k2[p])) break;
+			this.set(i, this.cells[p], this.k1[p], this.k2[p]);
+			i = p;
+		}
+		this.set(i, c, a, b);
+	}
+	
+	private void siftDown(int i) {
+		int c = this.cells[i];
+		double a = this.k1[i];
+		double b = this.k2[i];
+		while (true) {
+			int first = i * D + 1;
+			if (first >= this.size) break;
+			int last = first + D < this.size ? first + D : this.size;
+			int m = first;
+			for (int j = first + 1; j < last; j++) {
+				if (this.less(j, m)) m = j;
+			}
+			if (!this.less(this.k1[m], this.k2[m], a, b)) break;
+			this.set(i, this.cells[m], this.k1[m], this.k2[m]);
+			i = m;
+		}
+		this.set(i, c, a, b);
+	}
+	
+	private void set(int i, int c, double key1, double key2) {
+		this.cells[i] = c;
+		this.k1[i] = key1;
+		this.k2[i] = key2;
+		this.state.setHeapIndex(c, i);
+	}
+	
+	private boolean less(int i, int j) {
+		return this.less(this.k1[i], this.k2[i], this.k1[j], this.k2[j]);
+	}
+	
+	private boolean less(double a1, double a2, double b1, double b2) {
+		return a1 < b1 || (a1 == b1 && a2 < b2);
+	}
+	
+	private void grow() {
+		int n = this.cells.length * 2;
+		int[] c = new int[n];
+		double[] a = new double[n];
+		double[] b = new double[n];
+		System.arraycopy(this.cells, 0, c, 0, this.size);
+		System.arraycopy(this.k1, 0, a, 0, this.size);
+		System.arraycopy(this.k2, 0, b, 0, this.size);
+		this.cells = c;
+		this.k1 = a;
+		this.k2 = b;
+	}
+}
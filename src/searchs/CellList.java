@@ -0,0 +1,41 @@
+package searchs;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of cell indices, e.g. the INCONS list of ARA* and AD*, kept
+ * in a primitive array so adding a cell does not allocate.
+ * @author slinkola
+ *
+ */
+public class CellList {
+	/** Cells of the list. */
+	private int[] cells = new int[256];
+	/** Amount of cells. */
+	private int size = 0;
+
+	public int size() { return this.size; }
+
+	public boolean isEmpty() { return this.size == 0; }
+
+	/** Cell at index i. */
+	public int get(int i) { return this.cells[i]; }
+
+	/** Add cell to the end of the list. */
+	public void add(int c) {
+		if (this.size == this.cells.length) {
+			this.cells = Arrays.copyOf(this.cells, 2 * this.size);
+		}
+		this.cells[this.size++] = c;
+	}
+
+	/** Remove and return the last cell of the list. */
+	public int pop() {
+		return this.cells[--this.size];
+	}
+
+	/** Remove all the cells. */
+	public void clear() {
+		this.size = 0;
+	}
+}
@@ -0,0 +1,446 @@
+package searchs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import space.CostLattice;
+import space.PrecomputeStore;
+
+/**
+ * Abstract graph of the map for hierarchical path-planning (HPA*). Map is
+ * split into square clusters, and each side of a cluster shared with another
+ * cluster is split into entrances: maximal spans of pairs of passable cells
+ * across the border with the same crossing cost, i.e. the cost of both
+ * cells. Each entrance has a node in the middle of the span, or nodes at
+ * most STEP apart from one end of a long span to the other, so on gray
+ * scale maps paths can cross the border where it is cheap. Side which
+ * would have more than NODES / 4 nodes, e.g. on noisy gray scale, has
+ * instead nodes at the ends and at the cheapest crossing of each span of
+ * passable pairs. Both clusters of the border find the same spans, so the
+ * nodes do not need to be stored anywhere else than in the clusters. Black
+ * cells are obstacles of the graph and of the searches within the clusters.
+ *
+ * Cheapest costs between the nodes within each cluster are cached in an
+ * artifact of the map's precompute store, one region per cluster. Region is
+ * built when it is first read, and since the entrances depend on the cells
+ * just outside the cluster, changing a cell invalidates the clusters within
+ * one cell of it, i.e. only the clusters the change intersects.
+ *
+ * Region of a cluster:
+ * <pre>
+ * 0   byte                  amount of nodes n
+ * 1   byte[NODES]           border position of each node, side * SIDE +
+ *                           offset along the side, in ascending order
+ * 72  double[NODES]         cost of each node's cell
+ * 584 double[NODES*(NODES-1)/2] cost of the path between nodes i &lt; j
+ *                           within the cluster, counting both ends
+ * </pre>
+ * Sides are top, right, bottom and left. Costs between the nodes count the
+ * entered cells, i.e. the last cell but not the first.
+ * @author slinkola
+ *
+ */
+public class ClusterGraph {
+	/** Side of the clusters in cells. */
+	public static final int SIDE = 32;
+	/** Entrances at least this long have a node at both ends. */
+	public static final int LONG = 6;
+	/** Longest distance between the nodes of an entrance. */
+	public static final int STEP = 8;
+	/** Maximum amount of nodes of a cluster, NODES / 4 on each side. */
+	public static final int NODES = 4 * SIDE / 2;
+	/** Sample of the cells which are obstacles of the graph. */
+	public static final int BLOCKED = 0;
+	/** Name of the artifact of the cluster costs. */
+	public static final String ARTIFACT = "hpa-clusters";
+	/** Version of the artifact, changed when the builder changes. */
+	public static final int VERSION = 3;
+	/** Cost of the nodes which can not be reached. */
+	public static final double INF = Double.POSITIVE_INFINITY;
+	/** Start of the node positions in the region. */
+	private static final int POSITIONS = 1;
+	/** Start of the costs of the node cells in the region. */
+	private static final int CELLS = 72;
+	/** Start of the costs between the nodes in the region. */
+	private static final int PATHS = CELLS + NODES * 8;
+	/** Bytes of one region. */
+	private static final int BYTES = PATHS + NODES * (NODES - 1) / 2 * 8;
+	/** Sides of the clusters in the order of their nodes. */
+	public static final int TOP = 0, RIGHT = 1, BOTTOM = 2, LEFT = 3;
+
+	/** Lattice the local searches are run on. */
+	private final CostLattice costs;
+	/** Cached costs between the entrances. */
+	private final PrecomputeStore.Artifact artifact;
+	/** Data of the clusters read for the lattice, by cluster. */
+	private final HashMap<Integer, ByteBuffer> read = new HashMap<Integer, ByteBuffer>();
+	/** Clusters on each row. */
+	public final int clustersW;
+	/** Rows of clusters. */
+	public final int clustersH;
+	/** Costs of the local searches, which span at most 2 x 2 clusters. */
+	private final double[] dist = new double[4 * SIDE * SIDE];
+	/** Parents of the local searches, local cell indices. */
+	private final int[] parent = new int[4 * SIDE * SIDE];
+	/** Queue of the local searches. */
+	private final DistanceQueue queue = new DistanceQueue();
+
+	/**
+	 * Create graph of the lattice, opening its cached costs from the store.
+	 * @param costs lattice the searches within clusters are run on, e.g. a
+	 * snapshot of the store's lattice
+	 * @param store precompute store of the map
+	 */
+	public ClusterGraph(CostLattice costs, PrecomputeStore store) {
+		this.costs = costs;
+		this.artifact = store.open(ARTIFACT, VERSION, SIDE, BYTES, 1, new Builder());
+		this.clustersW = this.artifact.regionsW;
+		this.clustersH = this.artifact.regionsH;
+	}
+
+	/** Amount of clusters. */
+	public int clusters() { return this.artifact.regions(); }
+
+	/** Amount of clusters built since the artifact was opened. */
+	public int getBuilt() { return this.artifact.getBuilt(); }
+
+	/** Cluster of the x, y -location. */
+	public int clusterOf(int x, int y) { return this.artifact.regionOf(x, y); }
+
+	/** Upper left x of the cluster. */
+	public int x0(int cl) { return (cl % this.clustersW) * SIDE; }
+
+	/** Upper left y of the cluster. */
+	public int y0(int cl) { return (cl / this.clustersW) * SIDE; }
+
+	/** Width of the cluster, less than the side at the map border. */
+	public int width(int cl) { return Math.min(SIDE, this.costs.w - this.x0(cl)); }
+
+	/** Height of the cluster. */
+	public int height(int cl) { return Math.min(SIDE, this.costs.h - this.y0(cl)); }
+
+	/**
+	 * Cached data of the cluster, built first if it is not valid for the
+	 * lattice. Data is read once for the lattice and kept, so the graph reads
+	 * the same data for as long as it is used.
+	 * @param cl cluster
+	 * @return buffer of the cluster's region.
+	 */
+	public ByteBuffer data(int cl) {
+		ByteBuffer b = this.read.get(cl);
+		if (b == null) {
+			b = this.artifact.region(cl, this.costs);
+			this.read.put(cl, b);
+		}
+		return b;
+	}
+
+	/** Amount of nodes of the cluster. */
+	public int nodes(ByteBuffer data) { return data.get(0); }
+
+	/** Side of the cluster node k is on. */
+	public int side(ByteBuffer data, int k) { return data.get(POSITIONS + k) / SIDE; }
+
+	/**
+	 * Cell of the node.
+	 * @param data data of the cluster
+	 * @param cl cluster
+	 * @param k node of the cluster
+	 * @param xy filled with the location of the node's cell
+	 */
+	public void node(ByteBuffer data, int cl, int k, int[] xy) {
+		int pos = data.get(POSITIONS + k);
+		int off = pos % SIDE;
+		int x0 = this.x0(cl), y0 = this.y0(cl);
+		switch (pos / SIDE) {
+			case TOP: xy[0] = x0 + off; xy[1] = y0; break;
+			case RIGHT: xy[0] = x0 + this.width(cl) - 1; xy[1] = y0 + off; break;
+			case BOTTOM: xy[0] = x0 + off; xy[1] = y0 + this.height(cl) - 1; break;
+			default: xy[0] = x0; xy[1] = y0 + off; break;
+		}
+	}
+
+	/** Cost from node i to node j within the cluster, INF if there is no
+	 * path. */
+	public double cost(ByteBuffer data, int i, int j) {
+		if (i == j) return 0;
+		int lo = Math.min(i, j), hi = Math.max(i, j);
+		return data.getDouble(PATHS + pair(lo, hi) * 8) - data.getDouble(CELLS + i * 8);
+	}
+
+	/**
+	 * Node of the neighbor cluster across the border from node k, at the
+	 * same offset on the opposite side.
+	 * @param data data of the cluster
+	 * @param k node of the cluster
+	 * @param ndata data of the cluster across node k's side
+	 * @return node of the neighbor, -1 if it has none there.
+	 */
+	public int across(ByteBuffer data, int k, ByteBuffer ndata) {
+		int pos = data.get(POSITIONS + k);
+		int want = ((pos / SIDE + 2) % 4) * SIDE + pos % SIDE;
+		int lo = 0, hi = this.nodes(ndata) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int p = ndata.get(POSITIONS + mid);
+			if (p < want) lo = mid + 1;
+			else if (p > want) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/** Index of the pair of nodes i &lt; j in the costs between the nodes. */
+	private static int pair(int i, int j) {
+		return i * (2 * NODES - i - 1) / 2 + j - i - 1;
+	}
+
+	/** Is the location an obstacle of the graph. */
+	public boolean isBlocked(int[] xy) { return this.costs.getSample(xy[0], xy[1]) == BLOCKED; }
+
+	/** Cluster across the side of the cluster, -1 at the map border. */
+	public int neighbor(int cl, int side) {
+		int cx = cl % this.clustersW, cy = cl / this.clustersW;
+		switch (side) {
+			case TOP: return cy > 0 ? cl - this.clustersW : -1;
+			case RIGHT: return cx < this.clustersW - 1 ? cl + 1 : -1;
+			case BOTTOM: return cy < this.clustersH - 1 ? cl + this.clustersW : -1;
+			default: return cx > 0 ? cl - 1 : -1;
+		}
+	}
+
+	/**
+	 * Costs from the location to the nodes of its cluster within the
+	 * cluster, counting the nodes but not the location.
+	 * @param xy location
+	 * @param data data of the location's cluster
+	 * @param out filled with the cost to each node, INF if it can not be
+	 * reached
+	 */
+	public void fromCell(int[] xy, ByteBuffer data, double[] out) {
+		int cl = this.clusterOf(xy[0], xy[1]);
+		int x0 = this.x0(cl), y0 = this.y0(cl), w = this.width(cl), h = this.height(cl);
+		search(this.costs, x0, y0, w, h, xy[0] - x0, xy[1] - y0, -1, this.dist, this.parent, this.queue);
+		int[] n = new int[2];
+		for (int k = 0; k < this.nodes(data); k++) {
+			this.node(data, cl, k, n);
+			out[k] = this.dist[(n[1] - y0) * w + n[0] - x0];
+		}
+	}
+
+	/**
+	 * Costs from the nodes of the location's cluster to the location within
+	 * the cluster, counting the location but not the nodes. Cheapest path
+	 * from the location to a node is the cheapest path back, so one search
+	 * from the location gives the costs.
+	 * @param xy location
+	 * @param data data of the location's cluster
+	 * @param out filled with the cost from each node, INF if it can not
+	 * reach the location
+	 */
+	public void toCell(int[] xy, ByteBuffer data, double[] out) {
+		int cl = this.clusterOf(xy[0], xy[1]);
+		int x0 = this.x0(cl), y0 = this.y0(cl), w = this.width(cl), h = this.height(cl);
+		search(this.costs, x0, y0, w, h, xy[0] - x0, xy[1] - y0, -1, this.dist, this.parent, this.queue);
+		double c = this.costs.cost(xy[0], xy[1]);
+		int[] n = new int[2];
+		for (int k = 0; k < this.nodes(data); k++) {
+			this.node(data, cl, k, n);
+			double d = this.dist[(n[1] - y0) * w + n[0] - x0];
+			out[k] = d + c - this.costs.cost(n[0], n[1]);
+		}
+	}
+
+	/** Are the clusters the same or adjacent, also diagonally. */
+	public boolean isNear(int ca, int cb) {
+		return Math.abs(ca % this.clustersW - cb % this.clustersW) <= 1 &&
+				Math.abs(ca / this.clustersW - cb / this.clustersW) <= 1;
+	}
+
+	/**
+	 * Cheapest path between two locations of the same or adjacent clusters,
+	 * within the rectangle of those clusters.
+	 * @param a first location
+	 * @param b last location
+	 * @param out locations of the path are added to this, without a
+	 * @return cost of the path, counting b but not a.
+	 */
+	public double refine(int[] a, int[] b, ArrayList<int[]> out) {
+		int ca = this.clusterOf(a[0], a[1]), cb = this.clusterOf(b[0], b[1]);
+		int x0 = Math.min(this.x0(ca), this.x0(cb)), y0 = Math.min(this.y0(ca), this.y0(cb));
+		int w = Math.max(this.x0(ca) + this.width(ca), this.x0(cb) + this.width(cb)) - x0;
+		int h = Math.max(this.y0(ca) + this.height(ca), this.y0(cb) + this.height(cb)) - y0;
+		int t = (b[1] - y0) * w + b[0] - x0;
+		search(this.costs, x0, y0, w, h, a[0] - x0, a[1] - y0, t, this.dist, this.parent, this.queue);
+		int start = out.size();
+		for (int c = t; this.parent[c] != -1; c = this.parent[c]) {
+			out.add(start, new int[] {x0 + c % w, y0 + c / w});
+		}
+		return this.dist[t];
+	}
+
+	/**
+	 * Dijkstra within the rectangle from the local location sx, sy, costs
+	 * counting the entered cells. Black cells are not entered. Local cell
+	 * index is x + y * w.
+	 * @param target local cell at which the search stops, -1 for none
+	 */
+	private static void search(CostLattice costs, int x0, int y0, int w, int h,
+			int sx, int sy, int target, double[] d, int[] parent, DistanceQueue q) {
+		Arrays.fill(d, 0, w * h, INF);
+		Arrays.fill(parent, 0, w * h, -1);
+		q.clear();
+		int s = sy * w + sx;
+		d[s] = 0;
+		q.add(s, 0);
+		while (!q.isEmpty()) {
+			double k = q.minKey();
+			int c = q.poll();
+			if (k > d[c]) continue;
+			if (c == target) break;
+			int x = c % w, y = c / w;
+			for (int i = 0; i < 4; i++) {
+				int nx = x, ny = y;
+				switch (i) {
+					case 0: nx++; break;
+					case 1: nx--; break;
+					case 2: ny++; break;
+					default: ny--; break;
+				}
+				if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
+				if (costs.getSample(x0 + nx, y0 + ny) == BLOCKED) continue;
+				int n = ny * w + nx;
+				double g = k + costs.cost(x0 + nx, y0 + ny);
+				if (g < d[n]) {
+					d[n] = g;
+					parent[n] = c;
+					q.add(n, g);
+				}
+			}
+		}
+	}
+
+	/** Builds the region of a cluster: finds its entrances and computes
+	 * the costs between their nodes. */
+	private static class Builder implements PrecomputeStore.Builder {
+		public void build(CostLattice costs, int x0, int y0, int w, int h, ByteBuffer out) {
+			// Side may have a node on each cell before it is limited.
+			int[] pos = new int[NODES + SIDE];
+			int n = 0;
+			for (int side = 0; side < 4; side++) n = entrances(costs, x0, y0, w, h, side, pos, n);
+			int[] nx = new int[n], ny = new int[n];
+			out.put(0, (byte)n);
+			for (int k = 0; k < n; k++) {
+				out.put(POSITIONS + k, (byte)pos[k]);
+				int off = pos[k] % SIDE;
+				switch (pos[k] / SIDE) {
+					case TOP: nx[k] = off; ny[k] = 0; break;
+					case RIGHT: nx[k] = w - 1; ny[k] = off; break;
+					case BOTTOM: nx[k] = off; ny[k] = h - 1; break;
+					default: nx[k] = 0; ny[k] = off; break;
+				}
+				out.putDouble(CELLS + k * 8, costs.cost(x0 + nx[k], y0 + ny[k]));
+			}
+			double[] d = new double[w * h];
+			int[] parent = new int[w * h];
+			DistanceQueue q = new DistanceQueue();
+			for (int i = 0; i < n; i++) {
+				search(costs, x0, y0, w, h, nx[i], ny[i], -1, d, parent, q);
+				double c = costs.cost(x0 + nx[i], y0 + ny[i]);
+				for (int j = i + 1; j < n; j++) {
+					out.putDouble(PATHS + pair(i, j) * 8, d[ny[j] * w + nx[j]] + c);
+				}
+			}
+		}
+
+		/**
+		 * Nodes of the entrances on the side: each maximal span of pairs of
+		 * passable cells across the border with the same crossing cost has a
+		 * node in its middle, or nodes at most STEP apart from one end to the
+		 * other if it is at least LONG. If the
+		 * side would have more than NODES / 4 nodes, spans are not split by
+		 * the cost, and each has its cheapest crossing as a node, and also
+		 * its ends if it is at least LONG. Same for both clusters of the
+		 * border, since the pairs are the same.
+		 * @param pos border positions of the nodes are added to this
+		 * @param n amount of nodes already in pos
+		 * @return amount of nodes in pos after the side.
+		 */
+		private static int entrances(CostLattice costs, int x0, int y0, int w, int h,
+				int side, int[] pos, int n) {
+			boolean horizontal = side == TOP || side == BOTTOM;
+			int len = horizontal ? w : h;
+			// Inside and outside cells of the first pair.
+			int ix = x0, iy = y0, ox = x0, oy = y0;
+			switch (side) {
+				case TOP: oy = y0 - 1; break;
+				case RIGHT: ix = x0 + w - 1; ox = x0 + w; break;
+				case BOTTOM: iy = y0 + h - 1; oy = y0 + h; break;
+				default: ox = x0 - 1; break;
+			}
+			if (ox < 0 || oy < 0 || ox >= costs.w || oy >= costs.h) return n;
+			double[] cross = new double[len];
+			for (int i = 0; i < len; i++) {
+				int dx = horizontal ? i : 0, dy = horizontal ? 0 : i;
+				boolean open = costs.getSample(ix + dx, iy + dy) != BLOCKED 
+						&& costs.getSample(ox + dx, oy + dy) != BLOCKED;
+				cross[i] = open ? costs.cost(ix + dx, iy + dy) + costs.cost(ox + dx, oy + dy) : INF;
+			}
+			int start = n;
+			n = spans(cross, side, true, pos, n);
+			if (n - start > NODES / 4) n = spans(cross, side, false, pos, start);
+			return n;
+		}
+
+		/**
+		 * Add the nodes of the spans of crossings of the side to pos.
+		 * @param cross crossing cost of each pair of the side, INF if blocked
+		 * @param split are the spans split where the crossing cost changes
+		 * @return amount of nodes in pos after the side.
+		 */
+		private static int spans(double[] cross, int side, boolean split, int[] pos, int n) {
+			int first = -1;
+			for (int i = 0; i <= cross.length; i++) {
+				boolean open = i < cross.length && cross[i] != INF;
+				if (first != -1 && open && (!split || cross[i] == cross[first])) continue;
+				if (first != -1) {
+					int last = i - 1;
+					boolean isLong = last - first + 1 >= LONG;
+					if (split && isLong) {
+						// Evenly spaced, at most STEP apart.
+						int k = (last - first + STEP - 1) / STEP;
+						for (int j = 0; j <= k; j++) {
+							pos[n++] = side * SIDE + first + j * (last - first) / k;
+						}
+					}
+					else if (split) {
+						pos[n++] = side * SIDE + (first + last) / 2;
+					}
+					else {
+						int m = cheapest(cross, first, last);
+						if (isLong && m != first) pos[n++] = side * SIDE + first;
+						pos[n++] = side * SIDE + m;
+						if (isLong && m != last) pos[n++] = side * SIDE + last;
+					}
+				}
+				first = open ? i : -1;
+			}
+			return n;
+		}
+
+		/** Cheapest crossing of the span, the one nearest to the middle of
+		 * the span if several are as cheap. */
+		private static int cheapest(double[] cross, int first, int last) {
+			int mid = (first + last) / 2;
+			int m = mid;
+			for (int j = first; j <= last; j++) {
+				if (cross[j] < cross[m] || cross[j] == cross[m] && Math.abs(j - mid) < Math.abs(m - mid)) {
+					m = j;
+				}
+			}
+			return m;
+		}
+	}
+}
@@ -1,52 +1,69 @@
 package searchs;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import robot.SearchBot;
+import space.ChangeJournal;
 import ui.EventHandler;
 
 /**
  * D* Lite search which uses current knowledge of the nodes in re-planning phase,
  * when new edge costs are observed.
+ *
+ * Heuristic is the distance to the start, i.e. the current position, and it
+ * is not stored in the keys. When the start moves, the distance moved is
+ * added to the key modifier km instead of recomputing the keys of all the
+ * open cells, and a cell whose key is out of date is put back to the open
+ * list with its current key when it comes to the top.
  * @author slinkola
  *
  */
 public class DLite extends AbstractSearch {
-	/** Current open list, contains exactly the inconsistent states. */
-	protected PriorityQueue<DNode> open = new PriorityQueue<DNode>();
-	/** Helper data structure for fast reference to nodes in open list. */
-	protected HashMap<Integer, DNode> openMap = new HashMap<Integer, DNode>();
-	/** All the nodes generated in the current search. */
-	private HashMap<Integer, DNode> created = new HashMap<Integer, DNode>();
-	/** Current goal node. */
-	protected DNode goalNode;
-	/** Current root node, changed to the position of the travel when edge
+	/** Current open list, contains exactly the inconsistent cells. Keys are
+	 * [min(g, rhs) + h, min(g, rhs)] -pairs. */
+	protected CellHeap open = null;
+	/** Search state of all the cells generated in the current search. */
+	protected GridState state = null;
+	/** Reused buffer for the successors of the expanded cell. */
+	private final int[] succ = new int[4];
+	/** Reused buffer for the neighbors of the cell whose rhs is computed. */
+	private final int[] pred = new int[4];
+	/** Current goal cell. */
+	protected int goalCell;
+	/** Current root cell, changed to the position of the travel when edge
 	 * changes are detected. */
-	protected DNode rootNode;
+	protected int rootCell;
+	/** Position of the root cell, from which the heuristic is computed. */
+	protected int[] start = null;
+	/** Key modifier, i.e. sum of the heuristic distances the start has moved. */
+	protected double km = 0;
 	
 	public DLite(SearchBot r) {
 		super(r);
-		this.rootNode = new DNode(
-				this.root, Double.MAX_VALUE / 2, 0, Double.MAX_VALUE / 2);
-		this.goalNode = new DNode(
-				this.goal, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root), 0);
 		this.name = "D* Lite";
 	}
 	
 	public DLite(SearchBot r, int[] root, int[] goal) {
 		super(r, root, goal);
-		this.rootNode = new DNode(
-				this.root, Double.MAX_VALUE / 2, 0, Double.MAX_VALUE / 2);
-		this.goalNode = new DNode(
-				this.goal, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root), 0);
 		this.name = "D* Lite";
 		
 	}
 	
+	/** Create state with root and goal cells. */
+	private void initState() {
+		this.state = this.createState(true);
+		this.open = this.createHeap(this.state);
+		this.rootCell = this.state.index(this.root);
+		this.goalCell = this.state.index(this.goal);
+		this.start = this.root;
+		this.km = 0;
+		this.state.visit(this.rootCell, Double.MAX_VALUE / 2, 0);
+		this.state.visit(this.goalCell, Double.MAX_VALUE / 2, this.calcH(this.goal, this.root));
+		this.state.setRhs(this.goalCell, 0);
+	}
+	
 	@Override
 	/** SwingWorker's overrided method, called when publish is called for 
 	 * interim results. Adds chunks to robot's searched node list. */
@@ -78,75 +95,84 @@ public class DLite extends AbstractSearch {
 	}
 	
 	
-	/** Update state/set membership of the node. */
-	protected void updateState(DNode dn) {
-		int dnKey = dn.getHashKey();
-		
-		if (!dn.isVisited()) {
-			dn.setG(Double.MAX_VALUE / 2);
-			dn.setMembership(Node.VISITED);
+	/** First key component of the cell. */
+	protected double key1(int c) {
+		return Math.min(this.state.getG(c), this.state.getRhs(c)) + 
+				this.calcH(c, this.start) + this.km;
+	}
+	
+	/** Second key component of the cell. */
+	protected double key2(int c) {
+		return Math.min(this.state.getG(c), this.state.getRhs(c));
+	}
+	
+	/** Update state/set membership of the cell. */
+	protected void updateState(int c) {
+		if (!this.state.isVisited(c)) {
+			this.state.visit(c, Double.MAX_VALUE / 2, this.calcH(c, this.position));
 		}	
 		
-		if (!dn.equals(this.goalNode)) {
+		if (c != this.goalCell) {
 			double minG = Double.MAX_VALUE / 2;
-			Node newPrev = null;
-			for (DNode d: this.neighbors(dn)) {
-				if (d.getG() < minG) {
-					minG = d.getG();
+			int newPrev = -1;
+			int count = this.neighbors(c, this.pred);
+			for (int i = 0; i < count; i++) {
+				int d = this.pred[i];
+				if (this.state.getG(d) < minG) {
+					minG = this.state.getG(d);
 					newPrev = d;
 				}
 			}
-			//if (dn.prev != newPrev) print("new prev! " + dn.getHashKey() + " " + newPrev.getHashKey());
-			dn.setRhs(minG + this.getCost(this.map, dn.xy));
-			dn.prev = newPrev;
-			//dn.setRhs(dn.prev.getG() + this.getCost(this.map, dn.xy));
+			this.state.setRhs(c, minG + this.costs.cost(c));
+			this.state.setParent(c, newPrev);
 		}
-		if (dn.getG() != dn.getRhs()) {
-			if (dn.isOpen()) {
-				this.open.remove(dn);
-				this.open.add(dn);
-				//print("Node " + dnKey + " opened again.");
-			}
-			else {
-				dn.setMembership(Node.OPEN);
-				this.open.add(dn);
-			}
+		if (this.state.getG(c) != this.state.getRhs(c)) {
+			if (!this.state.isOpen(c)) this.state.setMembership(c, Node.OPEN);
+			this.open.update(c, this.key1(c), this.key2(c));
 		}
-		else if (dn.isOpen()) {
-			this.open.remove(dnKey);
-			dn.setMembership(Node.CLOSED);
+		else if (this.state.isOpen(c)) {
+			this.open.remove(c);
+			this.state.setMembership(c, Node.CLOSED);
 		}
 	}
 
+	/** Restore state, open list, start and key modifier of the search, e.g.
+	 * from a checkpoint, so that the search continues from them when 
+	 * started. */
+	void restore(GridState state, CellHeap open, int[] start, double km) {
+		this.state = state;
+		this.open = open;
+		this.start = start;
+		this.km = km;
+		this.rootCell = state.index(start);
+		this.goalCell = state.index(this.goal);
+	}
+
 	@Override
 	protected void search() {
-		this.open.add(this.goalNode);
-		this.created.put(this.goalNode.getHashKey(), this.goalNode);
-		this.created.put(this.rootNode.getHashKey(), this.rootNode);
-		this.goalNode.setMembership(Node.OPEN);
+		if (this.state == null) {
+			this.initState();
+			this.open.add(this.goalCell, this.key1(this.goalCell), this.key2(this.goalCell));
+			this.state.setMembership(this.goalCell, Node.OPEN);
+		}
+		else {
+			// Restored keys may be from another heuristic.
+			this.rekey();
+		}
 			
 		while (!this.inGoal()) {
 			if (this.isCancelled()) break;
-			try {
-				Thread.sleep(150);
-			}
-			catch (Exception e) { }
+			this.pause(150);
 			
-			synchronized (this.robot.positionLock) {
-				int key = Node.getHashKeyFor(this.position);
-				if (this.created.containsKey(key)) {
-					this.rootNode = this.created.get(key);
-					this.rootNode.setH(0.0);
-					print("Root: " + this.rootNode.xy[0] +" " + this.rootNode.xy[1]);
-				}
-			}
+			this.moveStart();
 			print("Starting to compute shortest path");
-			this.computeShortestPath(this.rootNode, this.goalNode);
+			this.computeShortestPath(this.rootCell);
 			print("Shortest path computed");
 			
 			if (!this.isCancelled()) {
 				this.constructPath();
-				this.publish(this.path);
+				this.publishPath();
+				if (this.batch) break;
 			
 				// Wait until changes are observed.
 				try {
@@ -167,90 +193,105 @@ public class DLite extends AbstractSearch {
 	}
 	
 	/**
-	 * Compute shortest path between DNodes r and gl. Computation is done 
-	 * "backwards", i.e. from gl to r.
+	 * Compute shortest path between root cell r and goal cell. Computation is
+	 * done "backwards", i.e. from goal to r.
 	 * @param r current position of the robot, ie. root of the search.
-	 * @param gl robot's goal.
 	 */
-	protected void computeShortestPath(DNode r, DNode gl) {
+	protected void computeShortestPath(int r) {
 		if (this.open.isEmpty()) return;
 		
-		print(this.open.peek().getRhs() + " " + r.getRhs());
-		while ((this.open.peek().compareTo(r) < 0 || r.getRhs() != r.getG())) {
+		print(this.state.getRhs(this.open.peek()) + " " + this.state.getRhs(r));
+		while (!this.open.isEmpty() && (this.topBefore(r) || this.state.getRhs(r) != this.state.getG(r))) {
 			if (this.isCancelled()) break;
-			DNode dn = this.open.remove();
-			dn.setMembership(Node.CLOSED);
-			//print(this.open.size() + " " + dn.xy[0] + " " + dn.xy[1]);
-			//print(dn.getKey()[0] + " " + dn.getKey()[1] + " " + r.getKey()[0] + " " + r.getKey()[1]);
-			//this.created.put(dn.getHashKey(), dn);
-			this.publish(dn);
-			if (dn.getG() > dn.getRhs()) {
-				dn.setG(dn.getRhs());
-				for (DNode n: this.neighbors(dn)) { 
-					this.updateState(n);
+			int c = this.open.peek();
+			double k1 = this.key1(c), k2 = this.key2(c);
+			if (this.open.peekKey() < k1 || (this.open.peekKey() == k1 && this.open.peekKey2() < k2)) {
+				// Key is from before the start moved.
+				this.open.update(c, k1, k2);
+				continue;
+			}
+			this.open.poll();
+			this.state.setMembership(c, Node.CLOSED);
+			this.publishExpanded(c);
+			if (this.state.getG(c) > this.state.getRhs(c)) {
+				this.state.setG(c, this.state.getRhs(c));
+				int count = this.neighbors(c, this.succ);
+				for (int i = 0; i < count; i++) { 
+					this.updateState(this.succ[i]);
 				}
 			}
 			else {
-				dn.setG(Double.MAX_VALUE / 2);
-				this.updateState(dn);
-				for (DNode n: this.neighbors(dn)) { 
-						this.updateState(n); 
+				this.state.setG(c, Double.MAX_VALUE / 2);
+				this.updateState(c);
+				int count = this.neighbors(c, this.succ);
+				for (int i = 0; i < count; i++) { 
+					this.updateState(this.succ[i]); 
 				}
-				
 			}
 		}
 	}
 	
+	/** Move the start to the current position, if it has been visited, and
+	 * add the heuristic distance moved to the key modifier. */
+	protected void moveStart() {
+		synchronized (this.robot.positionLock) {
+			int c = this.state.index(this.position);
+			if (c == this.rootCell || !this.state.isVisited(c)) return;
+			this.km += this.calcH(this.position, this.start);
+			this.start = this.position;
+			this.rootCell = c;
+			print("Root: " + this.position[0] +" " + this.position[1]);
+		}
+	}
 	
-	/** Create and/or retrieve all neighbors of the node. */
-	protected ArrayList<DNode> neighbors(DNode dn) {
-		ArrayList<int[]> xys = this.getXYs(dn.xy);
-		ArrayList<DNode> neighbors = new ArrayList<DNode>();
-		
-		for (int[] xy: xys) {
-			DNode n;
-			if (this.created.containsKey(Node.getHashKeyFor(xy))) {
-				n = this.created.get(Node.getHashKeyFor(xy));
- 			}
-			else {
-				n = new DNode(xy, Double.MAX_VALUE / 2, this.calcH(xy, this.position), Double.MAX_VALUE / 2);
-				this.created.put(n.getHashKey(), n);
+	/** Recompute the keys of all the open cells, e.g. when the heuristic 
+	 * has changed, and rebuild the open list in O(n). */
+	protected void rekey() {
+		int[] cells = new int[this.open.size()];
+		int n = this.open.toArray(cells);
+		this.open.clear();
+		for (int i = 0; i < n; i++) {
+			this.open.append(cells[i], this.key1(cells[i]), this.key2(cells[i]));
+		}
+		this.open.heapify();
+	}
+	
+	/** Is the key of the top cell in open list smaller than key of cell r. */
+	private boolean topBefore(int r) {
+		double k1 = this.key1(r);
+		return this.open.peekKey() < k1 || 
+				(this.open.peekKey() == k1 && this.open.peekKey2() < this.key2(r));
+	}
+	
+	/**
+	 * Generate all neighbors of the cell, i.e. visit the ones which have not 
+	 * been visited yet.
+	 * @param c cell whose neighbors are retrieved
+	 * @param out array of length 4 or more, where neighbors are written
+	 * @return amount of neighbors written.
+	 */
+	protected int neighbors(int c, int[] out) {
+		int count = this.adj.get(c, out);
+		for (int i = 0; i < count; i++) {
+			int n = out[i];
+			if (!this.state.isVisited(n)) {
+				this.state.visit(n, Double.MAX_VALUE / 2, this.calcH(n, this.position));
 			}
-			neighbors.add(n);
 		}
-		return neighbors;
+		return count;
 	} 
 	
 	
-	/** Construct shortest path for root node to goal node. */
+	/** Construct shortest path for root cell to goal cell. */
 	protected void constructPath() {
 		print("Constructing path");
-		try {
-			int key = Node.getHashKeyFor(this.position);
-			Node gn = this.created.get(key);
-			//Node gn = this.rootNode;
-			
-			if (gn != null) {
-				this.path = new ArrayList<Node>();
-				this.path.add(gn);
-				//print(gn.getHashKey() + "");
-				while (gn.prev != null) {
-					if (gn == gn.prev.prev) {
-						print("argh");
-						break;
-					}
-					this.path.add(gn.prev);
-					gn = gn.prev;	
-					//print(gn.getHashKey() +"");
-				}
-				print("Path with length " + this.path.size() + " found.");
-			}
-			else {
-				this.path = null;	
-			}
+		int c = this.state.index(this.position);
+		if (this.state.isVisited(c)) {
+			this.path = this.state.toPath(c);
+			print("Path with length " + this.path.size() + " found.");
 		}
-		catch (Exception e){
-			e.printStackTrace();
+		else {
+			this.path = null;	
 		}
 	}
 	
@@ -264,22 +305,21 @@ public class DLite extends AbstractSearch {
 	}
 	
 	/** Replan the current route with the information of the changed pixels. */
-	public synchronized DLite replan(double[][] changed) {
+	public synchronized DLite replan(ChangeJournal changes) {
 		print("Starting to replan.");
-		this.map = this.robot.getMap();
-		
-		for (int i: this.created.keySet()) {
-			DNode dn = this.created.get(i);
-			dn.setH(this.calcH(dn.xy, this.position));
-		}
+		// Search has not started yet or has already ended.
+		if (this.workspace == null) return this;
+		// Changed pixels are in the latest version of the map.
+		this.costs = this.robot.getLattice().snapshot();
+		boolean rekey = this.updateLandmarks();
+		this.moveStart();
+		if (rekey) this.rekey();
 		
-		if (changed != null) {
-			for (double[] xyv: changed) {
-				int[] xy = new int[] { (int)xyv[0], (int)xyv[1] };
-				int hashKey = Node.getHashKeyFor(xy);
-				if (this.created.containsKey(hashKey)) {
-					DNode dn = this.created.get(hashKey);
-					this.updateState(dn);
+		if (changes != null) {
+			for (int i = 0; i < changes.size(); i++) {
+				int c = changes.cell(i);
+				if (this.state.isVisited(c)) {
+					this.updateState(c);
 				}
 			}
 			print("New open size " + this.open.size());
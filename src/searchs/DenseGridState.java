@@ -0,0 +1,90 @@
+package searchs;
+
+import java.util.Arrays;
+
+import space.CellLayout;
+
+/**
+ * Grid state with all per-cell search values in flat primitive arrays over
+ * the whole grid. Fastest when the search visits a large part of the map.
+ *
+ * Each cell is stamped with the generation in which it was visited, and
+ * cells with older stamps are not visited. reset() just starts a new
+ * generation, so the arrays are never zeroed between searches.
+ * @author slinkola
+ *
+ */
+public class DenseGridState extends GridState {
+	/** Cost via shortest path found so far for each cell. */
+	private final double[] g;
+	/** One step lookahead cost for each cell, null if not needed. */
+	private final double[] rhs;
+	/** Heuristic estimate for each cell. */
+	private final double[] hs;
+	/** Index of the cell from which the cell was reached, -1 if none. */
+	private final int[] parent;
+	/** Set membership of each cell. */
+	private final byte[] member;
+	/** Position of each cell in the open list it is in. */
+	private final int[] heapIndex;
+	/** Generation in which each cell was visited. */
+	private final int[] stamp;
+	/** Current generation. */
+	private int generation = 1;
+
+	/**
+	 * @param layout cell order of the grid
+	 * @param rhs allocate storage for rhs -values
+	 */
+	public DenseGridState(CellLayout layout, boolean rhs) {
+		super(layout);
+		int size = layout.size();
+		this.g = new double[size];
+		this.rhs = rhs ? new double[size] : null;
+		this.hs = new double[size];
+		this.parent = new int[size];
+		this.member = new byte[size];
+		this.heapIndex = new int[size];
+		this.stamp = new int[size];
+	}
+
+	public DenseGridState(CellLayout layout) {
+		this(layout, false);
+	}
+
+	protected void init(int c, double g, double h) {
+		this.g[c] = g;
+		if (this.rhs != null) this.rhs[c] = g;
+		this.hs[c] = h;
+		this.parent[c] = -1;
+		this.member[c] = Node.VISITED;
+		this.stamp[c] = this.generation;
+	}
+
+	protected void clear() {
+		if (++this.generation == Integer.MAX_VALUE) {
+			Arrays.fill(this.stamp, 0);
+			this.generation = 1;
+		}
+	}
+
+	public StateStoreType getType() { return StateStoreType.DENSE; }
+	public boolean hasRhs() { return this.rhs != null; }
+
+	public double getG(int c) { return this.g[c]; }
+	public void setG(int c, double g) { this.g[c] = g; }
+	public double getRhs(int c) { return this.rhs[c]; }
+	public void setRhs(int c, double rhs) { this.rhs[c] = rhs; }
+	public double getH(int c) { return this.hs[c]; }
+	public void setH(int c, double h) { this.hs[c] = h; }
+	public int getParent(int c) { return this.parent[c]; }
+	public void setParent(int c, int p) { this.parent[c] = p; }
+	public int getHeapIndex(int c) { return this.heapIndex[c]; }
+	public void setHeapIndex(int c, int i) { this.heapIndex[c] = i; }
+	public int getMembership(int c) {
+		return this.stamp[c] == this.generation ? this.member[c] : Node.NOT_VISITED;
+	}
+	public void setMembership(int c, int setType) {
+		this.member[c] = (byte)setType;
+	}
+}
@@ -0,0 +1,59 @@
+package searchs;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of cells with costs, which allows duplicate cells. Used by
+ * the Dijkstra passes which keep their costs in arrays instead of a grid
+ * state, so cells whose cost is lowered are added again and the stale 
+ * entries are skipped when polled.
+ * @author slinkola
+ *
+ */
+class DistanceQueue {
+	private int[] cells = new int[1024];
+	private double[] keys = new double[1024];
+	private int size = 0;
+
+	boolean isEmpty() { return this.size == 0; }
+
+	double minKey() { return this.keys[0]; }
+
+	void clear() { this.size = 0; }
+
+	void add(int c, double k) {
+		if (this.size == this.cells.length) {
+			this.cells = Arrays.copyOf(this.cells, 2 * this.size);
+			this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+		}
+		int i = this.size++;
+		while (i > 0) {
+			int p = (i - 1) >> 1;
+			if (this.keys[p] <= k) break;
+			this.cells[i] = this.cells[p];
+			this.keys[i] = this.keys[p];
+			i = p;
+		}
+		this.cells[i] = c;
+		this.keys[i] = k;
+	}
+
+	int poll() {
+		int top = this.cells[0];
+		int c = this.cells[--this.size];
+		double k = this.keys[this.size];
+		int i = 0;
+		while (true) {
+			int m = 2 * i + 1;
+			if (m >= this.size) break;
+			if (m + 1 < this.size && this.keys[m + 1] < this.keys[m]) m++;
+			if (this.keys[m] >= k) break;
+			this.cells[i] = this.cells[m];
+			this.keys[i] = this.keys[m];
+			i = m;
+		}
+		this.cells[i] = c;
+		this.keys[i] = k;
+		return top;
+	}
+}
@@ -0,0 +1,183 @@
+package searchs;
+
+import java.util.ArrayList;
+
+import space.CellLayout;
+
+/**
+ * State store for heuristic searches in 2D -grid world. Instead of one Node
+ * object per generated pixel, all per-cell search values are kept in
+ * primitive storage indexed by the cell index of the CellLayout shared with
+ * the cost lattice. DenseGridState keeps flat arrays over the whole grid and
+ * SparseGridState an open addressing hash table of the visited cells only.
+ * OffHeapGridState keeps the same arrays as DenseGridState outside the Java
+ * heap. Use create() to pick one of them.
+ *
+ * Set membership uses the same final variables as Node, i.e. NOT_VISITED,
+ * VISITED, CLOSED, OPEN and INCONSISTENT. Values of the cells which are not
+ * visited are undefined and should be initialized with visit().
+ *
+ * States can be reused for new searches with reset(), which clears all the
+ * cells in O(1) by starting a new generation. Cells which were not visited
+ * in the current generation are not visited.
+ *
+ * Node objects are created only when the path is constructed with toPath().
+ * @author slinkola
+ *
+ */
+public abstract class GridState {
+	/** Maps with at most this many cells always use dense storage. */
+	public static final long DENSE_LIMIT = 1 << 20;
+	/** Sparse storage is used when the expected amount of visited cells times
+	 * this is smaller than the amount of cells in the map. */
+	public static final int SPARSE_RATIO = 8;
+	/** Width of the grid. */
+	public final int w;
+	/** Height of the grid. */
+	public final int h;
+	/** Cell order of the grid. */
+	public final CellLayout layout;
+	/** Indices of all the visited cells in the order they were visited. */
+	private int[] visited = new int[1024];
+	/** Amount of visited cells. */
+	private int visitedCount = 0;
+
+	protected GridState(CellLayout layout) {
+		this.w = layout.w;
+		this.h = layout.h;
+		this.layout = layout;
+	}
+
+	/** Resolve AUTO state store type to DENSE or SPARSE. */
+	public static StateStoreType resolve(CellLayout layout, StateStoreType type, 
+			long expected) {
+		if (type != StateStoreType.AUTO) return type;
+		long cells = layout.size();
+		boolean sparse = cells > DENSE_LIMIT && expected * SPARSE_RATIO < cells;
+		return sparse ? StateStoreType.SPARSE : StateStoreType.DENSE;
+	}
+
+	/**
+	 * Create state store for the grid.
+	 * @param layout cell order of the grid
+	 * @param type storage type, AUTO picks one by map size and exploration
+	 * @param expected expected amount of visited cells
+	 * @param rhs does the search need rhs -values
+	 * @return new empty state.
+	 */
+	public static GridState create(CellLayout layout, StateStoreType type,
+			long expected, boolean rhs) {
+		switch (resolve(layout, type, expected)) {
+			case SPARSE:
+				return new SparseGridState(layout, (int)Math.min(expected, layout.size()));
+			case OFF_HEAP:
+				return new OffHeapGridState(layout, rhs);
+			default:
+				return new DenseGridState(layout, rhs);
+		}
+	}
+
+	/** Cell index of x, y -location. */
+	public int index(int x, int y) { return this.layout.index(x, y); }
+	/** Cell index of x, y -pair. */
+	public int index(int[] xy) { return this.layout.index(xy[0], xy[1]); }
+	/** X-coordinate of the cell. */
+	public int x(int c) { return this.layout.x(c); }
+	/** Y-coordinate of the cell. */
+	public int y(int c) { return this.layout.y(c); }
+	/** Coordinates of the cell as a new x, y -pair. */
+	public int[] xy(int c) { return new int[] {this.layout.x(c), this.layout.y(c)}; }
+
+	/**
+	 * Visit cell for the first time, i.e. initialize its values. Cell is set
+	 * as VISITED and it has no parent. Rhs is set to the same value as g.
+	 * @param c cell index
+	 * @param g cost of the cell
+	 * @param h heuristic estimate of the cell
+	 */
+	public void visit(int c, double g, double h) {
+		if (this.getMembership(c) == Node.NOT_VISITED) {
+			if (this.visitedCount == this.visited.length) {
+				int[] a = new int[this.visited.length * 2];
+				System.arraycopy(this.visited, 0, a, 0, this.visitedCount);
+				this.visited = a;
+			}
+			this.visited[this.visitedCount++] = c;
+		}
+		this.init(c, g, h);
+	}
+
+	/** Set values of the cell when it is visited. */
+	protected abstract void init(int c, double g, double h);
+
+	/** Mark all the cells not visited, so that the state can be used for a
+	 * new search. */
+	public void reset() {
+		this.visitedCount = 0;
+		this.clear();
+	}
+
+	/** Clear the per-cell values, should be O(1). */
+	protected abstract void clear();
+
+	/** Release storage which is not freed by the garbage collector. State
+	 * must not be used after this. Does nothing for heap stores. */
+	public void dispose() { }
+
+	/** Type of this state store, i.e. DENSE or SPARSE. */
+	public abstract StateStoreType getType();
+
+	/** Does the store keep rhs -values. */
+	public abstract boolean hasRhs();
+
+	public abstract double getG(int c);
+	public abstract void setG(int c, double g);
+	public abstract double getRhs(int c);
+	public abstract void setRhs(int c, double rhs);
+	public abstract double getH(int c);
+	public abstract void setH(int c, double h);
+	public abstract int getParent(int c);
+	public abstract void setParent(int c, int p);
+	public abstract int getHeapIndex(int c);
+	public abstract void setHeapIndex(int c, int i);
+
+	/** Get current set membership of the cell. */
+	public abstract int getMembership(int c);
+	/** Change the current set membership of the cell. Use one of the final
+	 * variables in Node. */
+	public abstract void setMembership(int c, int setType);
+
+	public boolean isVisited(int c) { return this.getMembership(c) != Node.NOT_VISITED; }
+	public boolean isClosed(int c) { return this.getMembership(c) == Node.CLOSED; }
+	public boolean isOpen(int c) { return this.getMembership(c) == Node.OPEN; }
+	public boolean isInconsistent(int c) {
+		return this.getMembership(c) == Node.INCONSISTENT;
+	}
+
+	/** Amount of cells visited so far. */
+	public int visitedCount() { return this.visitedCount; }
+	/** Get i:th visited cell. */
+	public int visitedCell(int i) { return this.visited[i]; }
+
+	/**
+	 * Construct path from the cell by following the parents. Only place where
+	 * Node objects are created from the state.
+	 * @param c cell index where path starts
+	 * @return path as a list of nodes, each node's prev being the next node in
+	 * the list.
+	 */
+	public ArrayList<Node> toPath(int c) {
+		ArrayList<Node> path = new ArrayList<Node>();
+		Node last = null;
+		while (c != -1) {
+			Node n = new Node(this.xy(c), this.getG(c), this.getH(c));
+			if (last != null) last.prev = n;
+			path.add(n);
+			last = n;
+			c = this.getParent(c);
+			// Guard against cycles in parent chain.
+			if (path.size() > this.visitedCount) break;
+		}
+		return path;
+	}
+}
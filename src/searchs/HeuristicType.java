@@ -0,0 +1,5 @@
+package searchs;
+
+/** Heuristics of the grid searches. LANDMARKS takes the larger of the
+ * Manhattan distance and the bound of the robot's landmark tables. */
+public enum HeuristicType { MANHATTAN, LANDMARKS }
@@ -0,0 +1,244 @@
+package searchs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import space.ChangeJournal;
+import space.CostLattice;
+import util.Parallel;
+
+/**
+ * Landmark (ALT) heuristic tables of a cost lattice. Each landmark has the
+ * cost of the cheapest path from the landmark to every cell, and a lower
+ * bound of the cost between two cells is the largest triangle inequality
+ * bound of the landmarks.
+ *
+ * Path cost is the sum of the costs of the cells of the path, counting the
+ * first cell but not the last one, which is the cost the searches compute
+ * from the root or goal. Cost from the cell to the landmark is then the cost
+ * from the landmark plus the cost of the cell minus the cost of the
+ * landmark, so one table per landmark gives both the to- and from-bounds.
+ *
+ * Landmarks are the passable cells farthest from the center of the map in
+ * k sectors around it, so the tables can be computed in parallel. Tables
+ * are computed on a snapshot of the lattice and are not changed after that;
+ * update() repairs a copy of them for the changed cells.
+ * @author slinkola
+ *
+ */
+public class LandmarkTable {
+	/** Default amount of landmarks. */
+	public static final int DEFAULT_LANDMARKS = 8;
+	/** Cost of the cells which can not be reached from the landmark. */
+	private static final double INF = Double.POSITIVE_INFINITY;
+	/** Relative amount the bounds are lowered by. Bounds are nearly exact on
+	 * the cheapest paths, where the keys of the cells would then tie with
+	 * the key of the start and rounding errors in the sums of the costs 
+	 * would decide the order. Scaled bound is still consistent. */
+	private static final double SLACK = 1e-6;
+	/** Snapshot of the lattice the tables were computed on. */
+	private final CostLattice costs;
+	/** Landmark cells. */
+	private final int[] landmarks;
+	/** Cost from each landmark to each cell. */
+	private final double[][] dist;
+
+	private LandmarkTable(CostLattice costs, int[] landmarks, double[][] dist) {
+		this.costs = costs;
+		this.landmarks = landmarks;
+		this.dist = dist;
+	}
+
+	/**
+	 * Select landmarks and compute their tables.
+	 * @param costs lattice, whose snapshot is used
+	 * @param k amount of landmarks
+	 * @param threads amount of threads computing the tables
+	 * @return landmark tables of the lattice.
+	 */
+	public static LandmarkTable build(CostLattice costs, int k, int threads) {
+		final CostLattice snap = costs.snapshot();
+		final Neighbors adj = Neighbors.of(snap.layout);
+		final int[] landmarks = select(snap, k);
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int i = 0; i < landmarks.length; i++) {
+			final int l = landmarks[i];
+			tasks.add(new Callable<double[]>() {
+				public double[] call() {
+					double[] d = new double[snap.layout.size()];
+					Arrays.fill(d, INF);
+					d[l] = 0;
+					DistanceQueue q = new DistanceQueue();
+					q.add(l, 0);
+					propagate(snap, adj, d, q);
+					return d;
+				}
+			});
+		}
+		List<double[]> dist = Parallel.invoke(tasks, threads, "Landmark computation");
+		return new LandmarkTable(snap, landmarks, dist.toArray(new double[dist.size()][]));
+	}
+
+	/** Amount of landmarks. */
+	public int size() { return this.landmarks.length; }
+
+	/** Landmark cell i. */
+	public int landmark(int i) { return this.landmarks[i]; }
+
+	/**
+	 * Lower bound of the cost of the path from cell p to cell c, counting
+	 * the cost of p but not c.
+	 * @param p first cell of the path
+	 * @param c last cell of the path
+	 * @return largest bound of the landmarks, 0 if there are none.
+	 */
+	public double bound(int p, int c) {
+		double cp = this.costs.cost(p), cc = this.costs.cost(c);
+		double best = 0;
+		for (int i = 0; i < this.dist.length; i++) {
+			double[] d = this.dist[i];
+			double dp = d[p], dc = d[c];
+			if (dp == INF || dc == INF) continue;
+			// From the landmark through p to c, and from p through c to the
+			// landmark.
+			double a = dc - dp;
+			double b = (dp + cp) - (dc + cc);
+			if (a > best) best = a;
+			if (b > best) best = b;
+		}
+		return best * (1 - SLACK);
+	}
+
+	/**
+	 * Repair the tables for the changed cells of the lattice. Costs from the
+	 * landmarks which went through cells whose cost increased are raised
+	 * and recomputed from their unchanged neighbors, and the lowered costs
+	 * are propagated from the cells whose cost decreased, so only the parts
+	 * of the tables which changed are computed again.
+	 * @param changes journal of the changed cells
+	 * @param costs lattice with the changes applied, whose snapshot is used
+	 * @param threads amount of threads repairing the tables
+	 * @return new tables for the changed lattice; this is not changed.
+	 */
+	public LandmarkTable update(final ChangeJournal changes, CostLattice costs, int threads) {
+		final CostLattice old = this.costs;
+		final CostLattice snap = costs.snapshot();
+		final Neighbors adj = Neighbors.of(snap.layout);
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int i = 0; i < this.landmarks.length; i++) {
+			final int l = this.landmarks[i];
+			final double[] src = this.dist[i];
+			tasks.add(new Callable<double[]>() {
+				public double[] call() {
+					double[] d = Arrays.copyOf(src, src.length);
+					repair(old, snap, adj, changes, l, d);
+					return d;
+				}
+			});
+		}
+		List<double[]> dist = Parallel.invoke(tasks, threads, "Landmark computation");
+		return new LandmarkTable(snap, this.landmarks, dist.toArray(new double[dist.size()][]));
+	}
+
+	/** Repair the costs from landmark l for the changed cells. */
+	private static void repair(CostLattice old, CostLattice costs, Neighbors adj,
+			ChangeJournal changes, int l, double[] d) {
+		int[] n = new int[4];
+		CellList check = new CellList();
+		CellList raised = new CellList();
+		for (int i = 0; i < changes.size(); i++) {
+			int c = changes.cell(i);
+			if (costs.cost(c) <= old.cost(c) || d[c] == INF) continue;
+			int count = adj.get(c, n);
+			for (int j = 0; j < count; j++) check.add(n[j]);
+		}
+		// Raise the cells which lost the neighbor their cost came through,
+		// and check again the neighbors of the raised cells.
+		while (!check.isEmpty()) {
+			int c = check.pop();
+			if (c == l || d[c] == INF || supported(costs, adj, d, c, n)) continue;
+			d[c] = INF;
+			raised.add(c);
+			int count = adj.get(c, n);
+			for (int j = 0; j < count; j++) {
+				if (d[n[j]] != INF) check.add(n[j]);
+			}
+		}
+		DistanceQueue q = new DistanceQueue();
+		for (int i = 0; i < raised.size(); i++) {
+			int c = raised.get(i);
+			int count = adj.get(c, n);
+			for (int j = 0; j < count; j++) {
+				double g = d[n[j]] + costs.cost(n[j]);
+				if (g < d[c]) d[c] = g;
+			}
+			if (d[c] != INF) q.add(c, d[c]);
+		}
+		for (int i = 0; i < changes.size(); i++) {
+			int c = changes.cell(i);
+			if (costs.cost(c) < old.cost(c) && d[c] != INF) q.add(c, d[c]);
+		}
+		propagate(costs, adj, d, q);
+	}
+
+	/** Does cell c get its cost from one of its neighbors. */
+	private static boolean supported(CostLattice costs, Neighbors adj, double[] d, int c, int[] n) {
+		int count = adj.get(c, n);
+		for (int j = 0; j < count; j++) {
+			if (d[n[j]] != INF && d[n[j]] + costs.cost(n[j]) == d[c]) return true;
+		}
+		return false;
+	}
+
+	/** Dijkstra from the cells in the queue, lowering the costs of d. */
+	private static void propagate(CostLattice costs, Neighbors adj, double[] d, DistanceQueue q) {
+		int[] n = new int[4];
+		while (!q.isEmpty()) {
+			double k = q.minKey();
+			int c = q.poll();
+			// Stale entry, cost of the cell has been lowered after adding.
+			if (k > d[c]) continue;
+			double g = k + costs.cost(c);
+			int count = adj.get(c, n);
+			for (int j = 0; j < count; j++) {
+				if (g < d[n[j]]) {
+					d[n[j]] = g;
+					q.add(n[j], g);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Select k landmarks: the passable cell farthest from the center of the
+	 * map in each of the k equal sectors around the center. Sectors without
+	 * passable cells have no landmark.
+	 */
+	private static int[] select(CostLattice costs, int k) {
+		double cx = (costs.w - 1) / 2.0, cy = (costs.h - 1) / 2.0;
+		int[] best = new int[k];
+		double[] far = new double[k];
+		Arrays.fill(best, -1);
+		Arrays.fill(far, -1);
+		for (int y = 0; y < costs.h; y++) {
+			for (int x = 0; x < costs.w; x++) {
+				if (costs.getSample(x, y) == 0) continue;
+				double dx = x - cx, dy = y - cy;
+				double a = Math.atan2(dy, dx) + Math.PI;
+				int s = Math.min(k - 1, (int)(a / (2 * Math.PI) * k));
+				double r = dx * dx + dy * dy;
+				if (r > far[s]) {
+					far[s] = r;
+					best[s] = costs.layout.index(x, y);
+				}
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < k; i++) {
+			if (best[i] != -1) best[count++] = best[i];
+		}
+		return Arrays.copyOf(best, count);
+	}
+}
@@ -0,0 +1,143 @@
+package searchs;
+
+import java.util.Random;
+
+import space.CellLayout;
+import space.CostLattice;
+
+/**
+ * Benchmark which compares ROW_MAJOR and TILED cell layouts. Runs the same
+ * A* expansion loop as AStar on a random cost lattice with both layouts and
+ * prints expansions per second and cache misses per expansion.
+ *
+ * Cache misses are counted with a simulated 32 kB, 8-way set associative LRU
+ * cache of 64 byte lines, fed with the addresses of the per-cell state and
+ * cost arrays that the expansion loop touches. For hardware counters run
+ * the benchmark under e.g. "perf stat -e cache-misses".
+ *
+ * Usage: java searchs.LayoutBenchmark [size] [rounds]
+ * @author slinkola
+ *
+ */
+public class LayoutBenchmark {
+	/** Cache line size in bytes. */
+	private static final int LINE = 64;
+	/** Amount of sets in the simulated cache. */
+	private static final int SETS = 64;
+	/** Amount of ways in each set of the simulated cache. */
+	private static final int WAYS = 8;
+
+	/** Line tags of the simulated cache, most recently used first in set. */
+	private final long[] tags = new long[SETS * WAYS];
+	/** Amount of simulated accesses. */
+	private long accesses = 0;
+	/** Amount of simulated misses. */
+	private long misses = 0;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		System.out.println("Map " + size + "x" + size + ", " + rounds + " rounds.");
+		for (CellLayout.Type type: CellLayout.Type.values()) {
+			CostLattice costs = randomLattice(new CellLayout(size, size, type), 3);
+			int[] root = {size / 8, size / 8};
+			int[] goal = {size - size / 8, size - size / 8};
+			// Warm up before timing.
+			search(costs, root, goal, null);
+			long expanded = 0;
+			long t0 = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				expanded += search(costs, root, goal, null);
+			}
+			double s = (System.nanoTime() - t0) / 1e9;
+			LayoutBenchmark cache = new LayoutBenchmark();
+			int n = search(costs, root, goal, cache);
+			System.out.printf("%-9s %10.0f expansions/s  %6.2f misses/expansion  (%d expansions)%n",
+					type, expanded / s, (double)cache.misses / n, n);
+		}
+	}
+
+	/** Lattice with random gray scale samples, 10% of them nearly black. */
+	private static CostLattice randomLattice(CellLayout layout, long seed) {
+		CostLattice costs = new CostLattice(layout);
+		Random rnd = new Random(seed);
+		for (int y = 0; y < layout.h; y++) {
+			for (int x = 0; x < layout.w; x++) {
+				int s = rnd.nextInt(10) == 0 ? rnd.nextInt(3) : 100 + rnd.nextInt(156);
+				costs.setSample(x, y, s);
+			}
+		}
+		return costs;
+	}
+
+	/**
+	 * A* from root to goal, same expansion loop as in AStar.
+	 * @param cache simulated cache to feed with the memory accesses or null
+	 * @return amount of expanded cells.
+	 */
+	private static int search(CostLattice costs, int[] root, int[] goal, LayoutBenchmark cache) {
+		CellLayout layout = costs.layout;
+		GridState state = new DenseGridState(layout);
+		OpenList open = new CellHeap(state);
+		Neighbors adj = new Neighbors(layout);
+		int[] succ = new int[4];
+		int r = layout.index(root[0], root[1]);
+		int gc = layout.index(goal[0], goal[1]);
+		state.visit(r, 0, h(layout, r, goal));
+		open.add(r, state.getH(r));
+		int expanded = 0;
+		while (!open.isEmpty()) {
+			int n = open.poll();
+			expanded++;
+			if (n == gc) break;
+			state.setMembership(n, Node.CLOSED);
+			double ng = state.getG(n);
+			int count = adj.get(n, succ);
+			for (int i = 0; i < count; i++) {
+				int c = succ[i];
+				if (cache != null) cache.touch(c);
+				double g = ng + costs.cost(c);
+				if (state.isVisited(c)) {
+					if (g >= state.getG(c)) continue;
+					state.setG(c, g);
+					state.setParent(c, n);
+					open.update(c, g + state.getH(c));
+				}
+				else {
+					state.visit(c, g, h(layout, c, goal));
+					state.setParent(c, n);
+					open.add(c, g + state.getH(c));
+				}
+			}
+		}
+		return expanded;
+	}
+
+	private static double h(CellLayout layout, int c, int[] p) {
+		return Math.abs(layout.x(c) - p[0]) + Math.abs(layout.y(c) - p[1]);
+	}
+
+	/** Simulate accesses to the per-cell arrays of cell c: membership, g and
+	 * cost. Arrays are placed far apart in the simulated address space. */
+	private void touch(int c) {
+		this.access((1L << 40) + c);
+		this.access((2L << 40) + 8L * c);
+		this.access((3L << 40) + c);
+	}
+
+	private void access(long address) {
+		long tag = address / LINE;
+		int base = (int)(tag % SETS) * WAYS;
+		this.accesses++;
+		int hit = WAYS - 1;
+		for (int i = 0; i < WAYS; i++) {
+			if (this.tags[base + i] == tag) {
+				hit = i;
+				break;
+			}
+		}
+		if (this.tags[base + hit] != tag) this.misses++;
+		System.arraycopy(this.tags, base, this.tags, base + 1, hit);
+		this.tags[base] = tag;
+	}
+}
@@ -1,25 +1,25 @@
 package searchs;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import robot.SearchBot;
+import space.ChangeJournal;
 import ui.EventHandler;
 
 /** Class that implements naive anytime search by inflating A* heuristic with
  * epsilon modifier. */
 public class NaiveAnytime extends AbstractSearch {
-	/** Current open list. */
-	PriorityQueue<EpsNode> open = new PriorityQueue<EpsNode>();
-	/** All created nodes. */
-	private HashMap<Integer, EpsNode> created = new HashMap<Integer, EpsNode>();
+	/** Current open list of cell indices ordered by g + e * h. */
+	OpenList open = null;
+	/** Reused buffer for the successors of the expanded cell. */
+	private final int[] succ = new int[4];
+	/** Search state of all the cells in current iteration. */
+	private GridState state = null;
 	
-	private EpsNode rootNode = null;
-	private EpsNode goalNode = null;
+	private int rootCell = -1;
+	private int goalCell = -1;
 	
 	protected double e = 4;
 
@@ -31,18 +31,19 @@ public class NaiveAnytime extends AbstractSearch {
 	public NaiveAnytime(SearchBot r, int[] root, int[] goal) {
 		// Search from goal to root.
 		super(r, root, goal);
-		this.rootNode = new EpsNode(this.root, Double.MAX_VALUE / 2, 0, this.e);
-		this.goalNode = new EpsNode(this.goal, 0, this.calcH(this.goal, this.root), this.e);
 		this.name = "NAA*";
 	}
 	
 	public NaiveAnytime(SearchBot r, int[] root, int[] goal, double eps) {
 		this(r, root, goal);
-		this.rootNode = new EpsNode(this.root, Double.MAX_VALUE / 2, 0, this.e);
-		this.goalNode = new EpsNode(this.goal, 0, this.calcH(this.goal, this.root), this.e);
 		this.e = eps;
 	}
 	
+	/** Key of the cell, g + e * h. */
+	protected double key(int c) {
+		return this.state.getG(c) + this.e * this.state.getH(c);
+	}
+	
 	@Override
 	/** SwingWorker's overrided method, called when publish is called for 
 	 * interim results. Adds chunks to robot's searched node list. */
@@ -82,10 +83,10 @@ public class NaiveAnytime extends AbstractSearch {
 	@Override
 	/**
 	 * Replan the route
-	 * @params changed omitted, since A* does not remember anything and thus
+	 * @params changes omitted, since A* does not remember anything and thus
 	 * cannot copy with changed information.
 	 */
-	public synchronized NaiveAnytime replan(double[][] changed) {
+	public synchronized NaiveAnytime replan(ChangeJournal changes) {
 		if (!this.isDone()) 
 			this.cancel(true);
 		while (!this.isDone()) { 
@@ -106,154 +107,71 @@ public class NaiveAnytime extends AbstractSearch {
 	 */
 	protected synchronized void search() {
 		
-		Node[] publishArray = new Node[2000];
-		
 		while (this.e >= 1.0) {
-			int i = 0;
-			this.robot.clearSearched();
+			this.clearSearched();
 
-			this.open = null;
-			this.open = new PriorityQueue<EpsNode>();
-			this.created = null;
-			this.created = new HashMap<Integer, EpsNode>();
-			 
-			this.rootNode = new EpsNode(this.position, Double.MAX_VALUE / 2, 0, this.e);
-			//this.rootNode.setMembership(Node.CLOSED);
-			//this.created.put(this.rootNode.getHashKey(), this.rootNode);
-			this.goalNode = new EpsNode(this.goal, 0, this.calcH(this.goal, this.rootNode.xy), this.e);
-			this.goalNode.setMembership(Node.OPEN);
-			this.created.put(this.goalNode.getHashKey(), this.goalNode);
-			this.open.add(this.goalNode);
+			this.state = this.createState(false);
+			this.open = this.createOpenList(this.state);
+			
+			int[] rxy = this.getPosition();
+			this.rootCell = this.state.index(rxy);
+			this.goalCell = this.state.index(this.goal);
+			this.state.visit(this.goalCell, 0, this.calcH(this.goal, rxy));
+			this.state.setMembership(this.goalCell, Node.OPEN);
+			this.open.add(this.goalCell, this.key(this.goalCell));
 			
 			boolean found = false;
 			
-			print("Root: " + this.rootNode.xy[0] +" " + this.rootNode.xy[1]);
+			print("Root: " + rxy[0] +" " + rxy[1]);
 			print("Epsilon = " + this.e);
 			print("Starting to compute path.");
 			
 			while (!found && !this.open.isEmpty() && !this.isCancelled()) {
-				EpsNode n = this.open.remove();
-				n.setMembership(Node.CLOSED);
-				this.publish(n);
+				int n = this.open.poll();
+				this.state.setMembership(n, Node.CLOSED);
+				this.publishExpanded(n);
 				
-				if (n.getHashKey() == this.rootNode.getHashKey()) { // Searching backwards
+				if (n == this.rootCell) { // Searching backwards
 					print("Path computed.");
 					found = true;
 					this.constructPath();
-					//if (this.e == 0) 
-						this.publish(this.path);
+					this.publishPath();
 					break;
 				}
 				
-				for (EpsNode c: this.neighbors(n)) {
-					int key = c.getHashKey();
-					if (this.created.containsKey(key)) {
-						double cost = this.getCost(this.map, c.xy);
-						if (c.isClosed()) {
-							if (n.getG() + cost >= c.getG()) { 
-								continue;
-							}
-							else {
-								c.setG(n.getG() + cost);
-								c.prev = n;
-								c.setMembership(Node.OPEN);
-								this.open.add(c);
-							}
-						}
-						else if (c.isOpen()) {
-							if (c.getG() > n.getG() + cost) {
-								c.setG(n.getG() + cost);
-								c.prev = n;
-								this.open.remove(c);
-								this.open.add(c);
-							}	
-						}
+				double ng = this.state.getG(n);
+				int count = this.adj.get(n, this.succ);
+				for (int i = 0; i < count; i++) {
+					int c = this.succ[i];
+					double g = ng + this.costs.cost(c);
+					if (this.state.isVisited(c)) {
+						if (g >= this.state.getG(c)) continue;
+						this.state.setG(c, g);
+						this.state.setParent(c, n);
+						this.state.setMembership(c, Node.OPEN);
+						this.open.update(c, this.key(c));
 					}
 					else {
-						c.setMembership(Node.OPEN);
-						this.open.add(c);	
-						this.created.put(key, c);
+						this.state.visit(c, g, this.calcH(c, rxy));
+						this.state.setParent(c, n);
+						this.state.setMembership(c, Node.OPEN);
+						this.open.add(c, this.key(c));
 					}
 				}
-				/*
-				publishArray[i] = n;
-				if (i == publishArray.length - 1) {
-					this.publish((Object[])publishArray);
-					i = 0;
-				}
-				else {
-					i++;
-				}
-				*/
 			}
-			if (found) {
-				if (i != 0 && i < publishArray.length - 1) {
-					Node[] a = new Node[i];
-					for (int j = 0; j < i; j++) a[j] = publishArray[j];
-					this.publish((Object[])a);
-				}
-			}
-			else {
+			if (!found) {
 				print("Path not found.");
 				break;
 			}
 			
 			this.e -= 0.5;
-//			 testing
-//			try {
-//				Thread.sleep(150);
-//			}
-//			catch (InterruptedException ex) { }
 		}
 		
 	}
 	
-	/**
-	 * Create neighbor nodes for given node.
-	 * 
-	 * @param n Node whose neighbors are created.
-	 * @return
-	 */
-	/** Create and/or retrieve all neighbors of the node. */
-	protected ArrayList<EpsNode> neighbors(EpsNode an) {
-		ArrayList<int[]> xys = this.getXYs(an.xy);
-		ArrayList<EpsNode> neighbors = new ArrayList<EpsNode>();
-		
-		for (int[] xy: xys) {
-			EpsNode n;
-
-			if (xy[0] == this.rootNode.xy[0] && xy[1] == this.rootNode.xy[1]) {
-				n = this.rootNode;	
-			}
-			else if (this.created.containsKey(Node.getHashKeyFor(xy))) {
-				n = this.created.get(Node.getHashKeyFor(xy));
- 			} 
-			else {
-				n = new EpsNode(xy, an.getG() + this.getCost(this.map, xy) , this.calcH(xy, this.root), this.e);
-				n.prev = an;
-			}
-			neighbors.add(n);
-		}
-		return neighbors;
-	} 
-	
-	/** Construct shortest path for root node to goal node. */
+	/** Construct shortest path for root cell to goal cell. */
 	protected void constructPath() {
 		print("Constructing path.");
-		Node gn = this.rootNode;
-		if (gn != null) {
-			//EventHandler.printInfo(String.format("Goal node found with %d expansions", expanded));
-			this.path = new ArrayList<Node>();
-			this.path.add(gn);
-			while (gn.prev != null) {
-				this.path.add(gn.prev);
-				gn = gn.prev;
-			}
-		}
-		else {
-			this.path = null;	
-		}
+		this.path = this.state.toPath(this.rootCell);
 	}
-	
-	
 }
@@ -0,0 +1,160 @@
+package searchs;
+
+import space.CellLayout;
+
+/**
+ * Allocation-free successor generation for 4-connected grid of cells indexed
+ * by a CellLayout. Neighbors of a cell are found with a few index operations
+ * instead of bounds checks and new coordinate arrays for every expansion.
+ * Border mask of a cell, i.e. which neighbors exist, is derived from the
+ * cell index: only the tiles on the border of the grid are marked, one byte
+ * per tile, so no per-cell array is kept.
+ * With ROW_MAJOR layout neighbors are constant offsets of the cell index and
+ * with TILED layout they are found with Morton code arithmetic inside the
+ * tile and by stepping to the adjacent tile on tile borders.
+ *
+ * Neighbors are given in the same order as before: left, up, right, down.
+ * @author slinkola
+ *
+ */
+public class Neighbors {
+	/** Mask bit for the cell to the left, i.e. x - 1. */
+	public static final int LEFT = 1;
+	/** Mask bit for the cell above, i.e. y - 1. */
+	public static final int UP = 2;
+	/** Mask bit for the cell to the right, i.e. x + 1. */
+	public static final int RIGHT = 4;
+	/** Mask bit for the cell below, i.e. y + 1. */
+	public static final int DOWN = 8;
+	/** Morton bits of local x and y. */
+	private static final int XB = CellLayout.X_BITS, YB = CellLayout.Y_BITS;
+	/** Most recently created instance, shared by searches of same layout. */
+	private static Neighbors cached = null;
+
+	/** Layout of the cells. */
+	public final CellLayout layout;
+	/** Width of the grid. */
+	public final int w;
+	/** Height of the grid. */
+	public final int h;
+	/** All the neighbors exist. */
+	private static final int ALL = LEFT | UP | RIGHT | DOWN;
+	/** Borders of the grid each tile is on, as LEFT, UP, RIGHT and DOWN
+	 * bits, used with TILED layout. */
+	private final byte[] edges;
+	/** Morton bits of the local x of the last column of the grid. */
+	private final int lastX;
+	/** Morton bits of the local y of the last row of the grid. */
+	private final int lastY;
+	/** Index offsets of the existing neighbors for each border mask, used
+	 * with ROW_MAJOR layout. */
+	private final int[][] offsets = new int[16][];
+	/** Cell index step to the next tile on the same tile row. */
+	private final int tileStep;
+	/** Cell index step to the next tile row. */
+	private final int rowStep;
+
+	public Neighbors(CellLayout layout) {
+		this.layout = layout;
+		this.w = layout.w;
+		this.h = layout.h;
+		this.edges = new byte[layout.tiled ? layout.tilesW * layout.tilesH : 0];
+		for (int ty = 0; ty < layout.tilesH && layout.tiled; ty++) {
+			for (int tx = 0; tx < layout.tilesW; tx++) {
+				int e = 0;
+				if (tx == 0) e |= LEFT;
+				if (ty == 0) e |= UP;
+				if (tx == layout.tilesW - 1) e |= RIGHT;
+				if (ty == layout.tilesH - 1) e |= DOWN;
+				this.edges[ty * layout.tilesW + tx] = (byte)e;
+			}
+		}
+		this.lastX = spread((this.w - 1) & (CellLayout.TILE - 1));
+		this.lastY = spread((this.h - 1) & (CellLayout.TILE - 1)) << 1;
+		int[] dirs = {LEFT, UP, RIGHT, DOWN};
+		int[] deltas = {-1, -this.w, 1, this.w};
+		for (int m = 0; m < 16; m++) {
+			int count = Integer.bitCount(m);
+			this.offsets[m] = new int[count];
+			int k = 0;
+			for (int d = 0; d < 4; d++) {
+				if ((m & dirs[d]) != 0) this.offsets[m][k++] = deltas[d];
+			}
+		}
+		this.tileStep = CellLayout.TILE_CELLS;
+		this.rowStep = layout.tilesW * CellLayout.TILE_CELLS;
+	}
+
+	/**
+	 * Get neighbor generator for the layout. Instance is shared between
+	 * searches as long as the layout stays the same.
+	 */
+	public static synchronized Neighbors of(CellLayout layout) {
+		if (cached == null || cached.layout != layout) {
+			cached = new Neighbors(layout);
+		}
+		return cached;
+	}
+
+	/** Morton bits of local x -coordinate v. */
+	private static int spread(int v) {
+		return (v & 1) | ((v & 2) << 1) | ((v & 4) << 2);
+	}
+
+	/** Border mask of the cell as combination of LEFT, UP, RIGHT and DOWN. */
+	public int mask(int c) {
+		if (!this.layout.tiled) {
+			int x = c % this.w;
+			int m = ALL;
+			if (x == 0) m &= ~LEFT;
+			if (x == this.w - 1) m &= ~RIGHT;
+			if (c < this.w) m &= ~UP;
+			if (c >= this.layout.size() - this.w) m &= ~DOWN;
+			return m;
+		}
+		int e = this.edges[c >> (2 * CellLayout.TILE_BITS)];
+		if (e == 0) return ALL;
+		int local = c & (CellLayout.TILE_CELLS - 1);
+		int m = ALL;
+		if ((e & LEFT) != 0 && (local & XB) == 0) m &= ~LEFT;
+		if ((e & UP) != 0 && (local & YB) == 0) m &= ~UP;
+		if ((e & RIGHT) != 0 && (local & XB) == this.lastX) m &= ~RIGHT;
+		if ((e & DOWN) != 0 && (local & YB) == this.lastY) m &= ~DOWN;
+		return m;
+	}
+
+	/**
+	 * Write neighbor cells of the cell into given array.
+	 * @param c cell index
+	 * @param out array of length 4 or more, where neighbors are written
+	 * @return amount of neighbors written.
+	 */
+	public int get(int c, int[] out) {
+		int m = this.mask(c);
+		if (!this.layout.tiled) {
+			int[] d = this.offsets[m];
+			for (int i = 0; i < d.length; i++) {
+				out[i] = c + d[i];
+			}
+			return d.length;
+		}
+		int k = 0;
+		int local = c & (CellLayout.TILE_CELLS - 1);
+		int tile = c - local;
+		int lx = local & XB;
+		int ly = local & YB;
+		if ((m & LEFT) != 0) {
+			out[k++] = lx != 0 ? tile | ((lx - 1) & XB) | ly : (tile - this.tileStep) | XB | ly;
+		}
+		if ((m & UP) != 0) {
+			out[k++] = ly != 0 ? tile | ((ly - 1) & YB) | lx : (tile - this.rowStep) | YB | lx;
+		}
+		if ((m & RIGHT) != 0) {
+			out[k++] = lx != XB ? tile | (((local | YB) + 1) & XB) | ly : (tile + this.tileStep) | ly;
+		}
+		if ((m & DOWN) != 0) {
+			out[k++] = ly != YB ? tile | (((local | XB) + 1) & YB) | lx : (tile + this.rowStep) | lx;
+		}
+		return k;
+	}
+}
@@ -17,7 +17,7 @@ public class Node implements Comparable<Node> {
 	private double f;
 	protected double h;
 	protected double g;
-	protected int hashKey;
+	protected long hashKey;
 	/** Previous node from which this node was spawned from. Used for 
 	 * reconstructing the path after the goal has been found. */
 	public Node prev = null;
@@ -39,7 +39,7 @@ public class Node implements Comparable<Node> {
 		this.g = g;
 		this.h = h;
 		this.f = g + h;
-		this.hashKey = this.xy[0] * 10000 + this.xy[1];
+		this.hashKey = Node.getHashKeyFor(this.xy[0], this.xy[1]);
 	}
 	
 	/** Constructor with additional option to set membership. Only used via 
@@ -128,9 +128,10 @@ public class Node implements Comparable<Node> {
 		return false;	
 	}
 	
-	/** Returns unique key for this node to use in HashMaps, etc. Uniqueness
-	 * is guaranteed only for smaller than 10000 x 10000 pixel maps. */
-	public int getHashKey() {
+	/** Returns unique key for this node to use in HashMaps, etc. Key packs
+	 * x-coordinate into the upper and y-coordinate into the lower 32 bits, so
+	 * it is unique for all int coordinates. */
+	public long getHashKey() {
 		return this.hashKey;	
 	}
 	
@@ -139,10 +140,15 @@ public class Node implements Comparable<Node> {
 	 * @param xy coordinates of the node
 	 * @return hash key of the node.
 	 */
-	public static int getHashKeyFor(int[] xy) {
-		return xy[0] * 10000 + xy[1];	
+	public static long getHashKeyFor(int[] xy) {
+		return Node.getHashKeyFor(xy[0], xy[1]);
 	} 
 	
+	/** Get hash key for node in x, y location. */
+	public static long getHashKeyFor(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
 	/** Clones the node. Also clones the membership! */
 	public Node clone() {
 		return new Node(this.xy, this.g, this.h, this.memberOf);
@@ -0,0 +1,145 @@
+package searchs;
+
+import java.nio.ByteBuffer;
+
+import space.CellLayout;
+import util.DirectMemory;
+
+/**
+ * Grid state with the same flat per-cell values as DenseGridState, but kept
+ * outside the Java heap in direct buffers. Maps larger than the heap can be
+ * searched without the garbage collector scanning or copying the state.
+ * Values are split into chunks of 2^CHUNK_BITS cells, since one buffer can
+ * hold at most 2 GB.
+ *
+ * Memory is released deterministically with dispose(). State must not be
+ * used after it is disposed.
+ * @author slinkola
+ *
+ */
+public class OffHeapGridState extends GridState {
+	/** Amount of cells in one chunk is 2^CHUNK_BITS. */
+	private static final int CHUNK_BITS = 24;
+	/** Mask for the cell offset inside its chunk. */
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	/** Chunks of the per-cell values, same as in DenseGridState. */
+	private ByteBuffer[] g;
+	private ByteBuffer[] rhs;
+	private ByteBuffer[] hs;
+	private ByteBuffer[] parent;
+	private ByteBuffer[] heapIndex;
+	private ByteBuffer[] stamp;
+	private ByteBuffer[] member;
+	/** Current generation. */
+	private int generation = 1;
+
+	/**
+	 * @param layout cell order of the grid
+	 * @param rhs allocate storage for rhs -values
+	 */
+	public OffHeapGridState(CellLayout layout, boolean rhs) {
+		super(layout);
+		int size = layout.size();
+		this.g = chunks(size, 8);
+		this.rhs = rhs ? chunks(size, 8) : null;
+		this.hs = chunks(size, 8);
+		this.parent = chunks(size, 4);
+		this.heapIndex = chunks(size, 4);
+		this.stamp = chunks(size, 4);
+		this.member = chunks(size, 1);
+	}
+
+	/** Allocate zeroed chunks for size cells of given byte width. */
+	private static ByteBuffer[] chunks(int size, int bytes) {
+		int n = ((size - 1) >>> CHUNK_BITS) + 1;
+		ByteBuffer[] a = new ByteBuffer[n];
+		for (int i = 0; i < n; i++) {
+			int cells = Math.min(size - (i << CHUNK_BITS), 1 << CHUNK_BITS);
+			a[i] = DirectMemory.allocate(cells * bytes);
+		}
+		return a;
+	}
+
+	private static void free(ByteBuffer[] a) {
+		if (a == null) return;
+		for (int i = 0; i < a.length; i++) {
+			DirectMemory.free(a[i]);
+			a[i] = null;
+		}
+	}
+
+	/** Release the memory of the state now. */
+	public void dispose() {
+		free(this.g);
+		free(this.rhs);
+		free(this.hs);
+		free(this.parent);
+		free(this.heapIndex);
+		free(this.stamp);
+		free(this.member);
+		this.g = this.rhs = this.hs = this.parent = this.heapIndex = null;
+		this.stamp = this.member = null;
+	}
+
+	protected void init(int c, double g, double h) {
+		int k = c >>> CHUNK_BITS, o = c & CHUNK_MASK;
+		this.g[k].putDouble(o << 3, g);
+		if (this.rhs != null) this.rhs[k].putDouble(o << 3, g);
+		this.hs[k].putDouble(o << 3, h);
+		this.parent[k].putInt(o << 2, -1);
+		this.member[k].put(o, (byte)Node.VISITED);
+		this.stamp[k].putInt(o << 2, this.generation);
+	}
+
+	protected void clear() {
+		if (++this.generation == Integer.MAX_VALUE) {
+			for (int k = 0; k < this.stamp.length; k++) {
+				ByteBuffer b = this.stamp[k];
+				for (int o = 0; o < b.capacity(); o += 4) b.putInt(o, 0);
+			}
+			this.generation = 1;
+		}
+	}
+
+	public StateStoreType getType() { return StateStoreType.OFF_HEAP; }
+	public boolean hasRhs() { return this.rhs != null; }
+
+	public double getG(int c) {
+		return this.g[c >>> CHUNK_BITS].getDouble((c & CHUNK_MASK) << 3);
+	}
+	public void setG(int c, double g) {
+		this.g[c >>> CHUNK_BITS].putDouble((c & CHUNK_MASK) << 3, g);
+	}
+	public double getRhs(int c) {
+		return this.rhs[c >>> CHUNK_BITS].getDouble((c & CHUNK_MASK) << 3);
+	}
+	public void setRhs(int c, double rhs) {
+		this.rhs[c >>> CHUNK_BITS].putDouble((c & CHUNK_MASK) << 3, rhs);
+	}
+	public double getH(int c) {
+		return this.hs[c >>> CHUNK_BITS].getDouble((c & CHUNK_MASK) << 3);
+	}
+	public void setH(int c, double h) {
+		this.hs[c >>> CHUNK_BITS].putDouble((c & CHUNK_MASK) << 3, h);
+	}
+	public int getParent(int c) {
+		return this.parent[c >>> CHUNK_BITS].getInt((c & CHUNK_MASK) << 2);
+	}
+	public void setParent(int c, int p) {
+		this.parent[c >>> CHUNK_BITS].putInt((c & CHUNK_MASK) << 2, p);
+	}
+	public int getHeapIndex(int c) {
+		return this.heapIndex[c >>> CHUNK_BITS].getInt((c & CHUNK_MASK) << 2);
+	}
+	public void setHeapIndex(int c, int i) {
+		this.heapIndex[c >>> CHUNK_BITS].putInt((c & CHUNK_MASK) << 2, i);
+	}
+	public int getMembership(int c) {
+		int k = c >>> CHUNK_BITS, o = c & CHUNK_MASK;
+		if (this.stamp[k].getInt(o << 2) != this.generation) return Node.NOT_VISITED;
+		return this.member[k].get(o);
+	}
+	public void setMembership(int c, int setType) {
+		this.member[c >>> CHUNK_BITS].put(c & CHUNK_MASK, (byte)setType);
+	}
+}
@@ -0,0 +1,39 @@
+package searchs;
+
+/**
+ * Open list of GridState cells with scalar keys. Implementations keep the 
+ * position of each cell through the state's heap index slot, so a state can
+ * be used by only one open list at a time.
+ * @author slinkola
+ *
+ */
+public interface OpenList {
+	public int size();
+	public boolean isEmpty();
+	/** Remove all the cells from the open list. */
+	public void clear();
+	/** Is the cell currently in the open list. */
+	public boolean contains(int c);
+	/** Cell with the smallest key. Open list must not be empty. */
+	public int peek();
+	/** Key of the smallest cell. */
+	public double peekKey();
+	/** Add cell with key. Cell must not be in the open list already. */
+	public void add(int c, double key);
+	/** Change the key of the cell, either decrease or increase. Cell is added
+	 * if it is not in the open list. */
+	public void update(int c, double key);
+	/** Remove and return the cell with smallest key. */
+	public int poll();
+	/** Remove cell from the open list, if it is in the open list. */
+	public boolean remove(int c);
+	/** Add cell with key without restoring the order of the open list. Cell
+	 * must not be in the open list already and heapify() must be called
+	 * before the open list is polled. */
+	public void append(int c, double key);
+	/** Restore the order of the open list after append() in O(n). */
+	public void heapify();
+	/** Copy the cells of the open list in no particular order to the array,
+	 * which must have room for size() cells. Returns the amount of cells. */
+	public int toArray(int[] out);
+}
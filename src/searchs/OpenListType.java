@@ -0,0 +1,5 @@
+package searchs;
+
+/** Open list implementations for the grid searches. AUTO uses BUCKET when the
+ * cost model is quantized and HEAP otherwise. */
+public enum OpenListType { AUTO, HEAP, BUCKET }
@@ -0,0 +1,302 @@
+package searchs;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+import robot.SearchBot;
+import space.CostLattice;
+import space.CostMapFile;
+import space.ImageIngest;
+import space.MovingAIMap;
+import space.PrecomputeStore;
+
+/**
+ * Headless runner for the Moving AI Lab grid benchmark scenarios (.scen).
+ * Runs each scenario with each given search type in batch and prints per
+ * bucket the average runtime, expansions, visited cells and allocated
+ * memory, and the optimality gap of the path length against the optimal
+ * length given in the scenario.
+ *
+ * Scenario file has a version line followed by one scenario per line:
+ * bucket, map, map width, map height, start x, start y, goal x, goal y and
+ * optimal length, separated by tabs. Maps are looked up relative to the
+ * scenario file, and then from the same directory by name. Map is a Moving
+ * AI map, a cost map file or a gray scale image, so the searches can also
+ * be compared on maps of several costs.
+ *
+ * Searches move only to the 4 neighbours, while the optimal lengths of the
+ * scenarios allow diagonal moves, so even optimal searches have a positive
+ * gap. Each scenario is therefore also searched with A*, and the cost of
+ * each search's path is compared with the cost of the A* path. Scenarios
+ * where A* finds a valid path but the search does not are printed.
+ *
+ * Searches use the Manhattan heuristic, or the landmark heuristic if
+ * LANDMARKS is given among the search types. Landmark tables and subgoal
+ * graphs are computed before the timed runs of each map.
+ *
+ * Usage: java searchs.ScenarioRunner file.scen [search type ...] [LANDMARKS]
+ * @author slinkola
+ *
+ */
+public class ScenarioRunner {
+	/** One scenario of the scenario file. */
+	private static class Scenario {
+		int bucket;
+		String map;
+		int[] start;
+		int[] goal;
+		double optimal;
+	}
+
+	/** Totals of the runs of one bucket. */
+	private static class Stats {
+		int runs = 0;
+		int failed = 0;
+		double ms = 0;
+		long expanded = 0;
+		long visited = 0;
+		long allocated = 0;
+		double gap = 0;
+		double maxGap = 0;
+		double costGap = 0;
+		double maxCostGap = 0;
+
+		void add(Stats s) {
+			this.runs += s.runs;
+			this.failed += s.failed;
+			this.ms += s.ms;
+			this.expanded += s.expanded;
+			this.visited += s.visited;
+			this.allocated += s.allocated;
+			this.gap += s.gap;
+			this.maxGap = Math.max(this.maxGap, s.maxGap);
+			this.costGap += s.costGap;
+			this.maxCostGap = Math.max(this.maxCostGap, s.maxCostGap);
+		}
+
+		void print(String label) {
+			int ok = Math.max(1, this.runs - this.failed);
+			System.out.printf("%-8s %6d %10.3f %12.0f %10.0f %10.1f %8.4f %8.4f %8.4f %8.4f %6d%n", 
+					label, this.runs, this.ms / this.runs, (double)this.expanded / this.runs,
+					(double)this.visited / this.runs, this.allocated / 1024.0 / this.runs,
+					this.gap / ok, this.maxGap, this.costGap / ok, this.maxCostGap, this.failed);
+		}
+	}
+
+	/** Thread bean for the allocated bytes, if the JVM supports it. */
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java searchs.ScenarioRunner <file.scen> [search type ...] [LANDMARKS]");
+			return;
+		}
+		File file = new File(args[0]);
+		SearchType[] types = SearchType.values();
+		HeuristicType heuristic = HeuristicType.MANHATTAN;
+		ArrayList<SearchType> given = new ArrayList<SearchType>();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals(HeuristicType.LANDMARKS.name())) heuristic = HeuristicType.LANDMARKS;
+			else given.add(SearchType.valueOf(args[i]));
+		}
+		if (!given.isEmpty()) types = given.toArray(new SearchType[given.size()]);
+		ArrayList<Scenario> scenarios = read(file);
+		if (scenarios.isEmpty()) {
+			System.out.println("No scenarios in " + file);
+			return;
+		}
+		ArrayList<TreeMap<Integer, Stats>> results = new ArrayList<TreeMap<Integer, Stats>>();
+		for (int i = 0; i < types.length; i++) results.add(new TreeMap<Integer, Stats>());
+
+		String mapName = null;
+		SearchBot bot = null;
+		boolean warm = false;
+		for (Scenario s: scenarios) {
+			if (!s.map.equals(mapName)) {
+				mapName = s.map;
+				File map = findMap(file, s.map);
+				CostLattice costs = load(map);
+				costs.setStore(PrecomputeStore.sidecar(map, costs));
+				bot = new SearchBot(costs, types[0]);
+				bot.setHeuristicType(heuristic);
+				// Tables and graphs are computed before timing.
+				if (heuristic == HeuristicType.LANDMARKS) bot.getLandmarks();
+				if (Arrays.asList(types).contains(SearchType.SUBGOAL)) {
+					SubgoalGraph.open(costs, bot.getPrecomputeStore());
+				}
+			}
+			if (!warm) {
+				// Warm up before timing.
+				for (SearchType t: types) run(t, bot, s, -1);
+				warm = true;
+			}
+			double reference = reference(bot, s);
+			for (int i = 0; i < types.length; i++) {
+				Stats st = results.get(i).get(s.bucket);
+				if (st == null) {
+					st = new Stats();
+					results.get(i).put(s.bucket, st);
+				}
+				Stats r = run(types[i], bot, s, reference);
+				if (r.failed > 0 && reference >= 0) {
+					System.out.printf("%s found no valid path from [%d,%d] to [%d,%d], A* path costs %.1f%n",
+							types[i], s.start[0], s.start[1], s.goal[0], s.goal[1], reference);
+				}
+				st.add(r);
+			}
+		}
+
+		System.out.println(scenarios.size() + " scenarios from " + file.getName() +
+				", gap is path length / optimal length - 1, A* gap is path cost / A* path cost - 1.");
+		for (int i = 0; i < types.length; i++) {
+			System.out.println();
+			System.out.println(types[i]);
+			System.out.printf("%-8s %6s %10s %12s %10s %10s %8s %8s %8s %8s %6s%n", "bucket", "runs",
+					"ms", "expansions", "visited", "alloc kB", "gap", "max gap", "A* gap", "max", "failed");
+			Stats total = new Stats();
+			for (Integer b: results.get(i).keySet()) {
+				Stats st = results.get(i).get(b);
+				st.print(b.toString());
+				total.add(st);
+			}
+			total.print("all");
+		}
+		// Robots' travel timers keep the JVM running.
+		System.exit(0);
+	}
+
+	/**
+	 * Run the scenario with the search type in batch.
+	 * @param reference cost of the A* path of the scenario, -1 if none
+	 */
+	private static Stats run(SearchType type, SearchBot bot, Scenario s, double reference) {
+		AbstractSearch search = SearchFactory.createSearch(type, bot, s.start, s.goal);
+		search.setBatch(true);
+		long a0 = allocated();
+		long t0 = System.nanoTime();
+		ArrayList<Node> path = search.doInBackground();
+		Stats st = new Stats();
+		st.runs = 1;
+		st.ms = (System.nanoTime() - t0) / 1e6;
+		st.allocated = allocated() - a0;
+		st.expanded = search.getExpanded();
+		st.visited = search.getVisited();
+		if (!isValid(path, bot.getLattice(), s)) {
+			st.failed = 1;
+			return st;
+		}
+		double length = path.size() - 1;
+		st.gap = s.optimal > 0 ? length / s.optimal - 1 : 0;
+		st.maxGap = st.gap;
+		if (reference > 0) {
+			st.costGap = cost(path, bot.getLattice()) / reference - 1;
+			st.maxCostGap = st.costGap;
+		}
+		return st;
+	}
+
+	/** Cost of the A* path of the scenario, -1 if A* finds no valid path. */
+	private static double reference(SearchBot bot, Scenario s) {
+		AbstractSearch search = SearchFactory.createSearch(SearchType.ASTAR, bot, s.start, s.goal);
+		search.setBatch(true);
+		ArrayList<Node> path = search.doInBackground();
+		return isValid(path, bot.getLattice(), s) ? cost(path, bot.getLattice()) : -1;
+	}
+
+	/** Cost of the path, counting all its cells so that paths found from
+	 * either end have the same cost. */
+	private static double cost(ArrayList<Node> path, CostLattice costs) {
+		double c = 0;
+		for (Node n: path) c += costs.cost(n.xy[0], n.xy[1]);
+		return c;
+	}
+
+	/** Does the path connect start and goal through adjacent passable
+	 * cells. */
+	private static boolean isValid(ArrayList<Node> path, CostLattice costs, Scenario s) {
+		if (path == null || path.isEmpty()) return false;
+		int[] a = path.get(0).xy, b = path.get(path.size() - 1).xy;
+		boolean forward = same(a, s.start) && same(b, s.goal);
+		boolean backward = same(a, s.goal) && same(b, s.start);
+		if (!forward && !backward) return false;
+		int[] prev = null;
+		for (Node n: path) {
+			if (costs.getSample(n.xy[0], n.xy[1]) == MovingAIMap.BLOCKED) return false;
+			if (prev != null && Math.abs(n.xy[0] - prev[0]) + Math.abs(n.xy[1] - prev[1]) != 1) {
+				return false;
+			}
+			prev = n.xy;
+		}
+		return true;
+	}
+
+	private static boolean same(int[] p1, int[] p2) {
+		return p1[0] == p2[0] && p1[1] == p2[1];
+	}
+
+	/** Bytes allocated by the current thread, or 0 if not supported. */
+	private static long allocated() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/** Map file of the scenario, relative to the scenario file or by name in
+	 * its directory. */
+	private static File findMap(File scen, String map) throws IOException {
+		File dir = scen.getAbsoluteFile().getParentFile();
+		File f = new File(dir, map);
+		if (f.isFile()) return f;
+		f = new File(dir, new File(map).getName());
+		if (f.isFile()) return f;
+		throw new IOException("Map not found: " + map);
+	}
+
+	/** Lattice of the map file, by the file's name or else as an image. */
+	private static CostLattice load(File map) throws IOException {
+		if (MovingAIMap.isMap(map)) return MovingAIMap.load(map);
+		if (CostMapFile.isCostMap(map)) return CostMapFile.open(map);
+		BufferedImage img = ImageIO.read(map);
+		if (img == null) throw new IOException("Unknown map format: " + map);
+		return ImageIngest.ingest(img);
+	}
+
+	/** Read the scenarios of the scenario file. */
+	private static ArrayList<Scenario> read(File file) throws IOException {
+		ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] f = line.trim().split("\t");
+				if (f.length < 9) continue;
+				Scenario s = new Scenario();
+				s.bucket = Integer.parseInt(f[0].trim());
+				s.map = f[1].trim();
+				s.start = new int[] {Integer.parseInt(f[4].trim()), Integer.parseInt(f[5].trim())};
+				s.goal = new int[] {Integer.parseInt(f[6].trim()), Integer.parseInt(f[7].trim())};
+				s.optimal = Double.parseDouble(f[8].trim());
+				scenarios.add(s);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid scenario file: " + file);
+		}
+		finally {
+			in.close();
+		}
+		return scenarios;
+	}
+}
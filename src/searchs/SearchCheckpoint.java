@@ -0,0 +1,244 @@
+package searchs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import robot.SearchBot;
+import space.CellLayout;
+import space.CostLattice;
+
+/**
+ * Binary checkpoint of the state of an incremental search, i.e. D* Lite or
+ * AD*. Checkpoint has the g, rhs, h, parent and set membership of every
+ * visited cell, the open list with its keys in heap order, epsilon, the
+ * start and key modifier of the keys, and the content hash of the map the
+ * state was computed on. Search restored from a checkpoint continues from
+ * the same state, so a restarted planner replans incrementally right away
+ * instead of starting a full search.
+ *
+ * File format, all numbers big-endian:
+ * <pre>
+ * 0   int    MAGIC "HSCP"
+ * 4   int    VERSION
+ * 8   int    search type, SearchType ordinal
+ * 12  int    cell layout type, CellLayout.Type ordinal
+ * 16  int    width
+ * 20  int    height
+ * 24  int[6] root, goal and position x, y -pairs
+ * 48  double epsilon, 1 for D* Lite
+ * 56  int    amount of visited cells
+ * 60  int    amount of cells in the open list
+ * 64  byte[] content hash of the map, HASH_LENGTH ASCII characters
+ * 104 double key modifier km
+ * 112 int[2] start x, y -pair, i.e. position of the root cell
+ * 128        visited cells in the order they were visited, each: int cell,
+ *            double g, double rhs, double h, int parent, byte membership
+ *            open cells in heap order, each: int cell, double k1, double k2
+ * </pre>
+ * @author slinkola
+ *
+ */
+public class SearchCheckpoint {
+	/** File name extension of the checkpoint files. */
+	public static final String EXTENSION = ".hsck";
+	/** Magic number at the start of the file, "HSCP". */
+	public static final int MAGIC = 0x48534350;
+	/** Version of the file format. */
+	public static final int VERSION = 2;
+	/** Size of the header in bytes. */
+	public static final int HEADER_SIZE = 128;
+	/** Length of the content hash, hex string of SHA-1. */
+	private static final int HASH_LENGTH = 40;
+	/** Bytes of one visited cell. */
+	private static final int CELL_SIZE = 4 + 3 * 8 + 4 + 1;
+	/** Bytes of one open cell. */
+	private static final int OPEN_SIZE = 4 + 2 * 8;
+	/** Size of the I/O buffer. */
+	private static final int BUFFER = 1 << 16;
+
+	/** Can the search be checkpointed. */
+	public static boolean isSupported(AbstractSearch search) {
+		return search instanceof DLite || search instanceof ADStar;
+	}
+
+	/**
+	 * Write the state of the search to the file. Search should be waiting
+	 * for changes, i.e. its path has been published; the state is read while
+	 * holding the search's lock, the same lock as replan() holds.
+	 * @param search D* Lite or AD* search which has been started
+	 * @param file checkpoint file to write
+	 * @throws IOException if the file can not be written.
+	 * @throws IllegalArgumentException if the search can not be checkpointed
+	 * or has no state.
+	 */
+	public static void write(AbstractSearch search, File file) throws IOException {
+		if (!isSupported(search)) {
+			throw new IllegalArgumentException(search.getName() + " can not be checkpointed.");
+		}
+		synchronized (search) {
+			GridState state;
+			CellHeap open;
+			double e = 1, km;
+			int[] start;
+			if (search instanceof ADStar) {
+				ADStar s = (ADStar)search;
+				state = s.state;
+				open = s.open;
+				e = s.e;
+				km = s.km;
+				start = s.start;
+			}
+			else {
+				DLite s = (DLite)search;
+				state = s.state;
+				open = s.open;
+				km = s.km;
+				start = s.start;
+			}
+			if (state == null || search.workspace == null) {
+				throw new IllegalArgumentException("Search has no state to checkpoint.");
+			}
+			CostLattice costs = search.costs;
+			int[] position = search.getPosition();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				FileChannel ch = raf.getChannel();
+				ByteBuffer b = ByteBuffer.allocate(BUFFER);
+				b.putInt(MAGIC).putInt(VERSION);
+				b.putInt(typeOf(search).ordinal());
+				b.putInt(costs.layout.type.ordinal()).putInt(costs.w).putInt(costs.h);
+				b.putInt(search.root[0]).putInt(search.root[1]);
+				b.putInt(search.goal[0]).putInt(search.goal[1]);
+				b.putInt(position[0]).putInt(position[1]);
+				b.putDouble(e);
+				b.putInt(state.visitedCount()).putInt(open.size());
+				b.put(costs.contentHash().getBytes("US-ASCII"));
+				b.putDouble(km).putInt(start[0]).putInt(start[1]);
+				b.position(HEADER_SIZE);
+				for (int i = 0; i < state.visitedCount(); i++) {
+					if (b.remaining() < CELL_SIZE) flush(ch, b);
+					int c = state.visitedCell(i);
+					b.putInt(c).putDouble(state.getG(c)).putDouble(state.getRhs(c));
+					b.putDouble(state.getH(c)).putInt(state.getParent(c));
+					b.put((byte)state.getMembership(c));
+				}
+				for (int i = 0; i < open.size(); i++) {
+					if (b.remaining() < OPEN_SIZE) flush(ch, b);
+					b.putInt(open.get(i)).putDouble(open.getKey(i)).putDouble(open.getKey2(i));
+				}
+				flush(ch, b);
+			}
+			finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Restore search from the checkpoint file for the robot. Robot's lattice
+	 * must have the same map the checkpoint was written on. Restored search
+	 * is not started, it continues from the restored state when it is.
+	 * @param file checkpoint file
+	 * @param r robot whose search is restored
+	 * @return restored D* Lite or AD* search.
+	 * @throws IOException if the file can not be read, is not a valid
+	 * checkpoint or was written on another map.
+	 */
+	public static AbstractSearch read(File file, SearchBot r) throws IOException {
+		CostLattice costs = r.getLattice();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		AbstractSearch search = null;
+		try {
+			FileChannel ch = raf.getChannel();
+			ByteBuffer b = ByteBuffer.allocate(BUFFER);
+			b.flip();
+			need(ch, b, HEADER_SIZE);
+			if (b.getInt() != MAGIC) throw new IOException("Not a checkpoint file.");
+			int version = b.getInt();
+			if (version != VERSION) throw new IOException("Unsupported version " + version + ".");
+			SearchType type = SearchType.values()[b.getInt()];
+			CellLayout.Type layout = CellLayout.Type.values()[b.getInt()];
+			int w = b.getInt(), h = b.getInt();
+			if (layout != costs.layout.type || w != costs.w || h != costs.h) {
+				throw new IOException("Checkpoint is for a map of another size or layout.");
+			}
+			int[] root = {b.getInt(), b.getInt()};
+			int[] goal = {b.getInt(), b.getInt()};
+			int[] position = {b.getInt(), b.getInt()};
+			double e = b.getDouble();
+			int visited = b.getInt(), size = b.getInt();
+			byte[] hash = new byte[HASH_LENGTH];
+			b.get(hash);
+			if (!costs.contentHash().equals(new String(hash, "US-ASCII"))) {
+				throw new IOException("Checkpoint is for another version of the map.");
+			}
+			double km = b.getDouble();
+			int[] start = {b.getInt(), b.getInt()};
+			b.position(HEADER_SIZE);
+
+			search = SearchFactory.createSearch(type, r, root, goal);
+			if (!isSupported(search)) throw new IOException("Unsupported search type " + type + ".");
+			search.setPosition(position);
+			GridState state = search.createState(true);
+			CellHeap open = search.createHeap(state);
+			for (int i = 0; i < visited; i++) {
+				need(ch, b, CELL_SIZE);
+				int c = b.getInt();
+				double g = b.getDouble(), rhs = b.getDouble();
+				state.visit(c, g, b.getDouble());
+				state.setRhs(c, rhs);
+				state.setParent(c, b.getInt());
+				state.setMembership(c, b.get());
+			}
+			// Cells are added in heap order, so the heap is rebuilt as it was.
+			for (int i = 0; i < size; i++) {
+				need(ch, b, OPEN_SIZE);
+				open.add(b.getInt(), b.getDouble(), b.getDouble());
+			}
+			if (search instanceof ADStar) {
+				((ADStar)search).restore(state, open, e, start, km);
+			}
+			else {
+				((DLite)search).restore(state, open, start, km);
+			}
+			return search;
+		}
+		catch (IndexOutOfBoundsException e) {
+			if (search != null) search.releaseWorkspace();
+			throw new IOException("Invalid checkpoint file: " + file);
+		}
+		catch (IOException e) {
+			if (search != null) search.releaseWorkspace();
+			throw e;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/** Search type of the checkpointed search. */
+	private static SearchType typeOf(AbstractSearch search) {
+		return search instanceof ADStar ? SearchType.ADSTAR : SearchType.D_LITE;
+	}
+
+	/** Write the buffered bytes to the channel and clear the buffer. */
+	private static void flush(FileChannel ch, ByteBuffer b) throws IOException {
+		b.flip();
+		while (b.hasRemaining()) ch.write(b);
+		b.clear();
+	}
+
+	/** Read from the channel until the buffer has at least n bytes left. */
+	private static void need(FileChannel ch, ByteBuffer b, int n) throws IOException {
+		if (b.remaining() >= n) return;
+		b.compact();
+		while (b.position() < n) {
+			if (ch.read(b) < 0) throw new IOException("Truncated checkpoint file.");
+		}
+		b.flip();
+	}
+}
@@ -29,6 +29,10 @@ public class SearchFactory {
 				return new NaiveAnytime(r, root, goal);
 			case ADSTAR:
 				return new ADStar(r, root, goal);
+			case HPASTAR:
+				return new HPAStar(r, root, goal);
+			case SUBGOAL:
+				return new SubgoalSearch(r, root, goal);
 			default:
 				return null;
 		}	
@@ -1,3 +1,11 @@
 package searchs;
 
-public enum SearchType { ASTAR, D_LITE, ARA, ADSTAR, NAIVE_ANYTIME }
+/**
+ * Search algorithms of the robot. Black cells cost so much that the
+ * searches cross them only when there is no other way, except HPASTAR and
+ * SUBGOAL, whose precomputed graphs treat black cells as obstacles, so
+ * they find no path through them.
+ * @author slinkola
+ *
+ */
+public enum SearchType { ASTAR, D_LITE, ARA, ADSTAR, NAIVE_ANYTIME, HPASTAR, SUBGOAL }
@@ -0,0 +1,159 @@
+package searchs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import space.CellLayout;
+
+/**
+ * Reusable search workspace, i.e. grid state and the open lists for it.
+ * Workspaces are pooled per thread, so that back-to-back searches on the
+ * same map reuse the per-cell arrays instead of allocating new ones. Reused
+ * state is cleared in O(1) with its generation counter.
+ *
+ * Workspace is acquired with acquire() when the search starts and returned
+ * to the pool of the acquiring thread with release() when it ends. When the
+ * robot gets a new map, retain() drops the workspaces of the other maps
+ * from the pools of all the threads, freeing the memory of the OFF_HEAP
+ * states outside the heap.
+ * @author slinkola
+ *
+ */
+public class SearchWorkspace {
+	/** Maximum amount of workspaces kept in the pool of one thread. */
+	private static final int POOL_SIZE = 4;
+	/** Pools of all the threads, weakly so that the pools of finished
+	 * threads are collected. */
+	private static final Set<Pool> ALL = 
+			Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Pool, Boolean>()));
+	/** Pools of the threads. */
+	private static final ThreadLocal<Pool> POOLS = new ThreadLocal<Pool>() {
+		@Override
+		protected Pool initialValue() {
+			Pool pool = new Pool();
+			ALL.add(pool);
+			return pool;
+		}
+	};
+	/** Layout of the robot's current map, null if not set. Workspaces of
+	 * the other layouts are not kept in the pools. */
+	private static volatile CellLayout current = null;
+
+	/** Pooled workspaces of one thread. */
+	private static final class Pool {
+		private final ArrayList<SearchWorkspace> items = new ArrayList<SearchWorkspace>();
+
+		/** Dispose the idle workspaces which are not of the layout. */
+		private synchronized void evict(CellLayout layout) {
+			for (int i = this.items.size() - 1; i >= 0; i--) {
+				SearchWorkspace ws = this.items.get(i);
+				if (ws.inUse || ws.state.layout == layout) continue;
+				this.items.remove(i);
+				ws.state.dispose();
+			}
+		}
+	}
+
+	/** State of the workspace. */
+	public final GridState state;
+	/** Pool where this workspace is returned, null if not pooled. */
+	private final Pool pool;
+	/** Heap open list of the state, created when first needed. */
+	private CellHeap heap = null;
+	/** Bucket queue open list of the state, created when first needed. */
+	private BucketQueue bucket = null;
+	/** Fixed-point scale of the bucket queue. */
+	private double bucketScale = 0;
+	/** Is the workspace currently used by a search. */
+	private boolean inUse = true;
+
+	private SearchWorkspace(GridState state, Pool pool) {
+		this.state = state;
+		this.pool = pool;
+	}
+
+	/**
+	 * Get empty workspace from the current thread's pool or create a new one.
+	 * @param layout cell order of the grid
+	 * @param type state store type
+	 * @param expected expected amount of visited cells
+	 * @param rhs does the search need rhs -values
+	 * @return workspace with empty state.
+	 */
+	public static SearchWorkspace acquire(CellLayout layout, StateStoreType type,
+			long expected, boolean rhs) {
+		type = GridState.resolve(layout, type, expected);
+		Pool pool = POOLS.get();
+		synchronized (pool) {
+			// Map has changed, old workspaces are not needed anymore.
+			pool.evict(layout);
+			for (int i = pool.items.size() - 1; i >= 0; i--) {
+				SearchWorkspace ws = pool.items.get(i);
+				if (!ws.inUse && ws.state.getType() == type && (!rhs || ws.state.hasRhs())) {
+					ws.inUse = true;
+					ws.clear();
+					return ws;
+				}
+			}
+			GridState state = GridState.create(layout, type, expected, rhs);
+			CellLayout keep = current;
+			if (pool.items.size() < POOL_SIZE && (keep == null || keep == layout)) {
+				SearchWorkspace ws = new SearchWorkspace(state, pool);
+				pool.items.add(ws);
+				return ws;
+			}
+			return new SearchWorkspace(state, null);
+		}
+	}
+
+	/**
+	 * Keep only the workspaces of the layout in the pools. Idle workspaces 
+	 * of the other layouts are disposed now, and those in use when they are
+	 * released.
+	 * @param layout layout of the robot's new map
+	 */
+	public static void retain(CellLayout layout) {
+		current = layout;
+		Pool[] pools;
+		synchronized (ALL) { pools = ALL.toArray(new Pool[ALL.size()]); }
+		for (Pool p: pools) p.evict(layout);
+	}
+
+	/** Return the workspace to its pool, or dispose its state if it is not
+	 * pooled. Workspace must not be used after this. */
+	public void release() {
+		if (this.pool == null) {
+			this.state.dispose();
+			return;
+		}
+		synchronized (this.pool) {
+			this.inUse = false;
+			CellLayout keep = current;
+			if (keep != null && keep != this.state.layout) this.pool.evict(keep);
+		}
+	}
+
+	/** Clear the state and the open lists for a new search. */
+	public void clear() {
+		this.state.reset();
+		if (this.heap != null) this.heap.clear();
+		if (this.bucket != null) this.bucket.clear();
+	}
+
+	/** Heap open list of the state. */
+	public CellHeap heap() {
+		if (this.heap == null) this.heap = new CellHeap(this.state);
+		return this.heap;
+	}
+
+	/** Bucket queue open list of the state with given fixed-point scale. */
+	public BucketQueue bucket(double scale) {
+		if (this.bucket == null || this.bucketScale != scale) {
+			this.bucket = new BucketQueue(this.state, scale);
+			this.bucketScale = scale;
+		}
+		return this.bucket;
+	}
+}
@@ -0,0 +1,225 @@
+package searchs;
+
+import java.util.Arrays;
+
+import space.CellLayout;
+
+/**
+ * Grid state which stores only the cells touched by the search, in an open
+ * addressing hash table keyed by primitive long cell index with linear
+ * probing. Values of each cell are kept inline in parallel slot arrays, so
+ * that there is no boxing or entry objects. Memory use follows the amount of
+ * explored cells instead of the map size, which makes searches on huge maps
+ * possible.
+ *
+ * Reading a cell which is not in the table gives the values of a cell which
+ * is not visited: g and rhs Double.MAX_VALUE / 2, h 0 and no parent.
+ *
+ * Slots are stamped with the generation in which they were taken and slots
+ * with older stamps are free, so reset() empties the table in O(1).
+ * @author slinkola
+ *
+ */
+public class SparseGridState extends GridState {
+	/** Maximum load factor before the table is doubled. */
+	private static final double LOAD = 0.5;
+	/** Key which no cell has. */
+	private static final long FREE = -1L;
+	/** Cell index of each slot. */
+	private long[] keys;
+	/** Generation of each slot, slot is free if it is not current. */
+	private int[] stamp;
+	/** Current generation. */
+	private int generation = 1;
+	/** Search values of the cell in each slot, same as in DenseGridState. */
+	private double[] g;
+	private double[] rhs;
+	private double[] hs;
+	private int[] parent;
+	private int[] heapIndex;
+	private byte[] member;
+	/** Capacity - 1 of the table. */
+	private int mask;
+	/** Amount of used slots. */
+	private int size = 0;
+	/** Amount of used slots at which the table is doubled. */
+	private int limit;
+	/** Cell of the latest lookup. Searches usually access several values of
+	 * the same cell in a row. */
+	private long lastKey = FREE;
+	/** Slot of the latest lookup. */
+	private int lastSlot = 0;
+
+	/**
+	 * @param layout cell order of the grid
+	 * @param expected expected amount of visited cells
+	 */
+	public SparseGridState(CellLayout layout, int expected) {
+		super(layout);
+		int cap = 1024;
+		while (cap * LOAD < expected && cap < (1 << 30)) cap <<= 1;
+		this.allocate(cap);
+	}
+
+	private void allocate(int cap) {
+		this.keys = new long[cap];
+		this.stamp = new int[cap];
+		this.g = new double[cap];
+		this.rhs = new double[cap];
+		this.hs = new double[cap];
+		this.parent = new int[cap];
+		this.heapIndex = new int[cap];
+		this.member = new byte[cap];
+		this.mask = cap - 1;
+		this.limit = (int)(cap * LOAD);
+		this.lastKey = FREE;
+	}
+
+	/** Amount of cells in the table. */
+	public int size() { return this.size; }
+
+	/** Slot of the cell, or the free slot where it would be put. */
+	private int find(long key) {
+		if (key == this.lastKey) return this.lastSlot;
+		long x = key * 0x9E3779B97F4A7C15L;
+		int i = (int)(x ^ (x >>> 32)) & this.mask;
+		while (this.stamp[i] == this.generation && this.keys[i] != key) {
+			i = (i + 1) & this.mask;
+		}
+		if (this.stamp[i] == this.generation) {
+			this.lastKey = key;
+			this.lastSlot = i;
+		}
+		return i;
+	}
+
+	/** Slot of the cell, which is added with not visited values if it is
+	 * not in the table. Adding may reallocate the slot arrays, so call this
+	 * before dereferencing them. */
+	private int slot(int c) {
+		int i = this.find(c);
+		if (this.stamp[i] == this.generation) return i;
+		if (this.size >= this.limit) {
+			this.rehash();
+			i = this.find(c);
+		}
+		this.keys[i] = c;
+		this.stamp[i] = this.generation;
+		this.g[i] = Double.MAX_VALUE / 2;
+		this.rhs[i] = Double.MAX_VALUE / 2;
+		this.hs[i] = 0.0;
+		this.parent[i] = -1;
+		this.heapIndex[i] = -1;
+		this.member[i] = Node.NOT_VISITED;
+		this.size++;
+		this.lastKey = c;
+		this.lastSlot = i;
+		return i;
+	}
+
+	/** Slot of the cell or -1 if it is not in the table. */
+	private int lookup(int c) {
+		int i = this.find(c);
+		return this.stamp[i] == this.generation ? i : -1;
+	}
+
+	/** Double the table and put all the cells into their new slots. */
+	private void rehash() {
+		long[] k = this.keys;
+		int[] st = this.stamp;
+		int gen = this.generation;
+		double[] g = this.g, rhs = this.rhs, hs = this.hs;
+		int[] parent = this.parent, heapIndex = this.heapIndex;
+		byte[] member = this.member;
+		this.allocate(k.length * 2);
+		this.generation = 1;
+		for (int j = 0; j < k.length; j++) {
+			if (st[j] != gen) continue;
+			int i = this.find(k[j]);
+			this.keys[i] = k[j];
+			this.stamp[i] = 1;
+			this.g[i] = g[j];
+			this.rhs[i] = rhs[j];
+			this.hs[i] = hs[j];
+			this.parent[i] = parent[j];
+			this.heapIndex[i] = heapIndex[j];
+			this.member[i] = member[j];
+		}
+		this.lastKey = FREE;
+	}
+
+	protected void clear() {
+		if (++this.generation == Integer.MAX_VALUE) {
+			Arrays.fill(this.stamp, 0);
+			this.generation = 1;
+		}
+		this.size = 0;
+		this.lastKey = FREE;
+	}
+
+	public StateStoreType getType() { return StateStoreType.SPARSE; }
+	public boolean hasRhs() { return true; }
+
+	protected void init(int c, double g, double h) {
+		int i = this.slot(c);
+		this.g[i] = g;
+		this.rhs[i] = g;
+		this.hs[i] = h;
+		this.parent[i] = -1;
+		this.member[i] = Node.VISITED;
+	}
+
+	public double getG(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? Double.MAX_VALUE / 2 : this.g[i];
+	}
+	public void setG(int c, double g) {
+		int i = this.slot(c);
+		this.g[i] = g;
+	}
+
+	public double getRhs(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? Double.MAX_VALUE / 2 : this.rhs[i];
+	}
+	public void setRhs(int c, double rhs) {
+		int i = this.slot(c);
+		this.rhs[i] = rhs;
+	}
+
+	public double getH(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? 0.0 : this.hs[i];
+	}
+	public void setH(int c, double h) {
+		int i = this.slot(c);
+		this.hs[i] = h;
+	}
+
+	public int getParent(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? -1 : this.parent[i];
+	}
+	public void setParent(int c, int p) {
+		int i = this.slot(c);
+		this.parent[i] = p;
+	}
+
+	public int getHeapIndex(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? -1 : this.heapIndex[i];
+	}
+	public void setHeapIndex(int c, int i) {
+		int s = this.slot(c);
+		this.heapIndex[s] = i;
+	}
+
+	public int getMembership(int c) {
+		int i = this.lookup(c);
+		return i == -1 ? Node.NOT_VISITED : this.member[i];
+	}
+	public void setMembership(int c, int setType) {
+		int i = this.slot(c);
+		this.member[i] = (byte)setType;
+	}
+}
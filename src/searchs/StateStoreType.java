@@ -0,0 +1,7 @@
+package searchs;
+
+/** State store implementations for the grid searches. AUTO uses SPARSE for 
+ * huge maps when the search is expected to visit only a small part of them
+ * and DENSE otherwise. OFF_HEAP is like DENSE but kept outside the Java heap,
+ * and it is never picked by AUTO. */
+public enum StateStoreType { AUTO, DENSE, SPARSE, OFF_HEAP }
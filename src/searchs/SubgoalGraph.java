@@ -0,0 +1,357 @@
+package searchs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.WeakHashMap;
+
+import space.CostLattice;
+import space.PrecomputeStore;
+
+/**
+ * Subgoal graph of a cost lattice. Lattice is partitioned into uniform-cost
+ * regions of equal samples, black being the obstacles, and the nodes of the
+ * graph are the subgoals at the convex corners of the regions and the
+ * portal cells next to another passable region. Nodes are connected to the
+ * nodes of their region which are directly h-reachable, i.e. reachable by
+ * a path of Manhattan length within the region which does not pass through
+ * another node, unless such a path through another node exists too, and
+ * portals to the portals across the region border.
+ *
+ * Every cheapest path within a uniform-cost region bends only at the
+ * corners of the region, so a cheapest path of the lattice that does not
+ * go through black is a path of the graph, and the graph is exact on maps
+ * of few regions, e.g. the Moving AI maps, where it is orders of magnitude
+ * smaller than the lattice. On maps of many gray levels most of the cells
+ * are portals and the graph approaches the lattice.
+ *
+ * Graph is kept in the map's precompute store, so it is built once per map
+ * and reused by the robots and runs on the same map. Changing the lattice
+ * invalidates the whole graph, which is built again on the next query.
+ * Graph data and its node cells are also kept in memory for the latest
+ * version of the lattice, so a query does not read them again.
+ *
+ * Graph data, as CSR arrays of ints:
+ * <pre>
+ * 0   nodes n
+ * 4   edges m
+ * 8   cells of the nodes, ascending, n
+ *     first edge of each node, n + 1
+ *     target node of each edge, m
+ * </pre>
+ * Cost of the edge is the Manhattan distance of the nodes times the cost of
+ * the target, since the path enters only cells of the target's cost.
+ * @author slinkola
+ *
+ */
+public class SubgoalGraph {
+	/** Name of the artifact of the graph. */
+	public static final String ARTIFACT = "subgoal-graph";
+	/** Version of the artifact, changed when the builder changes. */
+	public static final int VERSION = 1;
+	/** Sample of the obstacles. */
+	private static final int BLOCKED = 0;
+	/** Sweep state of a cell reached without passing a node. */
+	private static final byte DIRECT = 1;
+	/** Sweep state of a cell reached through a node. */
+	private static final byte THROUGH_NODE = 2;
+	/** Graph of the latest version of the lattice of each artifact, whose
+	 * data and node cells the queries on that version share. */
+	private static final WeakHashMap<PrecomputeStore.Artifact, SubgoalGraph> LATEST =
+			new WeakHashMap<PrecomputeStore.Artifact, SubgoalGraph>();
+	/** Lattice the graph is queried on. */
+	private final CostLattice costs;
+	/** Version of the lattice the graph is for. */
+	private final int version;
+	/** Data of the graph. */
+	private final ByteBuffer data;
+	/** Amount of nodes. */
+	public final int nodes;
+	/** Amount of edges. */
+	public final int edges;
+	/** Offset of the first edges of the nodes in the data. */
+	private final int firstAt;
+	/** Offset of the edge targets in the data. */
+	private final int targetAt;
+	/** Is each cell a node. */
+	private final BitSet isNode;
+	/** Row buffers of the sweeps. */
+	private final byte[] prev, cur;
+
+	/**
+	 * @param costs lattice the graph is queried on
+	 * @param data data of the graph
+	 * @param isNode node cells of the data, or null to find them
+	 */
+	private SubgoalGraph(CostLattice costs, ByteBuffer data, BitSet isNode) {
+		this.costs = costs;
+		this.version = costs.getVersion();
+		this.data = data;
+		this.nodes = data.getInt(0);
+		this.edges = data.getInt(4);
+		this.firstAt = 8 + 4 * this.nodes;
+		this.targetAt = this.firstAt + 4 * (this.nodes + 1);
+		if (isNode == null) {
+			isNode = new BitSet(costs.layout.size());
+			for (int i = 0; i < this.nodes; i++) isNode.set(this.cell(i));
+		}
+		this.isNode = isNode;
+		this.prev = new byte[costs.w];
+		this.cur = new byte[costs.w];
+	}
+
+	/**
+	 * Graph of the lattice from its precompute store, built if the store
+	 * does not have a valid one. Graph of the same version of the lattice
+	 * as the latest one opened shares its data and node cells.
+	 * @param costs lattice the graph is queried on, e.g. a snapshot of the
+	 * store's lattice
+	 * @param store precompute store of the map
+	 * @return subgoal graph of the map.
+	 */
+	public static SubgoalGraph open(CostLattice costs, PrecomputeStore store) {
+		PrecomputeStore.Artifact a = store.open(ARTIFACT, VERSION, new Builder());
+		synchronized (LATEST) {
+			SubgoalGraph g = LATEST.get(a);
+			if (g != null && g.version == costs.getVersion()) {
+				return new SubgoalGraph(costs, g.data, g.isNode);
+			}
+		}
+		SubgoalGraph g = new SubgoalGraph(costs, a.region(0, costs), null);
+		synchronized (LATEST) {
+			SubgoalGraph old = LATEST.get(a);
+			if (old == null || old.version < g.version) LATEST.put(a, g);
+		}
+		return g;
+	}
+
+	/** Cell of node i. */
+	public int cell(int i) { return this.data.getInt(8 + 4 * i); }
+
+	/** Node of the cell, -1 if the cell is not a node. */
+	public int node(int c) {
+		if (!this.isNode.get(c)) return -1;
+		int lo = 0, hi = this.nodes - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int m = this.cell(mid);
+			if (m < c) lo = mid + 1;
+			else if (m > c) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/** First edge of node i, edges of the node end at the first edge of
+	 * node i + 1. */
+	public int firstEdge(int i) { return this.data.getInt(this.firstAt + 4 * i); }
+
+	/** Target node of edge e. */
+	public int target(int e) { return this.data.getInt(this.targetAt + 4 * e); }
+
+	/** Cost of the path from cell a to cell b of the same region, or to
+	 * the adjacent cell b, counting b but not a. */
+	public double cost(int a, int b) {
+		int dx = Math.abs(this.costs.layout.x(a) - this.costs.layout.x(b));
+		int dy = Math.abs(this.costs.layout.y(a) - this.costs.layout.y(b));
+		return (dx + dy) * this.costs.cost(b);
+	}
+
+	/** Is the cell an obstacle of the graph. */
+	public boolean isBlocked(int c) {
+		return this.costs.getSample(this.costs.layout.x(c), this.costs.layout.y(c)) == BLOCKED;
+	}
+
+	/**
+	 * Nodes directly h-reachable from the cell, which need not be a node,
+	 * except those which are reached as well through another node.
+	 * @param c cell
+	 * @param target cell which is also found if it is directly h-reachable,
+	 * -1 for none
+	 * @param out found cells are added to this, some maybe more than once
+	 */
+	public void reachable(int c, int target, CellList out) {
+		sweep(this.costs, this.isNode, c, target, out, this.prev, this.cur);
+	}
+
+	/**
+	 * Path of Manhattan length from cell a to cell b through the cells of
+	 * b's region. Cells must be adjacent or directly h-reachable.
+	 * @param a first cell
+	 * @param b last cell
+	 * @param out locations of the path are added to this, without a
+	 */
+	public void refine(int a, int b, ArrayList<int[]> out) {
+		CostLattice costs = this.costs;
+		int ax = costs.layout.x(a), ay = costs.layout.y(a);
+		int bx = costs.layout.x(b), by = costs.layout.y(b);
+		int qx = bx >= ax ? 1 : -1, qy = by >= ay ? 1 : -1;
+		int w = Math.abs(bx - ax) + 1, h = Math.abs(by - ay) + 1;
+		int v = costs.getSample(bx, by);
+		// Cells of the box reachable from a by steps towards b.
+		boolean[] reach = new boolean[w * h];
+		for (int j = 0; j < h; j++) {
+			for (int i = 0; i < w; i++) {
+				if (i == 0 && j == 0) {
+					reach[0] = true;
+					continue;
+				}
+				boolean from = (i > 0 && reach[j * w + i - 1]) || (j > 0 && reach[(j - 1) * w + i]);
+				reach[j * w + i] = from && costs.getSample(ax + i * qx, ay + j * qy) == v;
+			}
+		}
+		int start = out.size();
+		int i = w - 1, j = h - 1;
+		while (i > 0 || j > 0) {
+			out.add(start, new int[] {ax + i * qx, ay + j * qy});
+			if (i > 0 && reach[j * w + i - 1]) i--;
+			else j--;
+		}
+	}
+
+	/**
+	 * Find the cells directly h-reachable from cell c: scan the four
+	 * quadrants around c row by row, a cell being reached from the previous
+	 * cell of its row or the cell before it in the previous row through the
+	 * cells of c's region. Paths through a node are followed too, and a node
+	 * which is also reached through another node is left out, since the
+	 * path through the other node is as short. Scan of a quadrant ends at
+	 * the row where no cell is reached without passing a node.
+	 * @param prev buffer of the previous row, at least the map's width
+	 * @param cur buffer of the current row
+	 */
+	private static void sweep(CostLattice costs, BitSet isNode, int c, int target, CellList out,
+			byte[] prev, byte[] cur) {
+		int x = costs.layout.x(c), y = costs.layout.y(c);
+		int v = costs.getSample(x, y);
+		for (int q = 0; q < 4; q++) {
+			int qx = q % 2 == 0 ? 1 : -1, qy = q < 2 ? 1 : -1;
+			// Last reached cell of the previous row.
+			int lastPrev = 0;
+			for (int j = 0; y + j * qy >= 0 && y + j * qy < costs.h; j++) {
+				int yy = y + j * qy;
+				int last = -1;
+				boolean direct = false;
+				byte left = 0;
+				for (int i = 0; x + i * qx >= 0 && x + i * qx < costs.w; i++) {
+					if (left == 0 && (j == 0 ? i > 0 : i > lastPrev)) break;
+					byte up = j > 0 && i <= lastPrev ? prev[i] : 0;
+					byte reached = (byte)(left | up);
+					if (i == 0 && j == 0) reached = DIRECT;
+					cur[i] = 0;
+					left = 0;
+					int xx = x + i * qx;
+					if (reached == 0 || costs.getSample(xx, yy) != v) continue;
+					int n = costs.layout.index(xx, yy);
+					if ((i != 0 || j != 0) && (isNode.get(n) || n == target)) {
+						if (reached == DIRECT) out.add(n);
+						reached = THROUGH_NODE;
+					}
+					cur[i] = reached;
+					left = reached;
+					last = i;
+					if ((reached & DIRECT) != 0) direct = true;
+				}
+				if (!direct) break;
+				byte[] t = prev;
+				prev = cur;
+				cur = t;
+				lastPrev = last;
+			}
+		}
+	}
+
+	/** Builds the graph of the lattice. Graph is computed by size() and
+	 * written by build(). */
+	private static class Builder implements PrecomputeStore.SizedBuilder {
+		/** Cells of the nodes. */
+		private CellList cells = null;
+		/** First edge of each node. */
+		private int[] first = null;
+		/** Target nodes of the edges. */
+		private CellList targets = null;
+
+		public int size(CostLattice costs) {
+			BitSet isNode = new BitSet(costs.layout.size());
+			this.cells = new CellList();
+			for (int c = 0; c < costs.layout.size(); c++) {
+				// Padding of the tiles is not on the map.
+				if (!costs.layout.contains(c)) continue;
+				if (isSubgoal(costs, c)) {
+					isNode.set(c);
+					this.cells.add(c);
+				}
+			}
+			int n = this.cells.size();
+			this.first = new int[n + 1];
+			this.targets = new CellList();
+			int[] nodeOf = new int[costs.layout.size()];
+			for (int i = 0; i < n; i++) nodeOf[this.cells.get(i)] = i;
+			// Last node which added each node, for dropping duplicates.
+			int[] stamp = new int[n];
+			Arrays.fill(stamp, -1);
+			CellList found = new CellList();
+			byte[] prev = new byte[costs.w], cur = new byte[costs.w];
+			for (int i = 0; i < n; i++) {
+				this.first[i] = this.targets.size();
+				int c = this.cells.get(i);
+				int x = costs.layout.x(c), y = costs.layout.y(c);
+				int v = costs.getSample(x, y);
+				found.clear();
+				// Portals across the region border.
+				for (int k = 0; k < 4; k++) {
+					int nx = x + (k == 0 ? 1 : k == 1 ? -1 : 0), ny = y + (k == 2 ? 1 : k == 3 ? -1 : 0);
+					if (nx < 0 || ny < 0 || nx >= costs.w || ny >= costs.h) continue;
+					int s = costs.getSample(nx, ny);
+					if (s != v && s != BLOCKED) found.add(costs.layout.index(nx, ny));
+				}
+				sweep(costs, isNode, c, -1, found, prev, cur);
+				stamp[i] = i;
+				for (int k = 0; k < found.size(); k++) {
+					int t = nodeOf[found.get(k)];
+					if (stamp[t] == i) continue;
+					stamp[t] = i;
+					this.targets.add(t);
+				}
+			}
+			this.first[n] = this.targets.size();
+			return 8 + 4 * (2 * n + 1 + this.targets.size());
+		}
+
+		public void build(CostLattice costs, int x0, int y0, int w, int h, ByteBuffer out) {
+			int n = this.cells.size();
+			out.putInt(n).putInt(this.targets.size());
+			for (int i = 0; i < n; i++) out.putInt(this.cells.get(i));
+			for (int i = 0; i <= n; i++) out.putInt(this.first[i]);
+			for (int i = 0; i < this.targets.size(); i++) out.putInt(this.targets.get(i));
+			this.cells = null;
+			this.first = null;
+			this.targets = null;
+		}
+
+		/** Is the passable cell a portal next to another passable region, or
+		 * at a convex corner of its region: its diagonal neighbor is not in
+		 * the region while the two cells next to both are. */
+		private static boolean isSubgoal(CostLattice costs, int c) {
+			int x = costs.layout.x(c), y = costs.layout.y(c);
+			int v = costs.getSample(x, y);
+			if (v == BLOCKED) return false;
+			for (int k = 0; k < 4; k++) {
+				int nx = x + (k == 0 ? 1 : k == 1 ? -1 : 0), ny = y + (k == 2 ? 1 : k == 3 ? -1 : 0);
+				if (nx < 0 || ny < 0 || nx >= costs.w || ny >= costs.h) continue;
+				int s = costs.getSample(nx, ny);
+				if (s != v && s != BLOCKED) return true;
+			}
+			for (int dy = -1; dy <= 1; dy += 2) {
+				for (int dx = -1; dx <= 1; dx += 2) {
+					int nx = x + dx, ny = y + dy;
+					if (nx < 0 || ny < 0 || nx >= costs.w || ny >= costs.h) continue;
+					if (costs.getSample(nx, ny) != v && costs.getSample(nx, y) == v &&
+							costs.getSample(x, ny) == v) return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package searchs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import robot.SearchBot;
+import space.ChangeJournal;
+
+/**
+ * A* on the subgoal graph of the map. Root and goal are connected to the
+ * subgoals directly h-reachable from them, the small graph is searched and
+ * the found path of subgoals is refined to cells with Manhattan paths
+ * between them. Graph is precomputed once per map in the map's precompute
+ * store, so the queries only search the graph.
+ *
+ * @see SubgoalGraph
+ * @author slinkola
+ *
+ */
+public class SubgoalSearch extends AbstractSearch {
+	/** Subgoal graph of the map. */
+	private SubgoalGraph graph = null;
+	/** Reused buffer for the cells found by the sweeps. */
+	private final CellList found = new CellList();
+
+	public SubgoalSearch(SearchBot r) {
+		super(r);
+		this.name = "Subgoal";
+	}
+
+	public SubgoalSearch(SearchBot r, int[] root, int[] goal) {
+		super(r, root, goal);
+		this.name = "Subgoal";
+	}
+
+	@Override
+	/** SwingWorker's overrided method. Called when the task is complete. */
+	public void done() {
+		this.robot.setPlannedPath(this.path);
+		this.isRunning = false;
+	}
+
+	@Override
+	/**
+	 * Replan the route from the current position. Graph is built again from
+	 * the changed map on the next query. Not synchronized, since the worker
+	 * reads the position while it is stopped.
+	 * @params changes omitted, they have invalidated the graph in the store
+	 */
+	public SubgoalSearch replan(ChangeJournal changes) {
+		this.dispose();
+		return new SubgoalSearch(this.robot, this.getPosition(), this.goal);
+	}
+
+	@Override
+	/** Search the subgoal graph and refine the found path. */
+	protected void search() {
+		long t0 = System.currentTimeMillis();
+		this.graph = SubgoalGraph.open(this.costs, this.robot.getPrecomputeStore());
+		print(String.format("Subgoal graph of %d nodes and %d edges (%d ms).",
+				this.graph.nodes, this.graph.edges, System.currentTimeMillis() - t0));
+		int s = this.costs.layout.index(this.root[0], this.root[1]);
+		int t = this.costs.layout.index(this.goal[0], this.goal[1]);
+		if (this.graph.isBlocked(s) || this.graph.isBlocked(t)) {
+			print("Root or goal is an obstacle of the subgoal graph.");
+			this.path = null;
+			return;
+		}
+		ArrayList<int[]> cells = this.searchGraph(s, t);
+		if (cells == null) {
+			this.path = null;
+			return;
+		}
+		ArrayList<int[]> refined = new ArrayList<int[]>();
+		refined.add(this.root);
+		for (int i = 1; i < cells.size(); i++) {
+			int[] a = cells.get(i - 1), b = cells.get(i);
+			this.graph.refine(this.costs.layout.index(a[0], a[1]),
+					this.costs.layout.index(b[0], b[1]), refined);
+		}
+		this.path = this.toPath(refined);
+	}
+
+	/**
+	 * A* on the subgoal graph from cell s to cell t. Root and goal are the
+	 * two nodes after the nodes of the graph.
+	 * @return locations of the found path of subgoals, from s to t, or null
+	 * if there is none.
+	 */
+	private ArrayList<int[]> searchGraph(int s, int t) {
+		SubgoalGraph gr = this.graph;
+		int n = gr.nodes;
+		final int start = n, end = n + 1;
+		NodeState st = NodeState.acquire(n + 2);
+		// Edges to the goal from the nodes directly h-reachable from it.
+		this.found.clear();
+		gr.reachable(t, -1, this.found);
+		for (int i = 0; i < this.found.size(); i++) {
+			int c = this.found.get(i);
+			st.setToGoal(gr.node(c), gr.cost(c, t));
+		}
+		if (gr.node(t) != -1) st.setToGoal(gr.node(t), 0);
+		DistanceQueue open = new DistanceQueue();
+		st.lower(start, 0, -1);
+		open.add(start, this.calcH(s, this.goal));
+		while (!open.isEmpty() && !this.isCancelled()) {
+			int u = open.poll();
+			if (st.isClosed(u)) continue;
+			st.close(u);
+			if (u == end) break;
+			if (u == start) {
+				this.publishExpanded(s);
+				this.found.clear();
+				gr.reachable(s, t, this.found);
+				for (int i = 0; i < this.found.size(); i++) {
+					int c = this.found.get(i);
+					int v = c == t ? end : gr.node(c);
+					this.relax(open, st, u, v, gr.cost(s, c), c);
+				}
+				if (gr.node(s) != -1) this.relax(open, st, u, gr.node(s), 0, s);
+				continue;
+			}
+			int uc = gr.cell(u);
+			this.publishExpanded(uc);
+			for (int e = gr.firstEdge(u); e < gr.firstEdge(u + 1); e++) {
+				int v = gr.target(e);
+				int vc = gr.cell(v);
+				this.relax(open, st, u, v, gr.cost(uc, vc), vc);
+			}
+			if (st.hasToGoal(u)) {
+				this.relax(open, st, u, end, st.getToGoal(u), t);
+			}
+		}
+		if (!st.isClosed(end)) return null;
+		ArrayList<int[]> cells = new ArrayList<int[]>();
+		for (int u = end; u != -1; u = st.getParent(u)) {
+			int c = u == end ? t : u == start ? s : gr.cell(u);
+			cells.add(0, new int[] {this.costs.layout.x(c), this.costs.layout.y(c)});
+		}
+		return cells;
+	}
+
+	/** Lower the cost of node v, whose cell is c, through node u. */
+	private void relax(DistanceQueue open, NodeState st, int u, int v, double cost, int c) {
+		double gv = st.getG(u) + cost;
+		if (st.isClosed(v) || gv >= st.getG(v)) return;
+		st.lower(v, gv, u);
+		open.add(v, gv + this.calcH(c, this.goal));
+	}
+
+	/** Path of the locations, cost of each node being the cost from the
+	 * node to the goal. */
+	private ArrayList<Node> toPath(ArrayList<int[]> cells) {
+		double[] toGoal = new double[cells.size()];
+		for (int i = cells.size() - 2; i >= 0; i--) {
+			int[] xy = cells.get(i + 1);
+			toGoal[i] = toGoal[i + 1] + this.costs.cost(xy[0], xy[1]);
+		}
+		ArrayList<Node> p = new ArrayList<Node>();
+		Node last = null;
+		for (int i = 0; i < cells.size(); i++) {
+			Node n = new Node(cells.get(i), toGoal[i], 0);
+			if (last != null) last.prev = n;
+			p.add(n);
+			last = n;
+		}
+		return p;
+	}
+
+	/**
+	 * State of the nodes of the graph searches of a thread. Like the dense
+	 * grid state, each node is stamped with the generation in which it was
+	 * reached, so a search starts a new generation instead of filling the
+	 * arrays, and the arrays grow only when a graph has more nodes.
+	 */
+	private static class NodeState {
+		/** State of each thread, so the searches of the robots do not share. */
+		private static final ThreadLocal<NodeState> STATES = new ThreadLocal<NodeState>() {
+			@Override
+			protected NodeState initialValue() { return new NodeState(); }
+		};
+		/** Cost from the root, valid in the generation of reached. */
+		private double[] g = new double[0];
+		/** Parent node, valid in the generation of reached. */
+		private int[] parent = new int[0];
+		/** Cost of the edge to the goal, valid in the generation of near. */
+		private double[] toGoal = new double[0];
+		/** Generation in which each node was reached, closed and found next
+		 * to the goal. */
+		private int[] reached = new int[0], closed = new int[0], near = new int[0];
+		/** Current generation. */
+		private int generation = 0;
+
+		/** Empty state of the calling thread for n nodes. */
+		static NodeState acquire(int n) {
+			NodeState st = STATES.get();
+			if (st.g.length < n) {
+				st.g = new double[n];
+				st.parent = new int[n];
+				st.toGoal = new double[n];
+				st.reached = new int[n];
+				st.closed = new int[n];
+				st.near = new int[n];
+				st.generation = 0;
+			}
+			if (++st.generation == Integer.MAX_VALUE) {
+				Arrays.fill(st.reached, 0);
+				Arrays.fill(st.closed, 0);
+				Arrays.fill(st.near, 0);
+				st.generation = 1;
+			}
+			return st;
+		}
+
+		double getG(int v) {
+			return this.reached[v] == this.generation ? this.g[v] : Double.POSITIVE_INFINITY;
+		}
+		int getParent(int v) { return this.parent[v]; }
+		/** Set cost and parent of node v. */
+		void lower(int v, double g, int p) {
+			this.g[v] = g;
+			this.parent[v] = p;
+			this.reached[v] = this.generation;
+		}
+		boolean isClosed(int v) { return this.closed[v] == this.generation; }
+		void close(int v) { this.closed[v] = this.generation; }
+		boolean hasToGoal(int v) { return this.near[v] == this.generation; }
+		double getToGoal(int v) { return this.toGoal[v]; }
+		void setToGoal(int v, double cost) {
+			this.toGoal[v] = cost;
+			this.near[v] = this.generation;
+		}
+	}
+}
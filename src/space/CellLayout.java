@@ -0,0 +1,123 @@
+package space;
+
+/**
+ * Mapping between x, y -locations and linear cell indices of w x h grid.
+ * All the per-cell arrays of the cost lattice and the search states are
+ * indexed through the same layout.
+ *
+ * ROW_MAJOR layout is the raster's own order y * w + x. TILED layout splits
+ * the grid into 8 x 8 tiles, which are stored one after another in row-major
+ * tile order, and orders the 64 cells inside each tile in Z-order (Morton
+ * order). Cell index is then tile * 64 + morton(x & 7, y & 7). Best-first
+ * frontier grows roughly as a disc, so with tiles most of the neighbors of an
+ * expanded cell are on the same or an adjacent cache line, instead of every
+ * vertical step jumping a whole row. Grid is padded to a multiple of the
+ * tile size, so size() may be larger than w * h.
+ * @author slinkola
+ *
+ */
+public final class CellLayout {
+	/** Cell orders of the layout. */
+	public static enum Type { ROW_MAJOR, TILED }
+
+	/** Log2 of the tile side. */
+	public static final int TILE_BITS = 3;
+	/** Tile side in cells. */
+	public static final int TILE = 1 << TILE_BITS;
+	/** Amount of cells in one tile. */
+	public static final int TILE_CELLS = TILE * TILE;
+	/** Morton bits of local x -coordinate inside a tile. */
+	public static final int X_BITS = 0x15;
+	/** Morton bits of local y -coordinate inside a tile. */
+	public static final int Y_BITS = 0x2A;
+	/** Morton code of local (x, y), indexed by y * TILE + x. */
+	private static final int[] MORTON = new int[TILE_CELLS];
+	/** Local x -coordinate of each Morton code. */
+	private static final int[] LOCAL_X = new int[TILE_CELLS];
+	/** Local y -coordinate of each Morton code. */
+	private static final int[] LOCAL_Y = new int[TILE_CELLS];
+
+	static {
+		for (int y = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++) {
+				int m = 0;
+				for (int b = 0; b < TILE_BITS; b++) {
+					m |= ((x >> b) & 1) << (2 * b);
+					m |= ((y >> b) & 1) << (2 * b + 1);
+				}
+				MORTON[y * TILE + x] = m;
+				LOCAL_X[m] = x;
+				LOCAL_Y[m] = y;
+			}
+		}
+	}
+
+	/** Width of the grid. */
+	public final int w;
+	/** Height of the grid. */
+	public final int h;
+	/** Cell order of this layout. */
+	public final Type type;
+	/** Is this TILED layout. */
+	public final boolean tiled;
+	/** Amount of tiles on one row of tiles. */
+	public final int tilesW;
+	/** Amount of rows of tiles. */
+	public final int tilesH;
+	/** Length of the arrays indexed by this layout. */
+	private final int size;
+
+	public CellLayout(int w, int h, Type type) {
+		this.w = w;
+		this.h = h;
+		this.type = type;
+		this.tiled = type == Type.TILED;
+		this.tilesW = (w + TILE - 1) >> TILE_BITS;
+		this.tilesH = (h + TILE - 1) >> TILE_BITS;
+		long size = this.tiled ? (long)this.tilesW * this.tilesH * TILE_CELLS : (long)w * h;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid " + w + "x" + h + " is too large.");
+		this.size = (int)size;
+	}
+
+	/** Default layout for w x h grid, i.e. TILED. */
+	public static CellLayout create(int w, int h) {
+		return new CellLayout(w, h, Type.TILED);
+	}
+
+	/** Length of the arrays indexed by this layout. */
+	public int size() { return this.size; }
+
+	/** Rows of one strip, i.e. a tile row or a row of cells, whose cells
+	 * are consecutive in the layout. */
+	public int stripRows() { return this.tiled ? TILE : 1; }
+
+	/** Amount of cells in one strip, including the tile padding. Strip of the
+	 * row y, a multiple of stripRows(), starts from cell index(0, y). */
+	public int stripCells() { return this.tiled ? this.tilesW * TILE_CELLS : this.w; }
+
+	/** Cell index of x, y -location. */
+	public int index(int x, int y) {
+		if (!this.tiled) return y * this.w + x;
+		int tile = (y >> TILE_BITS) * this.tilesW + (x >> TILE_BITS);
+		return (tile << (2 * TILE_BITS)) | MORTON[((y & (TILE - 1)) << TILE_BITS) | (x & (TILE - 1))];
+	}
+
+	/** X-coordinate of the cell. */
+	public int x(int c) {
+		if (!this.tiled) return c % this.w;
+		return (((c >> (2 * TILE_BITS)) % this.tilesW) << TILE_BITS) | LOCAL_X[c & (TILE_CELLS - 1)];
+	}
+
+	/** Y-coordinate of the cell. */
+	public int y(int c) {
+		if (!this.tiled) return c / this.w;
+		return (((c >> (2 * TILE_BITS)) / this.tilesW) << TILE_BITS) | LOCAL_Y[c & (TILE_CELLS - 1)];
+	}
+
+	/** Is the cell inside the w x h grid, i.e. not in the tile padding. */
+	public boolean contains(int c) {
+		if (c < 0 || c >= this.size) return false;
+		return !this.tiled || (this.x(c) < this.w && this.y(c) < this.h);
+	}
+}
@@ -0,0 +1,79 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Journal of changed cells of a cost lattice, recorded by the operation
+ * which changes them, e.g. drawing on the map. Each entry is the cell index
+ * in the lattice's layout and the old and new gray scale samples, kept in
+ * primitive arrays, so recording a change does not allocate.
+ *
+ * Journal is applied to the lattice with CostLattice.apply() and given to
+ * the searches' replan(), which update only the recorded cells.
+ * @author slinkola
+ *
+ */
+public class ChangeJournal {
+	/** Changed cells. */
+	private int[] cells;
+	/** Old and new sample of each changed cell, one after another. */
+	private byte[] samples;
+	/** Amount of changes. */
+	private int size = 0;
+
+	/** Create empty journal. */
+	public ChangeJournal() {
+		this(64);
+	}
+
+	/** Create empty journal with room for the given amount of changes. */
+	public ChangeJournal(int capacity) {
+		this.cells = new int[Math.max(1, capacity)];
+		this.samples = new byte[2 * this.cells.length];
+	}
+
+	/**
+	 * Record change of the cell. Changes which do not change the sample are
+	 * ignored.
+	 * @param c cell index in the lattice's layout
+	 * @param oldSample gray scale sample before the change
+	 * @param newSample gray scale sample after the change
+	 */
+	public void record(int c, int oldSample, int newSample) {
+		if (oldSample == newSample) return;
+		if (this.size == this.cells.length) {
+			this.cells = Arrays.copyOf(this.cells, 2 * this.size);
+			this.samples = Arrays.copyOf(this.samples, 4 * this.size);
+		}
+		this.cells[this.size] = c;
+		this.samples[2 * this.size] = (byte)oldSample;
+		this.samples[2 * this.size + 1] = (byte)newSample;
+		this.size++;
+	}
+
+	/** Amount of recorded changes. */
+	public int size() { return this.size; }
+
+	public boolean isEmpty() { return this.size == 0; }
+
+	/** Cell of the i:th change. */
+	public int cell(int i) { return this.cells[i]; }
+
+	/** Sample of the cell before the i:th change. */
+	public int oldSample(int i) { return this.samples[2 * i] & 0xff; }
+
+	/** Sample of the cell after the i:th change. */
+	public int newSample(int i) { return this.samples[2 * i + 1] & 0xff; }
+
+	/** Append the changes of the other journal after the changes of this. */
+	public void addAll(ChangeJournal other) {
+		for (int i = 0; i < other.size; i++) {
+			this.record(other.cells[i], other.oldSample(i), other.newSample(i));
+		}
+	}
+
+	/** Remove all the changes. */
+	public void clear() {
+		this.size = 0;
+	}
+}
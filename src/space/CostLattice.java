@@ -0,0 +1,566 @@
+package space;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import util.DirectMemory;
+
+/**
+ * Travel costs of the search space as a compact lattice of gray scale
+ * samples, one byte per pixel, which are decoded to costs through a 256-entry
+ * cost lookup table. Lattice is built once from the map image and updated in
+ * place when pixels change, so that the searches never touch the AWT Raster.
+ *
+ * Cells are indexed through the lattice's CellLayout, which the searches
+ * share for their state.
+ *
+ * Samples can be kept outside the Java heap for maps larger than the heap,
+ * or read on demand through a TileCache for maps larger than the memory.
+ * Memory of such lattice is released with dispose().
+ *
+ * Samples on the heap are kept in pages which are shared copy-on-write with
+ * the snapshots of the lattice. Searches pin a snapshot when they start, so
+ * they read a consistent version of the map without locking while the map
+ * is edited, and an edit copies only the pages it touches. Samples outside
+ * the heap are not changed after loading: an edit copies the page into a
+ * heap page over them, and those pages are shared with the snapshots in the
+ * same way.
+ *
+ * Lattice can be used while it is still being loaded band by band. Reading
+ * a cell whose band is not loaded yet waits until it is, so searches can be
+ * started as soon as the first bands are ready. Edits wait until the whole
+ * lattice is loaded.
+ * @author slinkola
+ *
+ */
+public class CostLattice {
+	/** Fixed-point scale of the cost model. All the travel costs are
+	 * multiples of 1 / COST_SCALE when the cost model is quantized. */
+	public static final int COST_SCALE = 48;
+	/** Log2 of the cells in one copy-on-write page, 16 tiles of the TILED
+	 * layout. */
+	public static final int PAGE_BITS = 10;
+	/** Cells in one copy-on-write page. */
+	public static final int PAGE = 1 << PAGE_BITS;
+	/** Width of the lattice. */
+	public final int w;
+	/** Height of the lattice. */
+	public final int h;
+	/** Cell order of the lattice. */
+	public final CellLayout layout;
+	/** Gray scale samples of the cells in pages of PAGE cells. If samples
+	 * are off-heap, only the changed pages are here and the others are null. */
+	private final byte[][] pages;
+	/** Generation in which each page was copied for this lattice. Pages of
+	 * older generations are shared with a snapshot, and they are copied
+	 * before they are changed. */
+	private final int[] pageGeneration;
+	/** Current generation, incremented when a snapshot is taken. */
+	private int generation = 0;
+	/** Is this a snapshot of another lattice. */
+	private boolean isSnapshot = false;
+	/** Lattice whose loading this lattice waits for, the lattice itself or
+	 * the one this is a snapshot of. */
+	private CostLattice origin = this;
+	/** Latest snapshot, reused until the lattice changes. */
+	private CostLattice snapshot = null;
+	/** Gray scale sample of each cell outside the heap, null if samples
+	 * are on the heap. */
+	private ByteBuffer direct = null;
+	/** Cache which reads the samples from a file, null if samples are in
+	 * memory. */
+	private TileCache cache = null;
+	/** Travel cost for each gray scale sample. */
+	private final double[] lut = new double[256];
+	/** Travel cost for each gray scale sample as fixed-point integer. */
+	private final long[] fixedLut = new long[256];
+	/** Are all the costs in the lookup table multiples of 1 / COST_SCALE. */
+	private final boolean quantized;
+	/** Version of the lattice, incremented on each change. */
+	private int version = 0;
+	/** Store of the precomputed artifacts of the map, null if none. */
+	private PrecomputeStore store = null;
+	/** Content hash of the lattice, null if not computed yet. */
+	private String hash = null;
+	/** Version of the lattice when the hash was computed. */
+	private int hashVersion = 0;
+	/** Is the lattice still being loaded. */
+	private volatile boolean loading = false;
+	/** Rows in each loaded band. */
+	private int bandRows = 0;
+	/** Is each band loaded, null if the whole lattice is loaded. */
+	private boolean[] loaded = null;
+
+	/** Create lattice with the default layout and all the cells white. */
+	public CostLattice(int w, int h) {
+		this(CellLayout.create(w, h));
+	}
+
+	/** Create lattice with the given layout and all the cells white. */
+	public CostLattice(CellLayout layout) {
+		this(layout, false);
+	}
+
+	/** Create lattice with the given layout and all the cells white, with
+	 * samples on or off the heap. */
+	public CostLattice(CellLayout layout, boolean offHeap) {
+		this(layout, offHeap ? new byte[pageCount(layout.size())][] : newPages(layout.size()), 
+				offHeap ? DirectMemory.allocate(layout.size()) : null);
+		if (offHeap) {
+			for (int c = 0; c < layout.size(); c++) this.direct.put(c, (byte)255);
+		}
+		else {
+			for (byte[] page: this.pages) Arrays.fill(page, (byte)255);
+		}
+	}
+
+	/** Amount of pages for the given amount of cells. */
+	private static int pageCount(int size) { return (size + PAGE - 1) >>> PAGE_BITS; }
+
+	/** Pages for the given amount of cells. */
+	private static byte[][] newPages(int size) {
+		byte[][] pages = new byte[pageCount(size)][];
+		for (int p = 0; p < pages.length; p++) {
+			pages[p] = new byte[Math.min(PAGE, size - (p << PAGE_BITS))];
+		}
+		return pages;
+	}
+
+	/** Create lattice which reads its samples from the buffer in the cell
+	 * order of the layout without copying them, e.g. from a memory mapped
+	 * cost map file. */
+	public CostLattice(CellLayout layout, ByteBuffer samples) {
+		this(layout, new byte[pageCount(layout.size())][], samples);
+	}
+
+	/** Create lattice which reads its samples through the tile cache. */
+	public CostLattice(TileCache cache) {
+		this(cache.layout, new byte[pageCount(cache.layout.size())][], null);
+		this.cache = cache;
+	}
+
+	private CostLattice(CellLayout layout, byte[][] pages, ByteBuffer direct) {
+		this.w = layout.w;
+		this.h = layout.h;
+		this.layout = layout;
+		this.pages = pages;
+		this.pageGeneration = new int[pages.length];
+		this.direct = direct;
+		boolean q = true;
+		for (int s = 0; s < 256; s++) {
+			this.lut[s] = CostLattice.costOf(s);
+			double fixed = this.lut[s] * COST_SCALE;
+			this.fixedLut[s] = Math.round(fixed);
+			if (fixed != Math.rint(fixed)) q = false;
+		}
+		this.quantized = q;
+	}
+
+	/** Create lattice with the default layout from the first band of the 
+	 * raster. */
+	public CostLattice(Raster r) {
+		this(r, CellLayout.Type.TILED);
+	}
+
+	/** Create lattice with the given layout type from the first band of the
+	 * raster. */
+	public CostLattice(Raster r, CellLayout.Type type) {
+		this(r, type, false);
+	}
+
+	/** Create lattice with the given layout type from the first band of the
+	 * raster, with samples on or off the heap. */
+	public CostLattice(Raster r, CellLayout.Type type, boolean offHeap) {
+		this(new CellLayout(r.getWidth(), r.getHeight(), type), offHeap);
+		this.fill(r, 0, this.h);
+	}
+
+	/** Copy of the lattice with the same layout, with samples on or off the
+	 * heap. */
+	public CostLattice(CostLattice src, boolean offHeap) {
+		this(src.layout, offHeap);
+		for (int c = 0; c < this.layout.size(); c++) this.load(c, src.get(c));
+		this.version = src.version;
+		this.store = src.store;
+	}
+
+	/**
+	 * Travel cost of the gray scale sample. Black is considered nearly
+	 * impassable.
+	 * @param sample gray scale value 0-255
+	 * @return cost of travelling to a pixel with the sample value.
+	 */
+	public static double costOf(int sample) {
+		if (sample == 0) {
+			return 10000.0;
+		}
+		return ((double)(256 - sample) / COST_SCALE) + 1;
+	}
+
+	/** Gray scale sample of the cell. */
+	private int get(int c) {
+		if (this.origin.loading) this.origin.awaitLoaded(c);
+		byte[] page = this.pages[c >>> PAGE_BITS];
+		if (page != null) return page[c & (PAGE - 1)] & 0xff;
+		if (this.direct != null) return this.direct.get(c) & 0xff;
+		return this.cache.sample(c);
+	}
+
+	/** Set gray scale sample of the cell when the lattice is built, in
+	 * place without copying the pages. */
+	private void load(int c, int sample) {
+		if (this.direct != null) this.direct.put(c, (byte)sample);
+		else if (this.cache != null) this.cache.setSample(c, sample);
+		else this.pages[c >>> PAGE_BITS][c & (PAGE - 1)] = (byte)sample;
+	}
+
+	/** Change gray scale sample of the cell, copying its page first if it
+	 * is shared with a snapshot or the samples are off-heap. */
+	private void put(int c, int sample) {
+		int p = c >>> PAGE_BITS;
+		if (this.pages[p] == null || this.pageGeneration[p] != this.generation) {
+			this.pages[p] = this.pages[p] != null ? this.pages[p].clone() : this.samplePage(p);
+			this.pageGeneration[p] = this.generation;
+		}
+		this.pages[p][c & (PAGE - 1)] = (byte)sample;
+	}
+
+	/** Copy of the off-heap samples of the page. */
+	private byte[] samplePage(int p) {
+		int first = p << PAGE_BITS;
+		byte[] page = new byte[Math.min(PAGE, this.layout.size() - first)];
+		for (int i = 0; i < page.length; i++) {
+			page[i] = (byte)(this.direct != null ? this.direct.get(first + i) : this.cache.sample(first + i));
+		}
+		return page;
+	}
+
+	/** Cell index of x, y -location. */
+	public int index(int x, int y) { return this.layout.index(x, y); }
+
+	/** Cost of travelling into the cell. */
+	public double cost(int c) {
+		return this.lut[this.get(c)];
+	}
+
+	/** Cost of travelling into x, y -location. */
+	public double cost(int x, int y) {
+		return this.lut[this.get(this.layout.index(x, y))];
+	}
+
+	/** Cost of travelling into the cell as fixed-point integer. */
+	public long fixedCost(int c) {
+		return this.fixedLut[this.get(c)];
+	}
+
+	/** Cost of travelling into a cell with the gray scale sample. */
+	public double sampleCost(int sample) {
+		return this.lut[sample & 0xff];
+	}
+
+	/** Gray scale sample of the x, y -location. */
+	public int getSample(int x, int y) {
+		return this.get(this.layout.index(x, y));
+	}
+
+	/** Change the gray scale sample of the x, y -location. */
+	public synchronized void setSample(int x, int y, int sample) {
+		this.awaitLoading();
+		this.put(this.layout.index(x, y), sample);
+		this.version++;
+	}
+
+	/**
+	 * Write rows of the raster's first band into the lattice as they are,
+	 * without changing the version. Used when the lattice is built, and
+	 * disjoint rows may be filled from several threads at the same time.
+	 * @param r raster as wide as the lattice, whose first row is row y
+	 * @param y first row to fill
+	 * @param h amount of rows to fill
+	 */
+	public void fill(Raster r, int y, int h) {
+		int[] row = new int[this.w];
+		for (int j = y; j < y + h; j++) {
+			r.getSamples(r.getMinX(), r.getMinY() + j - y, this.w, 1, 0, row);
+			for (int x = 0; x < this.w; x++) {
+				this.load(this.layout.index(x, j), row[x]);
+			}
+		}
+	}
+
+	/**
+	 * Mark all the cells not loaded. Cells are then marked loaded band by
+	 * band with setLoaded() and reading a cell which is not loaded waits.
+	 * @param bandRows rows in each band
+	 */
+	public synchronized void startLoading(int bandRows) {
+		this.bandRows = bandRows;
+		this.loaded = new boolean[(this.h + bandRows - 1) / bandRows];
+		this.loading = true;
+	}
+
+	/** Mark bands of the rows y ... y + h - 1 loaded. Does nothing if the
+	 * lattice is not being loaded. */
+	public synchronized void setLoaded(int y, int h) {
+		if (!this.loading) return;
+		for (int b = y / this.bandRows; b <= (y + h - 1) / this.bandRows; b++) {
+			this.loaded[b] = true;
+		}
+		this.notifyAll();
+	}
+
+	/** Mark the whole lattice loaded, also when loading fails, so that
+	 * nobody waits for the missing bands. */
+	public synchronized void finishLoading() {
+		this.loading = false;
+		this.loaded = null;
+		this.notifyAll();
+	}
+
+	/** Is the lattice still being loaded. */
+	public boolean isLoading() { return this.origin.loading; }
+
+	/** Is the x, y -location loaded. */
+	public boolean isLoaded(int x, int y) {
+		CostLattice o = this.origin;
+		synchronized (o) {
+			return !o.loading || o.loaded[y / o.bandRows];
+		}
+	}
+
+	/** Wait until the whole lattice is loaded. */
+	private synchronized void awaitLoading() {
+		while (this.loading) {
+			try {
+				this.wait();
+			}
+			catch (InterruptedException e) {
+				throw new IllegalStateException("Interrupted while waiting for the map to load.", e);
+			}
+		}
+	}
+
+	/** Wait until the band of the cell is loaded. */
+	private synchronized void awaitLoaded(int c) {
+		int y = this.layout.y(c);
+		// Padding cells are never loaded.
+		if (y >= this.h) return;
+		while (this.loading && !this.loaded[y / this.bandRows]) {
+			try {
+				this.wait();
+			}
+			catch (InterruptedException e) {
+				// Search was cancelled, let it see the interrupt.
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/** Are all the costs multiples of 1 / COST_SCALE. */
+	public boolean isQuantized() { return this.quantized; }
+
+	/** Current version of the lattice. */
+	public int getVersion() { return this.version; }
+
+	/** Gray scale image of the lattice, e.g. for showing a map which was not
+	 * loaded from an image. */
+	public BufferedImage toImage() {
+		BufferedImage img = new BufferedImage(this.w, this.h, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster r = img.getRaster();
+		int[] row = new int[this.w];
+		for (int y = 0; y < this.h; y++) {
+			for (int x = 0; x < this.w; x++) row[x] = this.getSample(x, y);
+			r.setSamples(0, y, this.w, 1, 0, row);
+		}
+		return img;
+	}
+
+	/**
+	 * Content hash of the lattice, i.e. SHA-1 of its layout and samples in
+	 * the cell order as a hex string. Lattices with the same hash have the
+	 * same map, so it identifies the map version e.g. in saved search state.
+	 * Hash is computed once per version, after the lattice is loaded.
+	 * @return hex string of the hash.
+	 */
+	public synchronized String contentHash() {
+		if (this.hash != null && this.hashVersion == this.version) return this.hash;
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(this.layout.type.ordinal()).putInt(this.w).putInt(this.h).flip();
+		md.update(header);
+		if (!this.isOffHeap()) {
+			for (byte[] page: this.pages) md.update(page);
+		}
+		else {
+			byte[] page = new byte[PAGE];
+			for (int c = 0; c < this.layout.size(); c += PAGE) {
+				int n = Math.min(PAGE, this.layout.size() - c);
+				for (int i = 0; i < n; i++) page[i] = (byte)this.get(c + i);
+				md.update(page, 0, n);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: md.digest()) sb.append(String.format("%02x", b & 0xff));
+		String hash = sb.toString();
+		if (this.isLoading()) return hash;
+		this.hash = hash;
+		this.hashVersion = this.version;
+		return hash;
+	}
+
+	/** Are the samples kept outside the heap. */
+	public boolean isOffHeap() { return this.direct != null || this.cache != null; }
+
+	/**
+	 * Snapshot of the current version of the lattice. Snapshot shares the
+	 * pages of the lattice, which are copied when the lattice is changed, so
+	 * taking a snapshot does not copy the samples and the snapshot never
+	 * changes. Snapshot must not be changed.
+	 *
+	 * Snapshot of a lattice outside the heap shares also the samples outside
+	 * the heap, which are not changed after loading. Snapshot of a lattice
+	 * which is still being loaded waits for the bands like the lattice.
+	 * @return snapshot of the lattice.
+	 */
+	public synchronized CostLattice snapshot() {
+		if (this.isSnapshot) return this;
+		if (this.snapshot != null && this.snapshot.version == this.version) return this.snapshot;
+		CostLattice s = new CostLattice(this.layout, this.pages.clone(), this.direct);
+		// All the pages are now shared by both.
+		s.cache = this.cache;
+		s.origin = this;
+		s.generation = 1;
+		s.isSnapshot = true;
+		s.version = this.version;
+		s.store = this.store;
+		this.generation++;
+		this.snapshot = s;
+		return s;
+	}
+
+	/** Store of the precomputed artifacts of the map, null if none. */
+	public PrecomputeStore getStore() { return this.store; }
+
+	/** Set store of the precomputed artifacts of the map. Its artifacts are
+	 * invalidated where the lattice is changed with apply(). */
+	public void setStore(PrecomputeStore store) { this.store = store; }
+
+	/** Is this a snapshot of another lattice. */
+	public boolean isSnapshot() { return this.isSnapshot; }
+
+	/** Tile cache of the lattice, null if samples are in memory. */
+	public TileCache getCache() { return this.cache; }
+
+	/** Hint that the cells around the cell, e.g. an expanded cell of the
+	 * search frontier, are needed soon. Does nothing unless the samples are
+	 * read through a tile cache. */
+	public void prefetch(int c) {
+		if (this.cache != null) this.cache.prefetchAround(c);
+	}
+
+	/** Hint that the x, y -location, e.g. on the planned path, is needed
+	 * soon. Does nothing unless the samples are read through a tile cache. */
+	public void prefetch(int x, int y) {
+		if (this.cache != null) this.cache.prefetch(this.layout.index(x, y));
+	}
+
+	/** Release off-heap samples now, unmap them if they are mapped from a
+	 * file or close the tile cache. Lattice and its snapshots must not be
+	 * used after this. Does nothing for a snapshot. */
+	public synchronized void dispose() {
+		if (this.isSnapshot) return;
+		if (this.cache != null) {
+			this.cache.close();
+			this.cache = null;
+		}
+		if (this.direct instanceof MappedByteBuffer) {
+			DirectMemory.unmap((MappedByteBuffer)this.direct);
+		}
+		else {
+			DirectMemory.free(this.direct);
+		}
+		this.direct = null;
+	}
+
+	/** Apply the new samples of the journal, recorded e.g. when drawing on
+	 * the map, to the lattice. */
+	public synchronized void apply(ChangeJournal changes) {
+		this.awaitLoading();
+		for (int i = 0; i < changes.size(); i++) {
+			this.put(changes.cell(i), changes.newSample(i));
+		}
+		if (!changes.isEmpty()) this.version++;
+		if (this.store != null) this.store.invalidate(changes);
+	}
+
+	/**
+	 * Compare rows of the raster's first band with the lattice without
+	 * changing it, and record the differing cells. Rows are gathered into
+	 * the cell order one strip of the layout at a time and compared with the
+	 * lattice 8 cells at a time, so unchanged parts of the map are skipped
+	 * with one comparison per word. Disjoint strips may be compared from
+	 * several threads at the same time.
+	 * @param r raster as wide as the lattice, whose first row is row y
+	 * @param y first row to compare, a multiple of the layout's stripRows()
+	 * @param h amount of rows to compare
+	 * @param changes journal for the differing cells
+	 */
+	public void diff(Raster r, int y, int h, ChangeJournal changes) {
+		int rows = this.layout.stripRows();
+		byte[] fresh = new byte[this.layout.stripCells()];
+		int[] row = new int[this.w];
+		for (int y0 = y; y0 < y + h; y0 += rows) {
+			int start = this.layout.index(0, y0);
+			Arrays.fill(fresh, (byte)255);
+			for (int j = y0; j < Math.min(y0 + rows, y + h); j++) {
+				r.getSamples(r.getMinX(), r.getMinY() + j - y, this.w, 1, 0, row);
+				for (int x = 0; x < this.w; x++) {
+					fresh[this.layout.index(x, j) - start] = (byte)row[x];
+				}
+			}
+			this.diffCells(start, fresh, changes);
+		}
+	}
+
+	/** Compare consecutive cells from start with the fresh samples and
+	 * record the differing cells. */
+	private void diffCells(int start, byte[] fresh, ChangeJournal changes) {
+		ByteBuffer f = ByteBuffer.wrap(fresh);
+		if (this.direct != null) f.order(this.direct.order());
+		ByteBuffer cur = null;
+		int base = -1;
+		int n = Math.min(fresh.length, this.layout.size() - start);
+		for (int i = 0; i < n; i += 8) {
+			int c = start + i;
+			int p = c >>> PAGE_BITS;
+			if (i + 8 <= n && (c + 7) >>> PAGE_BITS == p) {
+				if (this.pages[p] != null) {
+					if (base != p << PAGE_BITS) {
+						cur = ByteBuffer.wrap(this.pages[p]).order(f.order());
+						base = p << PAGE_BITS;
+					}
+					if (cur.getLong(c - base) == f.getLong(i)) continue;
+				}
+				else if (this.direct != null && this.direct.getLong(c) == f.getLong(i)) continue;
+			}
+			// Word differs, spans two pages or is the tail: compare the cells.
+			for (int k = i; k < Math.min(i + 8, n); k++) {
+				if (!this.layout.contains(start + k)) continue;
+				changes.record(start + k, this.get(start + k), fresh[k] & 0xff);
+			}
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package space;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Binary tiled cost map file. Samples are stored in the cell order of the
+ * TILED CellLayout, so the file can be memory mapped and used as the cost
+ * lattice as is. Opening a map then takes only the time to read the header,
+ * and the searches read the samples straight from the page cache.
+ *
+ * File format, all integers big-endian:
+ * <pre>
+ * 0  int  MAGIC "HSCM"
+ * 4  int  VERSION
+ * 8  int  width
+ * 12 int  height
+ * 16 int  log2 of the tile side, CellLayout.TILE_BITS
+ * 20 int  cost model id, GRAY_COST_MODEL
+ * 24 ...  reserved up to HEADER_SIZE
+ * 64      tiles one after another in row-major tile order, each tile
+ *         TILE_CELLS bytes in Z-order. Padding cells are white.
+ * </pre>
+ *
+ * Usage for conversion: java space.CostMapFile image.png map.hscm
+ * @author slinkola
+ *
+ */
+public class CostMapFile {
+	/** File name extension of the cost map files. */
+	public static final String EXTENSION = ".hscm";
+	/** Magic number at the start of the file, "HSCM". */
+	public static final int MAGIC = 0x4853434D;
+	/** Version of the file format. */
+	public static final int VERSION = 1;
+	/** Size of the header in bytes. */
+	public static final int HEADER_SIZE = 64;
+	/** Cost model where samples are gray levels and cost of each sample is
+	 * given by CostLattice.costOf(). */
+	public static final int GRAY_COST_MODEL = 1;
+
+	/** Is the file a cost map file, judging by its name. */
+	public static boolean isCostMap(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Open cost map file as a lattice backed by the memory mapped file.
+	 * Mapping is private, so changes to the lattice, e.g. drawing on the map,
+	 * are not written to the file. Private mapping needs write access to the
+	 * file, read-only files are mapped read-only and can not be changed.
+	 * @param file cost map file
+	 * @return lattice which reads the samples from the file.
+	 * @throws IOException if the file can not be read or is not a valid cost
+	 * map.
+	 */
+	public static CostLattice open(File file) throws IOException {
+		boolean writable = file.canWrite();
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			CellLayout layout = readHeader(ch);
+			// Mapping stays valid after the channel is closed.
+			FileChannel.MapMode mode = writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+			MappedByteBuffer tiles = ch.map(mode, HEADER_SIZE, layout.size());
+			return new CostLattice(layout, tiles);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open cost map file as a lattice which reads the tiles on demand through
+	 * a tile cache, for maps too large to be mapped or kept in memory.
+	 * @param file cost map file
+	 * @param budget maximum amount of bytes of the cached tiles
+	 * @param policy eviction policy of the cache
+	 * @return lattice which reads the samples through the cache.
+	 * @throws IOException if the file can not be read or is not a valid cost
+	 * map.
+	 */
+	public static CostLattice openCached(File file, long budget, TileCache.Policy policy)
+			throws IOException {
+		FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+		try {
+			CellLayout layout = readHeader(ch);
+			return new CostLattice(new TileCache(ch, HEADER_SIZE, layout, budget, policy));
+		}
+		catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	/** Read and check the header of the file and return the layout of the
+	 * tiles. */
+	private static CellLayout readHeader(FileChannel ch) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (ch.read(header) < 0) throw new IOException("Truncated header.");
+		}
+		header.flip();
+		if (header.getInt() != MAGIC) throw new IOException("Not a cost map file.");
+		int version = header.getInt();
+		if (version != VERSION) throw new IOException("Unsupported version " + version + ".");
+		int w = header.getInt();
+		int h = header.getInt();
+		if (header.getInt() != CellLayout.TILE_BITS) throw new IOException("Unsupported tile size.");
+		int model = header.getInt();
+		if (model != GRAY_COST_MODEL) throw new IOException("Unsupported cost model " + model + ".");
+		CellLayout layout = new CellLayout(w, h, CellLayout.Type.TILED);
+		if (ch.size() < HEADER_SIZE + (long)layout.size()) throw new IOException("Truncated tiles.");
+		return layout;
+	}
+
+	/**
+	 * Write the lattice as a cost map file.
+	 * @param costs lattice to write, in any layout
+	 * @param file file to write
+	 * @throws IOException if the file can not be written.
+	 */
+	public static void write(CostLattice costs, File file) throws IOException {
+		CellLayout layout = new CellLayout(costs.w, costs.h, CellLayout.Type.TILED);
+		ByteBuffer row = ByteBuffer.allocate(layout.tilesW * CellLayout.TILE_CELLS);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			writeHeader(ch, costs.w, costs.h);
+			for (int ty = 0; ty < layout.tilesH; ty++) {
+				int base = ty * layout.tilesW * CellLayout.TILE_CELLS;
+				for (int i = 0; i < row.capacity(); i++) {
+					int x = layout.x(base + i), y = layout.y(base + i);
+					boolean inside = x < costs.w && y < costs.h;
+					row.put(i, (byte)(inside ? costs.getSample(x, y) : 255));
+				}
+				writeFully(ch, row);
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Convert an image, e.g. jpg or png, to a cost map file. Image is
+	 * converted to gray scale in the same way as when it is loaded as a map.
+	 * @param image image file
+	 * @param file cost map file to write
+	 * @throws IOException if the image can not be read or the file written.
+	 */
+	public static void convert(File image, File file) throws IOException {
+		BufferedImage map = ImageIO.read(image);
+		if (map == null) throw new IOException("Unknown image format: " + image);
+		ImageIngest.toGray(map, Runtime.getRuntime().availableProcessors());
+		write(map.getRaster(), file);
+	}
+
+	/** Write the first band of the raster as a cost map file, one row of
+	 * tiles at a time. */
+	public static void write(Raster r, File file) throws IOException {
+		int w = r.getWidth(), h = r.getHeight();
+		CellLayout layout = new CellLayout(w, h, CellLayout.Type.TILED);
+		ByteBuffer row = ByteBuffer.allocate(layout.tilesW * CellLayout.TILE_CELLS);
+		int[] line = new int[w];
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			writeHeader(ch, w, h);
+			for (int ty = 0; ty < layout.tilesH; ty++) {
+				int base = ty * layout.tilesW * CellLayout.TILE_CELLS;
+				for (int i = 0; i < row.capacity(); i++) row.put(i, (byte)255);
+				for (int j = 0; j < CellLayout.TILE; j++) {
+					int y = ty * CellLayout.TILE + j;
+					if (y >= h) break;
+					r.getSamples(r.getMinX(), r.getMinY() + y, w, 1, 0, line);
+					for (int x = 0; x < w; x++) {
+						row.put(layout.index(x, y) - base, (byte)line[x]);
+					}
+				}
+				writeFully(ch, row);
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static void writeHeader(FileChannel ch, int w, int h) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(w).putInt(h);
+		header.putInt(CellLayout.TILE_BITS).putInt(GRAY_COST_MODEL);
+		writeFully(ch, header);
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+		b.clear();
+		while (b.hasRemaining()) ch.write(b);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: java space.CostMapFile <image> <map" + EXTENSION + ">");
+			return;
+		}
+		long t0 = System.currentTimeMillis();
+		convert(new File(args[0]), new File(args[1]));
+		System.out.println("Converted " + args[0] + " to " + args[1] + " in " +
+				(System.currentTimeMillis() - t0) + " ms.");
+	}
+}
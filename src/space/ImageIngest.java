@@ -0,0 +1,143 @@
+package space;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import util.Parallel;
+
+/**
+ * Parallel ingestion of map images. Image is split into horizontal bands of
+ * whole tile rows, and each band is converted to gray scale and written into
+ * the cost lattice and back into the image by a pool of threads. Bands cover
+ * disjoint rows of the image and cells of the lattice, so the threads never
+ * write the same memory.
+ *
+ * Conversion is done with the same ColorConvertOp as for the whole image,
+ * band by band, so the samples are identical to converting the image at
+ * once and building the lattice from its raster, but without the second
+ * single-threaded pass over the image. ColorConvertOp may write back its
+ * whole source or destination array from native code, so each band is
+ * converted in its own small copy instead of a sub image of the shared
+ * image.
+ *
+ * New version of a map image is compared with the lattice band by band in
+ * the same way, which gives the changed cells for the running searches
+ * without rebuilding the lattice.
+ * @author slinkola
+ *
+ */
+public class ImageIngest {
+	/** Rows of pixels in one band, a multiple of the tile side. */
+	public static final int BAND = 8 * CellLayout.TILE;
+
+	/** Convert the image to gray scale in place and build a lattice with the
+	 * default layout from it, using all the processors. */
+	public static CostLattice ingest(BufferedImage img) {
+		return ingest(img, CellLayout.Type.TILED, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Convert the image to gray scale in place and build a lattice from it.
+	 * @param img image to convert, which is also the map shown in the UI
+	 * @param type layout of the lattice
+	 * @param threads amount of threads to use
+	 * @return lattice of the gray scale image.
+	 */
+	public static CostLattice ingest(BufferedImage img, CellLayout.Type type, int threads) {
+		CostLattice costs = new CostLattice(new CellLayout(img.getWidth(), img.getHeight(), type));
+		run(img, threads, costs);
+		return costs;
+	}
+
+	/** Convert the image to gray scale in place with the given amount of
+	 * threads. */
+	public static void toGray(BufferedImage img, int threads) {
+		run(img, threads, null);
+	}
+
+	/**
+	 * Convert the image to gray scale in place and compare it with the
+	 * lattice in parallel, e.g. to update the map from a new version of its
+	 * image. Lattice is not changed.
+	 * @param img new image of the map, as large as the lattice
+	 * @param costs lattice to compare with
+	 * @param threads amount of threads to use
+	 * @return journal of the differing cells in the order of the bands.
+	 */
+	public static ChangeJournal diff(BufferedImage img, CostLattice costs, int threads) {
+		int h = img.getHeight();
+		ArrayList<Callable<ChangeJournal>> tasks = new ArrayList<Callable<ChangeJournal>>();
+		for (int y = 0; y < h; y += BAND) {
+			tasks.add(diffBand(img, costs, y, Math.min(BAND, h - y)));
+		}
+		ChangeJournal changes = new ChangeJournal();
+		for (ChangeJournal c: Parallel.invoke(tasks, threads, "Image ingestion")) changes.addAll(c);
+		return changes;
+	}
+
+	/**
+	 * Task which converts one band of the image to gray scale in place and
+	 * fills it into the lattice, if given. Filled rows are marked loaded in
+	 * the lattice.
+	 * @param img image to convert
+	 * @param costs lattice to fill, or null
+	 * @param y0 first row of the band
+	 * @param rows amount of rows in the band
+	 * @return task for converting the band.
+	 */
+	public static Callable<Void> band(final BufferedImage img, final CostLattice costs,
+			final int y0, final int rows) {
+		return new Callable<Void>() {
+			public Void call() {
+				WritableRaster pixels = grayBand(img, y0, rows);
+				if (costs != null) {
+					costs.fill(pixels, y0, rows);
+					costs.setLoaded(y0, rows);
+				}
+				return null;
+			}
+		};
+	}
+
+	/** Task which converts one band of the image to gray scale in place and
+	 * returns the journal of its cells which differ from the lattice. */
+	private static Callable<ChangeJournal> diffBand(final BufferedImage img,
+			final CostLattice costs, final int y0, final int rows) {
+		return new Callable<ChangeJournal>() {
+			public ChangeJournal call() {
+				ChangeJournal changes = new ChangeJournal();
+				costs.diff(grayBand(img, y0, rows), y0, rows, changes);
+				return changes;
+			}
+		};
+	}
+
+	/** Convert the band of the image to gray scale in place. Returns the
+	 * converted pixels of the band, whose first row is row y0. */
+	private static WritableRaster grayBand(BufferedImage img, int y0, int rows) {
+		int w = img.getWidth();
+		WritableRaster pixels = img.getRaster().createCompatibleWritableRaster(w, rows);
+		pixels.setDataElements(0, 0, img.getRaster().createChild(0, y0, w, rows, 0, 0, null));
+		BufferedImage band = new BufferedImage(img.getColorModel(), pixels,
+				img.isAlphaPremultiplied(), null);
+		ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
+		op.filter(band, band);
+		img.getRaster().setDataElements(0, y0, pixels);
+		return pixels;
+	}
+
+	/** Convert the bands of the image and fill them into the lattice, if
+	 * given, in parallel. */
+	private static void run(BufferedImage img, int threads, CostLattice costs) {
+		int h = img.getHeight();
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int y = 0; y < h; y += BAND) {
+			tasks.add(band(img, costs, y, Math.min(BAND, h - y)));
+		}
+		Parallel.invoke(tasks, threads, "Image ingestion");
+	}
+}
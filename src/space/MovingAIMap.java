@@ -0,0 +1,80 @@
+package space;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Loader of the Moving AI Lab grid benchmark maps (.map). Map is a text file
+ * with a header followed by one line of terrain characters per row:
+ * <pre>
+ * type octile
+ * height 512
+ * width 512
+ * map
+ * ..@@TT...
+ * </pre>
+ * Passable terrain ('.', 'G' and 'S') becomes white cells and everything
+ * else, i.e. out of bounds ('@', 'O'), trees ('T') and water ('W'), becomes
+ * black cells, which the searches avoid as nearly impassable.
+ * @author slinkola
+ *
+ */
+public class MovingAIMap {
+	/** File name extension of the map files. */
+	public static final String EXTENSION = ".map";
+	/** Gray scale sample of the passable terrain. */
+	public static final int PASSABLE = 255;
+	/** Gray scale sample of the blocked terrain. */
+	public static final int BLOCKED = 0;
+
+	/** Is the file a Moving AI map file, judging by its name. */
+	public static boolean isMap(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/** Is the terrain character passable. */
+	public static boolean isPassable(char terrain) {
+		return terrain == '.' || terrain == 'G' || terrain == 'S';
+	}
+
+	/**
+	 * Load map file as a lattice with the default layout.
+	 * @param file map file
+	 * @return lattice with passable terrain white and the rest black.
+	 * @throws IOException if the file can not be read or is not a valid map.
+	 */
+	public static CostLattice load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			int w = -1, h = -1;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] kv = line.trim().split("\\s+");
+				if (kv[0].equals("map")) break;
+				if (kv.length < 2) continue;
+				if (kv[0].equals("width")) w = Integer.parseInt(kv[1]);
+				else if (kv[0].equals("height")) h = Integer.parseInt(kv[1]);
+			}
+			if (line == null || w <= 0 || h <= 0) throw new IOException("Not a map file: " + file);
+			CostLattice costs = new CostLattice(w, h);
+			for (int y = 0; y < h; y++) {
+				line = in.readLine();
+				if (line == null || line.length() < w) {
+					throw new IOException("Truncated map at row " + y + ": " + file);
+				}
+				for (int x = 0; x < w; x++) {
+					costs.setSample(x, y, isPassable(line.charAt(x)) ? PASSABLE : BLOCKED);
+				}
+			}
+			return costs;
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid map header: " + file);
+		}
+		finally {
+			in.close();
+		}
+	}
+}
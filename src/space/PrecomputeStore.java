@@ -0,0 +1,460 @@
+package space;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import util.DirectMemory;
+
+/**
+ * Persistent store of precomputed artifacts of a map, e.g. landmark
+ * distances or abstractions of the searches, kept in a sidecar directory
+ * next to the map file. Each artifact is one memory mapped file whose header
+ * records the content hash of the lattice, the cost model and the version of
+ * the artifact, so an artifact of a known map is validated and mapped in
+ * milliseconds instead of being computed again.
+ *
+ * Artifact is split into square regions of whole tiles, or is one region
+ * covering the whole map, and each region has a fixed amount of bytes and a
+ * valid flag. Regions are built lazily by the artifact's Builder when they
+ * are first read and are not valid, e.g. because the file was created for
+ * another version of the map. Changing the lattice invalidates the regions
+ * which have changed cells, or changed cells within the artifact's halo
+ * when the builder reads cells around the region. Regions are built from
+ * the lattice they are read for, e.g. a search's snapshot, and each region
+ * remembers the version of the lattice its cells last changed in, so a
+ * snapshot of an older version never reads data of a newer one. Regions
+ * rebuilt after a change are kept in memory and the file is not written
+ * any more, so it stays valid for the version of the map it was created
+ * for. Artifact whose size depends on the map, e.g. a graph, is one region
+ * sized by its SizedBuilder when it is built.
+ *
+ * Artifact file format, all integers big-endian:
+ * <pre>
+ * 0   int    MAGIC "HSPC"
+ * 4   int    VERSION
+ * 8   int    cost model id, CostMapFile.GRAY_COST_MODEL
+ * 12  int    version of the artifact
+ * 16  int    cell layout type, CellLayout.Type ordinal
+ * 20  int    width
+ * 24  int    height
+ * 28  int    side of the regions in cells, 0 if the whole map is one region
+ * 32  int    bytes of one region
+ * 36  int    amount of regions
+ * 40  byte[] content hash of the lattice, HASH_LENGTH ASCII characters
+ * 128 byte[] valid flag of each region, padded to a multiple of 8 bytes
+ *     ...    data of the regions one after another
+ * </pre>
+ * Store whose directory can not be written keeps its artifacts in memory.
+ * @author slinkola
+ *
+ */
+public class PrecomputeStore {
+	/** Suffix of the sidecar directory, appended to the map file name. */
+	public static final String SUFFIX = ".hspc";
+	/** File name extension of the artifact files. */
+	public static final String EXTENSION = ".hspc";
+	/** Magic number at the start of the artifact files, "HSPC". */
+	public static final int MAGIC = 0x48535043;
+	/** Version of the file format. */
+	public static final int VERSION = 1;
+	/** Size of the header in bytes. */
+	public static final int HEADER_SIZE = 128;
+	/** Length of the content hash, hex string of SHA-1. */
+	private static final int HASH_LENGTH = 40;
+	/** Region bytes of the artifacts sized by their builder. */
+	private static final int SIZED = -1;
+
+	/** Computes the data of an artifact region by region. */
+	public interface Builder {
+		/**
+		 * Compute the data of one region of the map.
+		 * @param costs lattice the region is read for, the store's lattice
+		 * or its snapshot
+		 * @param x0 upper left x of the region
+		 * @param y0 upper left y of the region
+		 * @param w width of the region, less than the side at map borders
+		 * @param h height of the region
+		 * @param out buffer of the region's bytes, from position 0
+		 */
+		void build(CostLattice costs, int x0, int y0, int w, int h, ByteBuffer out);
+	}
+
+	/** Computes the data of an artifact whose size depends on the map, which
+	 * is one region covering the whole map. */
+	public interface SizedBuilder extends Builder {
+		/**
+		 * Bytes of the data of the map, called before build() with the same
+		 * lattice.
+		 * @param costs lattice of the map
+		 * @return bytes of the region.
+		 */
+		int size(CostLattice costs);
+	}
+
+	/** Directory of the artifact files, null if artifacts are kept only in
+	 * memory. */
+	private final File dir;
+	/** Lattice of the map. */
+	private final CostLattice costs;
+	/** Artifacts opened from this store. */
+	private final ArrayList<Artifact> artifacts = new ArrayList<Artifact>();
+
+	/**
+	 * Create store for the lattice in the directory, or in memory.
+	 * @param dir directory of the artifact files, created when the first
+	 * artifact is opened, or null to keep the artifacts in memory
+	 * @param costs lattice of the map
+	 */
+	public PrecomputeStore(File dir, CostLattice costs) {
+		this.dir = dir;
+		this.costs = costs;
+	}
+
+	/** Store in the sidecar directory of the map file. */
+	public static PrecomputeStore sidecar(File map, CostLattice costs) {
+		return new PrecomputeStore(new File(map.getPath() + SUFFIX), costs);
+	}
+
+	/** Directory of the artifact files, null if kept in memory. */
+	public File getDirectory() { return this.dir; }
+
+	/**
+	 * Open artifact of the map, mapping its file if it exists. Header of the
+	 * file is validated against the lattice and the arguments, and on any
+	 * mismatch the file is created again with all the regions invalid.
+	 * Artifact which is already open is returned as is.
+	 * @param name name of the artifact, also its file name
+	 * @param version version of the artifact's data, changed when the
+	 * builder changes
+	 * @param regionSide side of the regions in cells, a multiple of the tile
+	 * side, or 0 for one region covering the whole map
+	 * @param regionBytes bytes of one region
+	 * @param builder builder of the regions
+	 * @return the artifact.
+	 */
+	public Artifact open(String name, int version, int regionSide,
+			int regionBytes, Builder builder) {
+		return this.open(name, version, regionSide, regionBytes, 0, builder);
+	}
+
+	/**
+	 * Open artifact of one region whose size is given by the builder when
+	 * the region is built. File of the artifact is valid whatever its size,
+	 * if its header matches.
+	 * @see #open(String, int, int, int, Builder)
+	 */
+	public Artifact open(String name, int version, SizedBuilder builder) {
+		return this.open(name, version, 0, SIZED, 0, builder);
+	}
+
+	/**
+	 * Open artifact whose builder also reads the cells within halo cells
+	 * around the region, so the region is invalidated also when those cells
+	 * change.
+	 * @see #open(String, int, int, int, Builder)
+	 * @param halo cells read around the region by the builder
+	 */
+	public synchronized Artifact open(String name, int version, int regionSide,
+			int regionBytes, int halo, Builder builder) {
+		for (Artifact a: this.artifacts) {
+			if (a.name.equals(name) && a.version == version && a.regionSide == regionSide &&
+					(a.sized ? regionBytes == SIZED : a.regionBytes == regionBytes) && a.halo == halo) {
+				return a;
+			}
+		}
+		if (regionSide % CellLayout.TILE != 0 || regionSide < 0) {
+			throw new IllegalArgumentException("Region side must be a multiple of the tile side.");
+		}
+		if (halo < 0) throw new IllegalArgumentException("Halo must not be negative.");
+		Artifact a = new Artifact(this.costs, name, version, regionSide, regionBytes, halo, builder);
+		if (this.dir != null) {
+			try {
+				a.map(new File(this.dir, name + EXTENSION));
+			}
+			catch (IOException e) {
+				// Not persisted, e.g. read-only directory.
+				a.allocate();
+			}
+		}
+		else {
+			a.allocate();
+		}
+		this.artifacts.add(a);
+		return a;
+	}
+
+	/** Invalidate the regions of all the open artifacts which have changed
+	 * cells. Called when the lattice is changed. */
+	public synchronized void invalidate(ChangeJournal changes) {
+		for (Artifact a: this.artifacts) a.invalidate(changes);
+	}
+
+	/** Unmap the files of the artifacts. Artifacts must not be used after
+	 * this. */
+	public synchronized void close() {
+		for (Artifact a: this.artifacts) a.close();
+		this.artifacts.clear();
+	}
+
+	/**
+	 * Precomputed artifact of the map, whose data is read region by region
+	 * with region().
+	 */
+	public static class Artifact {
+		/** Name of the artifact. */
+		public final String name;
+		/** Version of the artifact's data. */
+		public final int version;
+		/** Side of the regions in cells, 0 if one region. */
+		public final int regionSide;
+		/** Bytes of one region, set when the region is sized. */
+		private int regionBytes;
+		/** Is the artifact one region sized by its builder. */
+		private final boolean sized;
+		/** Has the builder sized the region for the current lattice, so that
+		 * it is ready to build the region. */
+		private boolean sizeCurrent = false;
+		/** Cells read around the region by the builder. */
+		public final int halo;
+		/** Regions on each row. */
+		public final int regionsW;
+		/** Rows of regions. */
+		public final int regionsH;
+		/** Lattice of the map. */
+		private final CostLattice costs;
+		/** Builder of the regions. */
+		private final Builder builder;
+		/** Header, flags and data, as in the file. */
+		private ByteBuffer buffer = null;
+		/** Offset of the data of the first region. */
+		private final int dataOffset;
+		/** Is each region valid for the current version of the lattice. */
+		private final boolean[] valid;
+		/** Version of the lattice each region's cells last changed in, 0 if
+		 * not changed since the artifact was opened. */
+		private final int[] changedAt;
+		/** Regions rebuilt in memory after the lattice was changed, null for
+		 * the regions read from the buffer. */
+		private final ByteBuffer[] rebuilt;
+		/** Has the lattice been changed since the artifact was opened, so
+		 * that rebuilt regions are not valid for the file's version. */
+		private boolean changed = false;
+		/** Was the file valid for the lattice when it was opened. */
+		private boolean loaded = false;
+		/** Amount of regions built since the artifact was opened. */
+		private int built = 0;
+
+		private Artifact(CostLattice costs, String name, int version, int regionSide,
+				int regionBytes, int halo, Builder builder) {
+			this.costs = costs;
+			this.name = name;
+			this.version = version;
+			this.regionSide = regionSide;
+			this.regionBytes = regionBytes;
+			this.sized = regionBytes == SIZED;
+			this.halo = halo;
+			this.builder = builder;
+			this.regionsW = regionSide == 0 ? 1 : (costs.w + regionSide - 1) / regionSide;
+			this.regionsH = regionSide == 0 ? 1 : (costs.h + regionSide - 1) / regionSide;
+			this.valid = new boolean[this.regionsW * this.regionsH];
+			this.changedAt = new int[this.valid.length];
+			this.rebuilt = new ByteBuffer[this.valid.length];
+			this.dataOffset = HEADER_SIZE + (this.valid.length + 7) / 8 * 8;
+		}
+
+		/** Size of the artifact in bytes. */
+		private long size() {
+			return this.dataOffset + (long)this.valid.length * this.regionBytes;
+		}
+
+		/** Map the artifact file, validating or creating it. */
+		private void map(File file) throws IOException {
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel ch = raf.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining() && ch.read(header, header.position()) > 0) { }
+				header.flip();
+				this.loaded = this.isValid(header) && ch.size() == this.size();
+				if (!this.loaded) {
+					if (this.sized) this.sizeRegion();
+					if (this.size() > Integer.MAX_VALUE) throw new IOException("Artifact is too large to map.");
+					// Start over with all the regions invalid.
+					raf.setLength(0);
+					raf.setLength(this.size());
+				}
+				// Mapping stays valid after the channel is closed.
+				MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_WRITE, 0, this.size());
+				this.buffer = b;
+				if (!this.loaded) this.writeHeader();
+				for (int r = 0; r < this.valid.length; r++) {
+					this.valid[r] = this.buffer.get(HEADER_SIZE + r) != 0;
+				}
+			}
+			finally {
+				raf.close();
+			}
+		}
+
+		/** Keep the artifact in memory with all the regions invalid. */
+		private void allocate() {
+			if (this.sized) this.sizeRegion();
+			if (this.size() > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Artifact " + this.name + " is too large.");
+			}
+			this.buffer = ByteBuffer.allocate((int)this.size());
+			this.writeHeader();
+		}
+
+		/** Does the header match the lattice and this artifact. */
+		private boolean isValid(ByteBuffer header) throws IOException {
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) return false;
+			if (header.getInt() != VERSION) return false;
+			if (header.getInt() != CostMapFile.GRAY_COST_MODEL) return false;
+			if (header.getInt() != this.version) return false;
+			if (header.getInt() != this.costs.layout.type.ordinal()) return false;
+			if (header.getInt() != this.costs.w || header.getInt() != this.costs.h) return false;
+			if (header.getInt() != this.regionSide) return false;
+			int bytes = header.getInt();
+			if (bytes != this.regionBytes && !(this.sized && bytes >= 0)) return false;
+			if (header.getInt() != this.valid.length) return false;
+			byte[] hash = new byte[HASH_LENGTH];
+			header.get(hash);
+			if (!new String(hash, "US-ASCII").equals(this.costs.contentHash())) return false;
+			this.regionBytes = bytes;
+			return true;
+		}
+
+		private void writeHeader() {
+			ByteBuffer b = this.buffer.duplicate();
+			b.clear();
+			b.putInt(MAGIC).putInt(VERSION).putInt(CostMapFile.GRAY_COST_MODEL);
+			b.putInt(this.version).putInt(this.costs.layout.type.ordinal());
+			b.putInt(this.costs.w).putInt(this.costs.h);
+			b.putInt(this.regionSide).putInt(this.regionBytes).putInt(this.valid.length);
+			for (char c: this.costs.contentHash().toCharArray()) b.put((byte)c);
+		}
+
+		/** Amount of regions. */
+		public int regions() { return this.valid.length; }
+
+		/** Bytes of one region. */
+		public synchronized int getRegionBytes() {
+			if (this.sized && this.rebuilt[0] != null) return this.rebuilt[0].capacity();
+			return this.regionBytes;
+		}
+
+		/** Region of the x, y -location. */
+		public int regionOf(int x, int y) {
+			if (this.regionSide == 0) return 0;
+			return (y / this.regionSide) * this.regionsW + x / this.regionSide;
+		}
+
+		/** Was the artifact file valid for the map when it was opened, i.e.
+		 * loaded instead of created. */
+		public boolean isLoaded() { return this.loaded; }
+
+		/** Amount of regions built since the artifact was opened. */
+		public synchronized int getBuilt() { return this.built; }
+
+		/** Is the region valid, i.e. read without building it. */
+		public synchronized boolean isValid(int r) { return this.valid[r]; }
+
+		/**
+		 * Data of the region for the lattice, built first if it is not valid
+		 * for the lattice's version. Region built for a snapshot older than
+		 * the region's last change is not kept, so the caller should keep the
+		 * buffer as long as it uses the snapshot.
+		 * @param r region index
+		 * @param costs lattice the region is read for, the store's lattice
+		 * or its snapshot
+		 * @return buffer of the region's bytes from position 0, whose bytes
+		 * do not change while it is used.
+		 */
+		public synchronized ByteBuffer region(int r, CostLattice costs) {
+			// Data of the region is the same in the versions after its change.
+			boolean current = this.changedAt[r] <= costs.getVersion();
+			if (this.valid[r] && current) return this.slice(r);
+			// File is built only for the version of the map it was created for.
+			boolean inFile = current && !this.changed && (!this.sized || this.sizeCurrent);
+			ByteBuffer b;
+			if (inFile) {
+				b = this.slice(r);
+			}
+			else {
+				b = ByteBuffer.allocate(this.sized ? ((SizedBuilder)this.builder).size(costs) : this.regionBytes);
+			}
+			int side = this.regionSide;
+			int x0 = side == 0 ? 0 : (r % this.regionsW) * side;
+			int y0 = side == 0 ? 0 : (r / this.regionsW) * side;
+			int w = side == 0 ? this.costs.w : Math.min(side, this.costs.w - x0);
+			int h = side == 0 ? this.costs.h : Math.min(side, this.costs.h - y0);
+			this.builder.build(costs, x0, y0, w, h, b.duplicate());
+			this.sizeCurrent = false;
+			this.built++;
+			if (current) {
+				this.valid[r] = true;
+				if (inFile) this.buffer.put(HEADER_SIZE + r, (byte)1);
+				else this.rebuilt[r] = b;
+			}
+			return b.duplicate();
+		}
+
+		/** Data of the valid region, from memory or from the buffer. */
+		private ByteBuffer slice(int r) {
+			if (this.rebuilt[r] != null) return this.rebuilt[r].duplicate();
+			ByteBuffer b = this.buffer.duplicate();
+			b.position(this.dataOffset + r * this.regionBytes);
+			b.limit(b.position() + this.regionBytes);
+			return b.slice();
+		}
+
+		/** Size the region of a sized artifact with its builder. */
+		private void sizeRegion() {
+			this.regionBytes = ((SizedBuilder)this.builder).size(this.costs);
+			this.sizeCurrent = true;
+		}
+
+		/** Invalidate the regions which have changed cells within the halo. */
+		synchronized void invalidate(ChangeJournal changes) {
+			if (changes.isEmpty()) return;
+			this.changed = true;
+			this.sizeCurrent = false;
+			// Called after the change, with the new version.
+			int v = this.costs.getVersion();
+			CellLayout layout = this.costs.layout;
+			int d = this.regionSide == 0 ? 0 : this.halo;
+			for (int i = 0; i < changes.size(); i++) {
+				int c = changes.cell(i);
+				int x = layout.x(c), y = layout.y(c);
+				int x1 = Math.min(this.costs.w - 1, x + d), y1 = Math.min(this.costs.h - 1, y + d);
+				// Corners of the halo, regions are larger than the halo.
+				for (int hy = Math.max(0, y - d); hy <= y1; hy = hy == y1 ? y1 + 1 : y1) {
+					for (int hx = Math.max(0, x - d); hx <= x1; hx = hx == x1 ? x1 + 1 : x1) {
+						int r = this.regionOf(hx, hy);
+						// Flags of the file are left as they are.
+						this.valid[r] = false;
+						this.changedAt[r] = v;
+						this.rebuilt[r] = null;
+					}
+				}
+			}
+		}
+
+		/** Write the mapped data to the file and unmap it. */
+		synchronized void close() {
+			if (this.buffer instanceof MappedByteBuffer) {
+				((MappedByteBuffer)this.buffer).force();
+				DirectMemory.unmap((MappedByteBuffer)this.buffer);
+			}
+			this.buffer = null;
+		}
+	}
+}
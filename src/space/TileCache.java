@@ -0,0 +1,352 @@
+package space;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Cache of cost map tiles read from a cost map file, for maps which are too
+ * large to be mapped or kept in memory. File is read in blocks of
+ * BLOCK_TILES consecutive tiles, i.e. BLOCK_SIZE bytes, and at most budget
+ * bytes of blocks are kept in memory. When the cache is full, least recently
+ * used block is evicted with LRU policy, or a block which has not been used
+ * since the clock hand last passed it with CLOCK policy.
+ *
+ * Blocks can be prefetched asynchronously with prefetch(). Prefetch thread
+ * reads the requested blocks while the search keeps expanding cells, so that
+ * the search does not have to wait for the disk when it reaches them.
+ *
+ * Changed blocks are pinned in the cache, since the changes are not written
+ * back to the file.
+ * @author slinkola
+ *
+ */
+public class TileCache {
+	/** Eviction policies of the cache. */
+	public static enum Policy { LRU, CLOCK }
+
+	/** Log2 of the amount of cells in one block. */
+	public static final int BLOCK_BITS = 12;
+	/** Size of one block in bytes, one byte per cell. */
+	public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	/** Amount of tiles in one block. */
+	public static final int BLOCK_TILES = BLOCK_SIZE / CellLayout.TILE_CELLS;
+	/** Minimum amount of blocks in the cache. */
+	public static final int MIN_FRAMES = 16;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+	/** Layout of the cells in the file. */
+	public final CellLayout layout;
+	/** Eviction policy. */
+	public final Policy policy;
+	/** File which has the blocks. */
+	private final FileChannel channel;
+	/** File position of the first cell. */
+	private final long offset;
+	/** Frame of each block, -1 if the block is not in the cache. */
+	private final int[] blockFrame;
+	/** Has each block been requested for prefetching. */
+	private final boolean[] requested;
+	/** Block in each frame, -1 if the frame is empty. */
+	private final int[] frameBlock;
+	/** Data of each frame. */
+	private final byte[][] frames;
+	/** LRU list of the frames, most recently used at head. */
+	private final int[] prev;
+	private final int[] next;
+	private int head = -1;
+	private int tail = -1;
+	/** CLOCK reference bits and hand. */
+	private final boolean[] referenced;
+	private int hand = 0;
+	/** Is the frame changed, and thus not evictable. */
+	private final boolean[] pinned;
+	/** Was the frame filled by prefetch and not yet used. */
+	private final boolean[] prefetched;
+	/** Amount of frames in use. */
+	private int used = 0;
+	/** Blocks waiting for prefetch. */
+	private final LinkedBlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
+	/** Thread which reads prefetched blocks, null if closed. */
+	private Thread prefetcher;
+	/** Block and frame of the latest access. */
+	private int lastBlock = -1;
+	private int lastFrame = -1;
+	/** Block of the latest frontier prefetch hint. */
+	private int lastHint = -1;
+
+	/** Statistics. */
+	private long hits = 0;
+	private long misses = 0;
+	private long prefetchIssued = 0;
+	private long prefetchUsed = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param channel file with the cells of the layout in layout order
+	 * @param offset file position of the first cell
+	 * @param layout layout of the cells in the file
+	 * @param budget maximum amount of bytes of the cached blocks
+	 * @param policy eviction policy
+	 */
+	public TileCache(FileChannel channel, long offset, CellLayout layout, long budget,
+			Policy policy) {
+		this.channel = channel;
+		this.offset = offset;
+		this.layout = layout;
+		this.policy = policy;
+		int blocks = ((layout.size() - 1) >> BLOCK_BITS) + 1;
+		int n = (int)Math.max(MIN_FRAMES, Math.min(blocks, budget / BLOCK_SIZE));
+		this.blockFrame = new int[blocks];
+		Arrays.fill(this.blockFrame, -1);
+		this.requested = new boolean[blocks];
+		this.frameBlock = new int[n];
+		Arrays.fill(this.frameBlock, -1);
+		this.frames = new byte[n][];
+		this.prev = new int[n];
+		this.next = new int[n];
+		this.referenced = new boolean[n];
+		this.pinned = new boolean[n];
+		this.prefetched = new boolean[n];
+		this.prefetcher = new Thread("Tile prefetch") {
+			public void run() {
+				prefetchLoop();
+			}
+		};
+		this.prefetcher.setDaemon(true);
+		this.prefetcher.start();
+	}
+
+	/** Gray scale sample of the cell, read from the file if needed. */
+	public synchronized int sample(int c) {
+		int b = c >>> BLOCK_BITS;
+		if (b == this.lastBlock) {
+			// Repeated accesses to the same block do not change its
+			// position in the eviction order.
+			this.hits++;
+			return this.frames[this.lastFrame][c & BLOCK_MASK] & 0xff;
+		}
+		int f = this.blockFrame[b];
+		if (f < 0) {
+			this.misses++;
+			f = this.install(b, this.read(b), false);
+		}
+		else {
+			this.hits++;
+			this.use(f);
+		}
+		this.lastBlock = b;
+		this.lastFrame = f;
+		return this.frames[f][c & BLOCK_MASK] & 0xff;
+	}
+
+	/** Change gray scale sample of the cell. Block of the cell is pinned in
+	 * the cache. */
+	public synchronized void setSample(int c, int sample) {
+		int f = this.blockFrame[c >>> BLOCK_BITS];
+		if (f < 0) f = this.install(c >>> BLOCK_BITS, this.read(c >>> BLOCK_BITS), false);
+		this.frames[f][c & BLOCK_MASK] = (byte)sample;
+		this.pinned[f] = true;
+	}
+
+	/** Mark frame used by demand access. */
+	private void use(int f) {
+		if (this.prefetched[f]) {
+			this.prefetched[f] = false;
+			this.prefetchUsed++;
+		}
+		if (this.policy == Policy.CLOCK) {
+			this.referenced[f] = true;
+		}
+		else if (f != this.head) {
+			this.unlink(f);
+			this.pushHead(f);
+		}
+	}
+
+	private void unlink(int f) {
+		if (this.prev[f] >= 0) this.next[this.prev[f]] = this.next[f];
+		else this.head = this.next[f];
+		if (this.next[f] >= 0) this.prev[this.next[f]] = this.prev[f];
+		else this.tail = this.prev[f];
+	}
+
+	private void pushHead(int f) {
+		this.prev[f] = -1;
+		this.next[f] = this.head;
+		if (this.head >= 0) this.prev[this.head] = f;
+		this.head = f;
+		if (this.tail < 0) this.tail = f;
+	}
+
+	/**
+	 * Put block data into a free or evicted frame.
+	 * @param b block
+	 * @param data BLOCK_SIZE bytes of the block
+	 * @param prefetch is the block installed by prefetch
+	 * @return frame of the block.
+	 */
+	private int install(int b, byte[] data, boolean prefetch) {
+		int f = this.used < this.frames.length ? this.used++ : this.victim();
+		if (this.frameBlock[f] >= 0) {
+			if (this.frameBlock[f] == this.lastBlock) this.lastBlock = -1;
+			this.blockFrame[this.frameBlock[f]] = -1;
+			this.requested[this.frameBlock[f]] = false;
+			this.evictions++;
+			if (this.policy == Policy.LRU) this.unlink(f);
+		}
+		this.frames[f] = data;
+		this.frameBlock[f] = b;
+		this.blockFrame[b] = f;
+		this.prefetched[f] = prefetch;
+		this.referenced[f] = true;
+		if (this.policy == Policy.LRU) this.pushHead(f);
+		return f;
+	}
+
+	/** Frame to evict according to the policy, never a pinned one. */
+	private int victim() {
+		int n = this.frames.length;
+		if (this.policy == Policy.LRU) {
+			for (int f = this.tail; f >= 0; f = this.prev[f]) {
+				if (!this.pinned[f]) return f;
+			}
+		}
+		else {
+			for (int i = 0; i < 2 * n; i++) {
+				int f = this.hand;
+				this.hand = (this.hand + 1) % n;
+				if (this.pinned[f]) continue;
+				if (!this.referenced[f]) return f;
+				this.referenced[f] = false;
+			}
+		}
+		throw new IllegalStateException("Tile cache is too small for the changed tiles.");
+	}
+
+	/** Read block from the file. Cells past the end of the layout are white. */
+	private byte[] read(int b) {
+		byte[] data = new byte[BLOCK_SIZE];
+		long start = (long)b << BLOCK_BITS;
+		int len = (int)Math.min(BLOCK_SIZE, this.layout.size() - start);
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+		try {
+			while (buf.hasRemaining()) {
+				int r = this.channel.read(buf, this.offset + start + buf.position());
+				if (r < 0) break;
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read tiles: " + e.getMessage(), e);
+		}
+		Arrays.fill(data, buf.position(), BLOCK_SIZE, (byte)255);
+		return data;
+	}
+
+	/** Request block for asynchronous prefetch if it is not in the cache. */
+	private void request(int b) {
+		if (b < 0 || b >= this.blockFrame.length) return;
+		if (this.blockFrame[b] >= 0 || this.requested[b]) return;
+		this.requested[b] = true;
+		this.prefetchIssued++;
+		this.queue.offer(b);
+	}
+
+	/**
+	 * Prefetch the blocks next to the cell, i.e. blocks of the cells one
+	 * tile away in each direction. Called for the expanded cells of the
+	 * search, so that the blocks ahead of the frontier are read before they
+	 * are needed. Hints from the same block as the previous one are ignored.
+	 * @param c expanded cell
+	 */
+	public synchronized void prefetchAround(int c) {
+		int b = c >>> BLOCK_BITS;
+		if (b == this.lastHint) return;
+		this.lastHint = b;
+		int x = this.layout.x(c), y = this.layout.y(c);
+		int t = CellLayout.TILE;
+		this.request(b);
+		if (x >= t) this.request(this.layout.index(x - t, y) >>> BLOCK_BITS);
+		if (y >= t) this.request(this.layout.index(x, y - t) >>> BLOCK_BITS);
+		if (x + t < this.layout.w) this.request(this.layout.index(x + t, y) >>> BLOCK_BITS);
+		if (y + t < this.layout.h) this.request(this.layout.index(x, y + t) >>> BLOCK_BITS);
+	}
+
+	/** Prefetch the block of the cell, e.g. on the planned path. */
+	public synchronized void prefetch(int c) {
+		this.request(c >>> BLOCK_BITS);
+	}
+
+	private void prefetchLoop() {
+		while (true) {
+			int b;
+			try {
+				b = this.queue.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				if (this.blockFrame[b] >= 0 || !this.requested[b]) continue;
+			}
+			byte[] data;
+			try {
+				data = this.read(b);
+			}
+			catch (IllegalStateException e) {
+				// Channel was closed.
+				return;
+			}
+			synchronized (this) {
+				if (this.blockFrame[b] < 0) this.install(b, data, true);
+			}
+		}
+	}
+
+	/** Fraction of the accesses which found their block in the cache. */
+	public synchronized double getHitRate() {
+		long n = this.hits + this.misses;
+		return n == 0 ? 0 : (double)this.hits / n;
+	}
+
+	/** Fraction of the prefetched blocks which were used before eviction. */
+	public synchronized double getPrefetchAccuracy() {
+		return this.prefetchIssued == 0 ? 0 : (double)this.prefetchUsed / this.prefetchIssued;
+	}
+
+	public synchronized long getHits() { return this.hits; }
+	public synchronized long getMisses() { return this.misses; }
+	public synchronized long getEvictions() { return this.evictions; }
+	/** Maximum amount of bytes in the cache. */
+	public long getBudget() { return (long)this.frames.length * BLOCK_SIZE; }
+
+	/** Reset the statistics, e.g. before a new search. */
+	public synchronized void resetStats() {
+		this.hits = this.misses = this.evictions = 0;
+		this.prefetchIssued = this.prefetchUsed = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("tile cache %d kB %s: hit rate %.3f, prefetch accuracy %.3f (%d/%d), %d evictions",
+				this.getBudget() / 1024, this.policy, this.getHitRate(), this.getPrefetchAccuracy(),
+				this.prefetchUsed, this.prefetchIssued, this.evictions);
+	}
+
+	/** Stop prefetching and close the file. Cache must not be used after
+	 * this. */
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = this.prefetcher;
+			this.prefetcher = null;
+		}
+		if (t != null) t.interrupt();
+		try {
+			this.channel.close();
+		}
+		catch (IOException e) { }
+	}
+}
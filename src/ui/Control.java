@@ -51,6 +51,10 @@ public class Control extends JPanel implements ActionListener, ChangeListener {
 	private final JRadioButton ADStarButton = new JRadioButton();
 	/** Button for naive anytime search */
 	private final JRadioButton NaiveAnytimeButton = new JRadioButton();
+	/** Button for HPA* search */
+	private final JRadioButton HPAStarButton = new JRadioButton();
+	/** Button for subgoal graph search */
+	private final JRadioButton SubgoalButton = new JRadioButton();
 
 	public Control() {
 		//this.setBackground(new Color(240, 230, 245));
@@ -75,7 +79,7 @@ public class Control extends JPanel implements ActionListener, ChangeListener {
 
 		// Search type buttons
 		JPanel searchTypeWrapper = new JPanel();
-		searchTypeWrapper.setLayout(new GridLayout(2, 3, 0, 0));
+		searchTypeWrapper.setLayout(new GridLayout(2, 4, 0, 0));
 		searchTypeWrapper.setPreferredSize(new Dimension(280, 70));
 		searchTypeWrapper.setBounds(0, 0, this.width, 100);
 		searchTypeWrapper.setOpaque(false);
@@ -85,12 +89,16 @@ public class Control extends JPanel implements ActionListener, ChangeListener {
 		this.searchTypeButtons.add(this.DLiteButton);
 		this.searchTypeButtons.add(this.ARAButton);
 		this.searchTypeButtons.add(this.ADStarButton);
+		this.searchTypeButtons.add(this.HPAStarButton);
+		this.searchTypeButtons.add(this.SubgoalButton);
 		this.AStarButton.setSelected(true);
 		UIScheme.initButton(this.AStarButton, 55, 25, searchTypeWrapper, "A*", this);
 		UIScheme.initButton(this.NaiveAnytimeButton, 55, 25, searchTypeWrapper, "NAA*", this);
 		UIScheme.initButton(this.ARAButton, 55, 25, searchTypeWrapper, "ARA*", this);
 		UIScheme.initButton(this.DLiteButton, 55, 25, searchTypeWrapper, "D* Lite", this);
 		UIScheme.initButton(this.ADStarButton, 55, 25, searchTypeWrapper, "AD*", this);
+		UIScheme.initButton(this.HPAStarButton, 55, 25, searchTypeWrapper, "HPA*", this);
+		UIScheme.initButton(this.SubgoalButton, 55, 25, searchTypeWrapper, "SG", this);
 		controlWrapper.add(searchTypeWrapper);
 		
 		// Color slider
@@ -162,6 +170,14 @@ public class Control extends JPanel implements ActionListener, ChangeListener {
 			EventHandler.printInfo("AD* search selected.");
 			EventHandler.changeSearchType(SearchType.ADSTAR);
 		}
+		else if (ac.equals("HPA*")) {
+			EventHandler.printInfo("HPA* search selected.");
+			EventHandler.changeSearchType(SearchType.HPASTAR);
+		}
+		else if (ac.equals("SG")) {
+			EventHandler.printInfo("Subgoal graph search selected.");
+			EventHandler.changeSearchType(SearchType.SUBGOAL);
+		}
 		
 		MainUI.map.requestFocusInWindow();
 	}
@@ -173,6 +189,8 @@ public class Control extends JPanel implements ActionListener, ChangeListener {
 		if (actionCommand == "NAA*") return SearchType.NAIVE_ANYTIME;
 		if (actionCommand == "D* Lite") return SearchType.D_LITE;
 		if (actionCommand == "ARA*") return SearchType.ARA;
+		if (actionCommand == "HPA*") return SearchType.HPASTAR;
+		if (actionCommand == "SG") return SearchType.SUBGOAL;
 		else return SearchType.ADSTAR;
 	}
 
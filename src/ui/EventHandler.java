@@ -2,8 +2,6 @@ package ui;
 
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorConvertOp;
-import java.awt.color.ColorSpace;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -13,8 +11,16 @@ import java.util.concurrent.locks.ReentrantLock;
 import javax.imageio.ImageIO;
 
 import robot.SearchBot;
+import searchs.HeuristicType;
 import searchs.Node;
 import searchs.SearchType;
+import space.ChangeJournal;
+import space.CostLattice;
+import space.CostMapFile;
+import space.ImageIngest;
+import space.MovingAIMap;
+import space.PrecomputeStore;
+import space.TileCache;
 
 
 /**
@@ -27,9 +33,15 @@ import searchs.SearchType;
 public class EventHandler {
 	
 	private static Object infoLock = new Object();
+	/** Map which is currently being loaded in the background, or null. */
+	private static MapLoader loader = null;
 
-	/** Load image map, convert it to gray scale and assemble it to UI. */
+	/** Load image map, convert it to gray scale and assemble it to UI. Cost
+	 * map files are memory mapped instead, and Moving AI maps are read as 
+	 * text. */
 	public static boolean loadMap(File file) {
+		if (CostMapFile.isCostMap(file)) return loadCostMap(file);
+		if (MovingAIMap.isMap(file)) return loadMovingAIMap(file);
 		BufferedImage map;
 		try {
 			map = ImageIO.read(file);
@@ -37,38 +49,111 @@ public class EventHandler {
 		catch (IOException e) {
 			return false;
 		}
+		if (map == null) return false;
 		String msg = String.format("Loaded image: %s", file.getAbsolutePath());
 		EventHandler.printInfo(msg);
 		
-		ColorConvertOp op = 
-			    new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
-		op.filter(map, map);
+		// Image is converted to gray scale in place while the lattice is built.
+		CostLattice lattice = ImageIngest.ingest(map);
+		lattice.setStore(PrecomputeStore.sidecar(file, lattice));
 		MainUI.map.setMapImage(map);
 		SearchType s = MainUI.util.control.getSelectedSearchType();
-		MainUI.map.updateRobot(new SearchBot(map, s));
+		MainUI.map.updateRobot(new SearchBot(lattice, s));
 		return true;
 	}
 	
-	/** Clear current search from map. */
+	/** Load image map in the background, showing it progressively while it
+	 * is converted. Previous background loading, if any, is cancelled. Cost
+	 * map files are only mapped, and Moving AI maps are small, so they are
+	 * opened right away. */
+	public static boolean loadMapAsync(File file) {
+		if (EventHandler.loader != null) EventHandler.loader.cancel(true);
+		EventHandler.loader = null;
+		if (CostMapFile.isCostMap(file)) return loadCostMap(file);
+		if (MovingAIMap.isMap(file)) return loadMovingAIMap(file);
+		EventHandler.loader = new MapLoader(file);
+		EventHandler.loader.execute();
+		return true;
+	}
+	
+	/** Update the current map from a new version of its image in the
+	 * background. Only the cells which differ from the current map are
+	 * changed, and the running search replans with them. Image must be as
+	 * large as the map. */
+	public static boolean loadUpdatedMap(File file) {
+		SearchBot robot = MainUI.map.robot;
+		if (robot == null || robot.getLattice().isLoading()) return false;
+		new MapUpdater(file, robot).execute();
+		return true;
+	}
+	
+	/** Load cost map file by memory mapping it, and assemble it to UI. If
+	 * system property hscm.cache is set, tiles are read through a tile cache
+	 * of that many bytes instead, and hscm.policy selects LRU or CLOCK
+	 * eviction. */
+	private static boolean loadCostMap(File file) {
+		CostLattice lattice;
+		long t0 = System.currentTimeMillis();
+		long budget = Long.getLong("hscm.cache", 0);
+		try {
+			if (budget > 0) {
+				String p = System.getProperty("hscm.policy", TileCache.Policy.CLOCK.name());
+				lattice = CostMapFile.openCached(file, budget, TileCache.Policy.valueOf(p));
+			}
+			else {
+				lattice = CostMapFile.open(file);
+			}
+		}
+		catch (IOException e) {
+			EventHandler.printInfo("Could not open cost map: " + e.getMessage());
+			return false;
+		}
+		lattice.setStore(PrecomputeStore.sidecar(file, lattice));
+		String msg = String.format("Mapped cost map: %s (%d ms)", file.getAbsolutePath(),
+				System.currentTimeMillis() - t0);
+		EventHandler.printInfo(msg);
+		MainUI.map.setMapImage(lattice.toImage());
+		SearchType s = MainUI.util.control.getSelectedSearchType();
+		MainUI.map.updateRobot(new SearchBot(lattice, s));
+		return true;
+	}
+	
+	/** Load Moving AI benchmark map and assemble it to UI. */
+	private static boolean loadMovingAIMap(File file) {
+		CostLattice lattice;
+		try {
+			lattice = MovingAIMap.load(file);
+		}
+		catch (IOException e) {
+			EventHandler.printInfo("Could not load map: " + e.getMessage());
+			return false;
+		}
+		lattice.setStore(PrecomputeStore.sidecar(file, lattice));
+		EventHandler.printInfo("Loaded Moving AI map: " + file.getAbsolutePath());
+		MainUI.map.setMapImage(lattice.toImage());
+		SearchType s = MainUI.util.control.getSelectedSearchType();
+		MainUI.map.updateRobot(new SearchBot(lattice, s));
+		return true;
+	}
+	
+	/** Clear current search from map. New robot shares the old robot's cost
+	 * lattice, which is up to date with the map image. */
 	public static void clearMap() {
-		int w = MainUI.map.mapImage.getWidth();
-		int h = MainUI.map.mapImage.getHeight();
+		SearchBot old = MainUI.map.robot;
+		old.clearSearch();
 		MainUI.map.clearSearchedImage();
 		SearchType s = MainUI.util.control.getSelectedSearchType();
-		MainUI.map.updateRobot(new SearchBot(MainUI.map.mapImage, s));	
+		MainUI.map.updateRobot(new SearchBot(old.getLattice(), s));	
 	}
 	
-	/** Update robot's map with img and tell robot that the line between
-	 * drawn [0, 1] and [2, 3] was drawn so that it knows to search for
-	 * differencies on images from that section. 
+	/** Tell robot which cells of its map were changed, e.g. by drawing a 
+	 * line, so that it updates its lattice and replans with only them.
 	 * 
-	 * @param img map from which robot gets its Raster data
-	 * @param drawn atleast 4-length array from which line is extracted as
-	 * {x1, y1, x2, y2..}, rest of the array is not taken into account.
+	 * @param changes journal of the changed cells and their samples
 	 * */
-	public static void setRobotMap(BufferedImage img, int[] drawn) {
+	public static void setRobotMap(ChangeJournal changes) {
 		MainUI.map.clearSearchedImage();
-		MainUI.map.robot.setMap(img, drawn);
+		MainUI.map.robot.applyChanges(changes);
 	}
 	
 	/**
@@ -91,19 +176,72 @@ public class EventHandler {
 		}
 	}
 	
+	/** Is the x, y -location of the robot's map loaded, and if not, tell the
+	 * user to wait. */
+	private static boolean isLoaded(int[] point, String what) {
+		if (MainUI.map.robot.getLattice().isLoaded(point[0], point[1])) return true;
+		EventHandler.printInfo("Map is still loading at the " + what + ", try again soon.");
+		return false;
+	}
+	
 	public static void setRobotRoot(int[] point) {
+		if (!isLoaded(point, "root")) return;
 		MainUI.map.robot.setRoot(point);
 		MainUI.map.repaint();
 	} 
 	
 	public static void setRobotGoal(int[] point) {
+		if (!isLoaded(point, "goal")) return;
 		MainUI.map.robot.setGoal(point);
 		MainUI.map.repaint();
 	} 
 	
-	/** Start robot's current search. */
+	/** Start robot's current search. Searches started before the whole map
+	 * is loaded wait for the bands they need. */
 	public static void startSearch() {
-		MainUI.map.robot.startSearch();
+		SearchBot r = MainUI.map.robot;
+		if (r.getRoot() != null && !isLoaded(r.getRoot(), "root")) return;
+		if (r.getGoal() != null && !isLoaded(r.getGoal(), "goal")) return;
+		r.startSearch();
+	}
+	
+	/** Save the state of the robot's D* Lite or AD* search to a checkpoint
+	 * file. */
+	public static boolean saveSearch(File file) {
+		try {
+			MainUI.map.robot.saveSearch(file);
+		}
+		catch (IOException e) {
+			EventHandler.printInfo("Could not save search: " + e.getMessage());
+			return false;
+		}
+		catch (IllegalArgumentException e) {
+			EventHandler.printInfo("Could not save search: " + e.getMessage());
+			return false;
+		}
+		EventHandler.printInfo("Saved search: " + file.getAbsolutePath());
+		return true;
+	}
+	
+	/** Restore robot's search from a checkpoint file saved on the current
+	 * map and continue it. */
+	public static boolean restoreSearch(File file) {
+		SearchBot r = MainUI.map.robot;
+		if (r == null || r.getLattice().isLoading()) return false;
+		long t0 = System.currentTimeMillis();
+		try {
+			r.restoreSearch(file);
+		}
+		catch (IOException e) {
+			EventHandler.printInfo("Could not restore search: " + e.getMessage());
+			return false;
+		}
+		EventHandler.printInfo(String.format("Restored search: %s (%d ms)",
+				file.getAbsolutePath(), System.currentTimeMillis() - t0));
+		MainUI.map.clearSearchedImage();
+		MainUI.map.repaint();
+		r.startSearch();
+		return true;
 	}
 	
 	/** Clear robot's current search. */
@@ -118,6 +256,12 @@ public class EventHandler {
 		MainUI.map.robot.changeSearchType(s);
 	}
 	
+	/** Change heuristic of the robot's searches to h. */
+	public static void changeHeuristicType(HeuristicType h) {
+		printInfo(h + " heuristic selected.");
+		if (MainUI.map.robot != null) MainUI.map.robot.setHeuristicType(h);
+	}
+	
 	public static void repaintMap() {
 		MainUI.map.repaint();
 	}
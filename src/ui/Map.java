@@ -1,6 +1,5 @@
 package ui;
 
-import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
@@ -32,6 +31,8 @@ import javax.swing.event.ChangeListener;
 
 
 import robot.SearchBot;
+import space.CellLayout;
+import space.ChangeJournal;
 import searchs.Node;
 
 
@@ -46,6 +47,8 @@ public class Map extends JPanel implements MouseListener, MouseMotionListener,
 	ActionListener {	
 	/** Serialization UID. */
 	static final long serialVersionUID = 1L;
+	/** Width of the drawn lines in pixels, odd. */
+	private static final int BRUSH = 3;
 	/** Width of the JLayeredPane. */
 	private int width; 	
 	/** Height of the JLayeredPane. */
@@ -141,6 +144,7 @@ public class Map extends JPanel implements MouseListener, MouseMotionListener,
 	
 	/** Change or reset this map's robot and draw robot's information on map. */
 	public void updateRobot(SearchBot r) {
+		if (r != null) r.setHeuristicType(MainUI.menuBar.getSelectedHeuristicType());
 		this.robot = r;
 		this.repaint();
 	}
@@ -187,15 +191,54 @@ public class Map extends JPanel implements MouseListener, MouseMotionListener,
 	public void mouseReleased(MouseEvent e) {
 		int x = e.getX(); int y = e.getY();
 		if (x == lineStart[0] && y == lineStart[1]) return;
+		// Bands still being converted would overwrite the line.
+		if (this.robot != null && this.robot.getLattice().isLoading()) {
+			EventHandler.printInfo("Map is still loading, drawing is disabled.");
+			return;
+		}
+		
+		ChangeJournal changes = this.drawLine(lineStart[0], lineStart[1], x, y);
+		this.repaint();
 		
-		Graphics2D g = (Graphics2D)mapImage.getGraphics();
-        g.setColor(this.drawingColor);
-		g.setStroke(new BasicStroke(3, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_BEVEL));
-        g.drawLine(lineStart[0], lineStart[1], e.getX(), e.getY());
-        g.dispose();
-        this.repaint();
-        
-        EventHandler.setRobotMap(this.mapImage, new int[] {lineStart[0], lineStart[1], x, y});
+		EventHandler.setRobotMap(changes);
+	}
+	
+	/**
+	 * Draw line with square brush of BRUSH pixels on the map image and record
+	 * the pixels whose sample changed, in the cells of the robot's lattice.
+	 * @return journal of the changed cells.
+	 */
+	private ChangeJournal drawLine(int x0, int y0, int x1, int y1) {
+		ChangeJournal changes = new ChangeJournal();
+		CellLayout layout = this.robot.getLattice().layout;
+		WritableRaster r = this.mapImage.getRaster();
+		int rgb = this.drawingColor.getRGB();
+		int w = this.mapImage.getWidth(), h = this.mapImage.getHeight();
+		int dx = Math.abs(x1 - x0), dy = -Math.abs(y1 - y0);
+		int sx = x0 < x1 ? 1 : -1, sy = y0 < y1 ? 1 : -1;
+		int err = dx + dy;
+		// Bresenham's line, each pixel of the line painted with the brush.
+		while (true) {
+			for (int j = y0 - BRUSH / 2; j <= y0 + BRUSH / 2; j++) {
+				for (int i = x0 - BRUSH / 2; i <= x0 + BRUSH / 2; i++) {
+					if (i < 0 || j < 0 || i >= w || j >= h) continue;
+					int old = r.getSample(i, j, 0);
+					this.mapImage.setRGB(i, j, rgb);
+					changes.record(layout.index(i, j), old, r.getSample(i, j, 0));
+				}
+			}
+			if (x0 == x1 && y0 == y1) break;
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x0 += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y0 += sy;
+			}
+		}
+		return changes;
 	}
 	
 	@Override
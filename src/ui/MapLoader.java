@@ -0,0 +1,214 @@
+package ui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+
+import robot.SearchBot;
+import searchs.SearchType;
+import space.CellLayout;
+import space.CostLattice;
+import space.ImageIngest;
+import space.PrecomputeStore;
+
+/**
+ * Background loader of image maps. Image is decoded straight into the map
+ * image shown in the UI, and as soon as a band of rows is decoded it is
+ * converted to gray scale and filled into the cost lattice by a pool of
+ * threads. Map and the robot are shown right after the size of the image is
+ * known, and the map is repainted as the bands are converted, so the UI
+ * stays responsive and root and goal can be set on the loaded part of the
+ * map while the rest is still loading.
+ *
+ * Only png and jpeg images are converted while they are decoded. Interlaced
+ * and other multi-pass images, and other formats, are converted after they
+ * are fully decoded.
+ * @author slinkola
+ *
+ */
+public class MapLoader extends SwingWorker<CostLattice, Integer> {
+	/** Formats whose readers report the rows as they are written, from the
+	 * top down. E.g. the bitmap reader reports rows top down but writes them
+	 * bottom up. */
+	private static final String[] PROGRESSIVE_FORMATS = {"png", "jpeg"};
+	/** Published when the map is ready to be shown. */
+	private static final int SHOW = -1;
+
+	/** Image file to load. */
+	private final File file;
+	/** Map image which is decoded and converted in place. */
+	private volatile BufferedImage img = null;
+	/** Lattice which is filled band by band. */
+	private volatile CostLattice lattice = null;
+	/** Start time of the loading. */
+	private long t0;
+
+	/** Create loader for the image file. Loading is started with execute(). */
+	public MapLoader(File file) {
+		this.file = file;
+	}
+
+	/** SwingWorker's overrided method, started when execute() is called from
+	 * the UI. Decodes the image and builds the lattice. */
+	@Override
+	protected CostLattice doInBackground() throws IOException, InterruptedException {
+		this.t0 = System.currentTimeMillis();
+		ImageInputStream in = ImageIO.createImageInputStream(this.file);
+		if (in == null) throw new IOException("Could not open " + this.file);
+		ImageReader reader = null;
+		ExecutorService pool = null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) throw new IOException("Unknown image format: " + this.file);
+			reader = readers.next();
+			reader.setInput(in, true, true);
+			final int w = reader.getWidth(0), h = reader.getHeight(0);
+			ImageTypeSpecifier type = reader.getImageTypes(0).next();
+			this.img = type.createBufferedImage(w, h);
+			this.lattice = new CostLattice(new CellLayout(w, h, CellLayout.Type.TILED));
+			this.lattice.startLoading(ImageIngest.BAND);
+			this.lattice.setStore(PrecomputeStore.sidecar(this.file, this.lattice));
+			this.publish(SHOW);
+
+			final ExecutorService bands = Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors());
+			pool = bands;
+			final List<Future<Void>> done = new ArrayList<Future<Void>>();
+			final ImageReader r = reader;
+			// Rows decoded so far from the top, or -1 when the image has several
+			// passes or is not decoded from the top down.
+			final int[] decoded = {isProgressive(reader) ? 0 : -1};
+			reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+				public void passStarted(ImageReader source, BufferedImage theImage, int pass,
+						int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+						int[] bands) {
+					if (maxPass > minPass) decoded[0] = -1;
+				}
+				public void imageUpdate(ImageReader source, BufferedImage theImage, int minX,
+						int minY, int width, int height, int periodX, int periodY, int[] bands) {
+					if (isCancelled()) {
+						r.abort();
+						return;
+					}
+					if (decoded[0] < 0) return;
+					if (periodY != 1 || minY > decoded[0]) {
+						// Not decoded from the top down, e.g. bottom-up bitmaps.
+						decoded[0] = -1;
+						return;
+					}
+					int y = Math.max(decoded[0], minY + height);
+					// Submit the bands which were completed by this update.
+					for (int b = decoded[0] / ImageIngest.BAND; b < y / ImageIngest.BAND; b++) {
+						submit(b * ImageIngest.BAND, ImageIngest.BAND);
+					}
+					decoded[0] = y;
+				}
+				public void passComplete(ImageReader source, BufferedImage theImage) { }
+				public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail,
+						int pass, int minPass, int maxPass, int minX, int minY, int periodX,
+						int periodY, int[] bands) { }
+				public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail,
+						int minX, int minY, int width, int height, int periodX, int periodY,
+						int[] bands) { }
+				public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) { }
+
+				private void submit(int y0, int rows) {
+					done.add(bands.submit(ImageIngest.band(img, lattice, y0, rows)));
+					publish(y0);
+				}
+			});
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setDestination(this.img);
+			reader.read(0, param);
+			if (this.isCancelled()) throw new CancellationException();
+
+			// Rest of the bands, or all of them if the image had several passes.
+			int from = decoded[0] < 0 ? 0 : decoded[0] / ImageIngest.BAND * ImageIngest.BAND;
+			for (int y = from; y < h; y += ImageIngest.BAND) {
+				done.add(bands.submit(ImageIngest.band(this.img, this.lattice, y,
+						Math.min(ImageIngest.BAND, h - y))));
+			}
+			for (Future<Void> f: done) {
+				try {
+					f.get();
+				}
+				catch (ExecutionException e) {
+					throw new IOException("Could not convert image.", e.getCause());
+				}
+			}
+			this.lattice.finishLoading();
+			return this.lattice;
+		}
+		finally {
+			if (pool != null) pool.shutdownNow();
+			if (reader != null) reader.dispose();
+			in.close();
+		}
+	}
+
+	/** Can the bands be converted while the reader decodes the image. */
+	private static boolean isProgressive(ImageReader reader) throws IOException {
+		for (String f: PROGRESSIVE_FORMATS) {
+			if (f.equalsIgnoreCase(reader.getFormatName())) return true;
+		}
+		return false;
+	}
+
+	/** SwingWorker's overrided method, called in the EDT with the first rows
+	 * of the converted bands. Shows the map first and then repaints it. */
+	@Override
+	protected void process(List<Integer> chunks) {
+		if (chunks.get(0) == SHOW) {
+			if (this.isCancelled()) return;
+			EventHandler.printInfo(String.format("Loading image: %s (%d x %d)",
+					this.file.getAbsolutePath(), this.img.getWidth(), this.img.getHeight()));
+			MainUI.map.setMapImage(this.img);
+			SearchType s = MainUI.util.control.getSelectedSearchType();
+			MainUI.map.updateRobot(new SearchBot(this.lattice, s));
+			return;
+		}
+		MainUI.map.repaint();
+	}
+
+	/** SwingWorker's overrided method. Called when the loading is complete,
+	 * failed or was cancelled. */
+	@Override
+	protected void done() {
+		try {
+			this.get();
+			EventHandler.printInfo(String.format("Loaded image: %s (%d ms)",
+					this.file.getAbsolutePath(), System.currentTimeMillis() - this.t0));
+			MainUI.map.repaint();
+			return;
+		}
+		catch (CancellationException e) {
+			EventHandler.printInfo("Cancelled loading of " + this.file.getAbsolutePath());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			EventHandler.printInfo("Could not load map: " + e.getCause().getMessage());
+			JOptionPane.showMessageDialog(null, "Could not load map.");
+		}
+		// Do not leave searches waiting for bands which are never loaded.
+		if (this.lattice != null) this.lattice.finishLoading();
+	}
+}
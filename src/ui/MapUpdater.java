@@ -0,0 +1,85 @@
+package ui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageIO;
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+
+import robot.SearchBot;
+import space.ChangeJournal;
+import space.CostLattice;
+import space.ImageIngest;
+
+/**
+ * Background updater of the map from a new version of its image. New image
+ * is converted to gray scale and compared with a snapshot of the robot's
+ * lattice in parallel, and the differing cells are then applied to the
+ * lattice and given to the running search as one journal, so D* Lite and
+ * AD* repair their plans instead of starting over.
+ * @author slinkola
+ *
+ */
+public class MapUpdater extends SwingWorker<ChangeJournal, Void> {
+	/** New image of the map. */
+	private final File file;
+	/** Robot whose map is updated. */
+	private final SearchBot robot;
+	/** New map image, converted to gray scale. */
+	private BufferedImage img = null;
+	/** Start time of the update. */
+	private long t0;
+
+	/** Create updater of the robot's map. Update is started with execute(). */
+	public MapUpdater(File file, SearchBot robot) {
+		this.file = file;
+		this.robot = robot;
+	}
+
+	/** SwingWorker's overrided method, started when execute() is called from
+	 * the UI. Reads the image and compares it with the lattice. */
+	@Override
+	protected ChangeJournal doInBackground() throws IOException {
+		this.t0 = System.currentTimeMillis();
+		BufferedImage map = ImageIO.read(this.file);
+		if (map == null) throw new IOException("Unknown image format: " + this.file);
+		CostLattice costs = this.robot.getLattice().snapshot();
+		if (map.getWidth() != costs.w || map.getHeight() != costs.h) {
+			throw new IOException(String.format("Image is %d x %d, map is %d x %d.",
+					map.getWidth(), map.getHeight(), costs.w, costs.h));
+		}
+		ChangeJournal changes = ImageIngest.diff(map, costs,
+				Runtime.getRuntime().availableProcessors());
+		this.img = map;
+		return changes;
+	}
+
+	/** SwingWorker's overrided method. Shows the new image and applies the
+	 * changes to the robot, if it is still the robot on the map. */
+	@Override
+	protected void done() {
+		try {
+			ChangeJournal changes = this.get();
+			if (MainUI.map.robot != this.robot) return;
+			MainUI.map.setMapImage(this.img);
+			this.robot.applyChanges(changes);
+			EventHandler.printInfo(String.format("Updated map: %s, %d changed cells (%d ms)",
+					this.file.getAbsolutePath(), changes.size(),
+					System.currentTimeMillis() - this.t0));
+		}
+		catch (CancellationException e) {
+			return;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			EventHandler.printInfo("Could not update map: " + e.getCause().getMessage());
+			JOptionPane.showMessageDialog(null, "Could not update map.");
+		}
+	}
+}
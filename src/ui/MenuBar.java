@@ -7,6 +7,7 @@ import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.IOException;
 
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -14,6 +15,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
 
+import searchs.HeuristicType;
+
 /**
  * Main menu bar of the UI. Sets menus, menu items and keyboard shortcuts to 
  * some of the menu items.
@@ -28,17 +31,39 @@ public class MenuBar extends JMenuBar implements ActionListener {
 	private static final JMenuItem zoomIn = new JMenuItem("Zoom In");
 	private static final JMenuItem zoomOut = new JMenuItem("Zoom Out");
 	private static final JMenuItem load = new JMenuItem("Load Map");
+	private static final JMenuItem update = new JMenuItem("Load Updated Map");
+	private static final JMenuItem save = new JMenuItem("Save Search");
+	private static final JMenuItem restore = new JMenuItem("Restore Search");
+	private static final JCheckBoxMenuItem landmarks = new JCheckBoxMenuItem("Landmark Heuristic");
 	private static final JFileChooser chooser = new JFileChooser();
 	private static final JMenu helpMenu = new JMenu("Help");
 	private static final JMenuItem instructions= new JMenuItem("Instructions");
+	/** Modifier key of the menu shortcuts of the platform. */
+	@SuppressWarnings("deprecation")
+	private static final int shortcutMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
 	
 	private static final String msg = 
 			"CTRL-click sets root\n" +
 			"ALT-click sets goal\n" +
 			"Any image (jpg/png) can be loaded as a map.\n" +
 			"The image is converted to the gray scale in memory.\n" +
+			"Cost map files (.hscm) are memory mapped as is, convert\n" +
+			"images with: java space.CostMapFile image.png map.hscm\n" +
+			"Moving AI benchmark maps (.map) can be loaded too.\n" +
+			"New version of the map image can be loaded with\n" +
+			"Load Updated Map, and the search replans the changes.\n" +
+			"D* Lite and AD* searches can be saved and restored\n" +
+			"on the same map to continue replanning.\n" +
+			"Landmark Heuristic makes the searches use landmark\n" +
+			"distance bounds, which are computed on first use.\n" +
+			"HPA* plans long routes over clusters of the map and\n" +
+			"refines only the part the robot is about to travel.\n" +
+			"SG searches the subgoal graph of the map, which is\n" +
+			"built once per map and kept next to the map file.\n" +
 			"Travel cost to each pixel is depended on the\n" +
 			"darkness of the pixel.\n" +
+			"Black pixels are crossed only when there is no other\n" +
+			"way, but HPA* and SG treat them as obstacles.\n" +
 			"Straight lines can be drawn with currently selected\n" +
 			"gray scale color by clicking starting point and dragging\n" +
 			"the mouse to the ending point of the line.";	
@@ -49,26 +74,70 @@ public class MenuBar extends JMenuBar implements ActionListener {
 		load.addActionListener(this);	
 		mapMenu.add(load);
 		load.setAccelerator(KeyStroke.getKeyStroke(
-		        KeyEvent.VK_L, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		        KeyEvent.VK_L, shortcutMask));
+		update.addActionListener(this);
+		mapMenu.add(update);
+		update.setAccelerator(KeyStroke.getKeyStroke(
+		        KeyEvent.VK_U, shortcutMask));
+		mapMenu.addSeparator();
+		save.addActionListener(this);
+		mapMenu.add(save);
+		restore.addActionListener(this);
+		mapMenu.add(restore);
+		mapMenu.addSeparator();
+		landmarks.addActionListener(this);
+		mapMenu.add(landmarks);
 		this.add(mapMenu);
 		instructions.addActionListener(this);
 		instructions.setAccelerator(KeyStroke.getKeyStroke(
-		        KeyEvent.VK_I, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		        KeyEvent.VK_I, shortcutMask));
 		helpMenu.add(instructions);
 		this.add(helpMenu);
 	}
 
+	/** Get currently selected HeuristicType. */
+	public HeuristicType getSelectedHeuristicType() {
+		return landmarks.isSelected() ? HeuristicType.LANDMARKS : HeuristicType.MANHATTAN;
+	}
+
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		if (e.getSource() == load) {
 			int ret = chooser.showOpenDialog(this);
 			if (ret == JFileChooser.APPROVE_OPTION) {
 				File file = chooser.getSelectedFile();
-				if (!EventHandler.loadMap(file)) {
+				if (!EventHandler.loadMapAsync(file)) {
 					JOptionPane.showMessageDialog(null, "Could not load map.");
 				}
 			}
 		}
+		if (e.getSource() == update) {
+			int ret = chooser.showOpenDialog(this);
+			if (ret == JFileChooser.APPROVE_OPTION) {
+				if (!EventHandler.loadUpdatedMap(chooser.getSelectedFile())) {
+					JOptionPane.showMessageDialog(null, "Could not update map.");
+				}
+			}
+		}
+		if (e.getSource() == save) {
+			int ret = chooser.showSaveDialog(this);
+			if (ret == JFileChooser.APPROVE_OPTION) {
+				if (!EventHandler.saveSearch(chooser.getSelectedFile())) {
+					JOptionPane.showMessageDialog(null, "Could not save search.");
+				}
+			}
+		}
+		if (e.getSource() == restore) {
+			int ret = chooser.showOpenDialog(this);
+			if (ret == JFileChooser.APPROVE_OPTION) {
+				if (!EventHandler.restoreSearch(chooser.getSelectedFile())) {
+					JOptionPane.showMessageDialog(null, "Could not restore search.");
+				}
+			}
+		}
+		if (e.getSource() == landmarks) {
+			EventHandler.changeHeuristicType(this.getSelectedHeuristicType());
+		}
 		if (e.getSource() == instructions) {
 			JOptionPane.showMessageDialog(null, msg, "Instructions", JOptionPane.INFORMATION_MESSAGE);
 		}
@@ -0,0 +1,88 @@
+package util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Allocation and explicit release of memory outside the Java heap. Memory is
+ * allocated as direct byte buffers in native byte order, which the garbage
+ * collector does not scan or copy.
+ *
+ * Direct buffers are normally freed only when they are garbage collected,
+ * so free() releases the memory right away with the buffer's cleaner, if
+ * the JVM allows it. Buffer must not be used after it has been freed.
+ *
+ * Total direct memory is limited by -XX:MaxDirectMemorySize, which defaults
+ * to the maximum heap size, so raise it when working on huge maps.
+ * @author slinkola
+ *
+ */
+public class DirectMemory {
+	/** Bytes currently allocated with allocate() and not freed. */
+	private static long allocated = 0;
+
+	/**
+	 * Allocate zeroed memory outside the Java heap.
+	 * @param bytes size of the memory in bytes
+	 * @return direct buffer in native byte order.
+	 */
+	public static ByteBuffer allocate(int bytes) {
+		ByteBuffer b = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		synchronized (DirectMemory.class) { allocated += bytes; }
+		return b;
+	}
+
+	/**
+	 * Release memory of the direct buffer now instead of when it is garbage
+	 * collected.
+	 * @param b buffer allocated with allocate(), may be null
+	 * @return true if the memory was released, false if it is left for the
+	 * garbage collector.
+	 */
+	public static boolean free(ByteBuffer b) {
+		if (b == null || !b.isDirect()) return false;
+		synchronized (DirectMemory.class) { allocated -= b.capacity(); }
+		return clean(b);
+	}
+
+	/**
+	 * Unmap memory mapped file buffer now instead of when it is garbage
+	 * collected.
+	 * @param b buffer returned by FileChannel.map(), may be null
+	 * @return true if the buffer was unmapped.
+	 */
+	public static boolean unmap(MappedByteBuffer b) {
+		if (b == null) return false;
+		return clean(b);
+	}
+
+	/** Run the cleaner of the direct buffer. */
+	private static boolean clean(ByteBuffer b) {
+		try {
+			// Java 9 and later.
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method m = c.getMethod("invokeCleaner", ByteBuffer.class);
+			m.invoke(f.get(null), b);
+			return true;
+		}
+		catch (Exception e) { }
+		try {
+			// Java 8 and earlier.
+			Method m = b.getClass().getMethod("cleaner");
+			m.setAccessible(true);
+			Object cleaner = m.invoke(b);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		}
+		catch (Exception e) { }
+		return false;
+	}
+
+	/** Bytes currently allocated outside the heap and not freed. */
+	public static synchronized long getAllocated() { return allocated; }
+}
@@ -0,0 +1,58 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent tasks with a fixed amount of threads, e.g. bands of an
+ * image or landmark tables. Pool of threads lives only for one call, and
+ * with one thread or one task the tasks are run in the calling thread.
+ * @author slinkola
+ *
+ */
+public class Parallel {
+
+	/**
+	 * Run the tasks with the given amount of threads.
+	 * @param tasks tasks to run
+	 * @param threads amount of threads, at most one per task is started
+	 * @param work name of the work in error messages, e.g. "Image ingestion"
+	 * @return results in the order of the tasks.
+	 * @throws IllegalStateException if a task fails or the calling thread is
+	 * interrupted.
+	 */
+	public static <T> List<T> invoke(List<Callable<T>> tasks, int threads, String work) {
+		List<T> results = new ArrayList<T>();
+		if (threads <= 1 || tasks.size() <= 1) {
+			for (Callable<T> t: tasks) {
+				try {
+					results.add(t.call());
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(work + " failed.", e);
+				}
+			}
+			return results;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			for (Future<T> f: pool.invokeAll(tasks)) results.add(f.get());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(work + " was interrupted.", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException(work + " failed.", e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+}